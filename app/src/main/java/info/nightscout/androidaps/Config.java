@@ -31,6 +31,12 @@ public class Config {
     public static final boolean logPumpActions = true;
     public static final boolean logSMSComm = true;
     public static final boolean logCongigBuilderActions = true;
+    public static final boolean logEventDispatcher = true;
+
+    // Compare continuous temp basal IOB with original per-bolus calculation
+    public static final boolean verifyTempBasalIob = false;
+    // Run determine basal also with the other engine (JS/Java) and log differences
+    public static final boolean compareDetermineBasalEngines = false;
 
     // DanaR specific
     public static final boolean logDanaBTComm = true;
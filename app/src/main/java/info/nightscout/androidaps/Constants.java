@@ -20,6 +20,8 @@ public class Constants {
     public static final Integer notificationID = 556677;
 
     public static final int hoursToKeepInDatabase = 72;
+    public static final int hoursToKeepInMemory = 24;
+    public static final int hoursToShowInOverview = 6;
     public static final int daysToKeepHistoryInDatabase = 30;
 
     public static final long keepAliveMsecs = 5 * 60 * 1000L;
@@ -7,15 +7,17 @@ import android.support.annotation.Nullable;
 
 import com.crashlytics.android.Crashlytics;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
-import com.squareup.otto.Bus;
-import com.squareup.otto.ThreadEnforcer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.events.EventNewBG;
+import info.nightscout.androidaps.events.EventTempBasalChange;
+import info.nightscout.androidaps.events.EventTreatmentChange;
 import info.nightscout.androidaps.interfaces.PluginBase;
 import info.nightscout.androidaps.plugins.Actions.ActionsFragment;
 import info.nightscout.androidaps.plugins.Careportal.CareportalFragment;
@@ -42,7 +44,9 @@ import info.nightscout.androidaps.plugins.Treatments.TreatmentsFragment;
 import info.nightscout.androidaps.plugins.VirtualPump.VirtualPumpFragment;
 import info.nightscout.androidaps.plugins.Wear.WearFragment;
 import info.nightscout.androidaps.plugins.persistentnotification.PersistentNotificationPlugin;
+import info.nightscout.androidaps.Services.DatabaseCompactionService;
 import info.nightscout.androidaps.receivers.KeepAliveReceiver;
+import info.nightscout.utils.EventDispatcher;
 import io.fabric.sdk.android.Fabric;
 
 
@@ -50,7 +54,7 @@ public class MainApp extends Application {
     private static Logger log = LoggerFactory.getLogger(MainApp.class);
     private static KeepAliveReceiver keepAliveReceiver;
 
-    private static Bus sBus;
+    private static EventDispatcher sBus;
     private static MainApp sInstance;
     public static Resources sResources;
 
@@ -58,6 +62,7 @@ public class MainApp extends Application {
     private static ConfigBuilderPlugin sConfigBuilder = null;
 
     private static ArrayList<PluginBase> pluginsList = null;
+    private static PluginRegistry sPluginRegistry = null;
 
     @Override
     public void onCreate() {
@@ -67,7 +72,16 @@ public class MainApp extends Application {
         log.info("Version: " + BuildConfig.VERSION_NAME);
         log.info("BuildVersion: " + BuildConfig.BUILDVERSION);
 
-        sBus = new Bus(ThreadEnforcer.ANY);
+        sBus = new EventDispatcher();
+        // bursts from NSClient sync and pump status reading are delivered once
+        sBus.coalesce(EventNewBG.class, 1000L);
+        sBus.coalesce(EventTempBasalChange.class, 1000L);
+        sBus.coalesce(EventTreatmentChange.class, 1000L, new EventDispatcher.Merger() {
+            @Override
+            public Object merge(Object pending, Object posted) {
+                return new EventTreatmentChange(); // reload all
+            }
+        });
         sInstance = this;
         sResources = getResources();
 
@@ -101,12 +115,14 @@ public class MainApp extends Application {
             pluginsList.add(new PersistentNotificationPlugin(this));
 
             pluginsList.add(sConfigBuilder = ConfigBuilderFragment.getPlugin());
+            sPluginRegistry = new PluginRegistry(pluginsList, sConfigBuilder);
 
             MainApp.getConfigBuilder().initialize();
         }
         MainApp.getConfigBuilder().uploadAppStart();
 
         startKeepAliveService();
+        DatabaseCompactionService.schedule(this);
     }
 
     private void startKeepAliveService() {
@@ -127,7 +143,7 @@ public class MainApp extends Application {
         keepAliveReceiver.cancelAlarm(this);
     }
 
-    public static Bus bus() {
+    public static EventDispatcher bus() {
         return sBus;
     }
 
@@ -157,45 +173,35 @@ public class MainApp extends Application {
         return pluginsList;
     }
 
-    public static ArrayList<PluginBase> getSpecificPluginsList(int type) {
-        ArrayList<PluginBase> newList = new ArrayList<>();
+    @Nullable
+    public static PluginRegistry getPluginRegistry() {
+        return sPluginRegistry;
+    }
 
-        if (pluginsList != null) {
-            for (PluginBase p : pluginsList) {
-                if (p.getType() == type)
-                    newList.add(p);
-            }
-        } else {
+    // Returned lists are shared and unmodifiable
+    public static List<PluginBase> getSpecificPluginsList(int type) {
+        if (sPluginRegistry == null) {
             log.error("pluginsList=null");
+            return new ArrayList<>();
         }
-        return newList;
+        return sPluginRegistry.getByType(type);
     }
 
-    public static ArrayList<PluginBase> getSpecificPluginsListByInterface(Class interfaceClass) {
-        ArrayList<PluginBase> newList = new ArrayList<>();
-
-        if (pluginsList != null) {
-            for (PluginBase p : pluginsList) {
-                if (p.getClass() != ConfigBuilderPlugin.class && interfaceClass.isAssignableFrom(p.getClass()))
-                    newList.add(p);
-            }
-        } else {
+    public static List<PluginBase> getSpecificPluginsListByInterface(Class interfaceClass) {
+        if (sPluginRegistry == null) {
             log.error("pluginsList=null");
+            return new ArrayList<>();
         }
-        return newList;
+        return sPluginRegistry.getByInterface(interfaceClass);
     }
 
     @Nullable
     public static PluginBase getSpecificPlugin(Class pluginClass) {
-        if (pluginsList != null) {
-            for (PluginBase p : pluginsList) {
-                if (p.getClass() == pluginClass)
-                    return p;
-            }
-        } else {
+        if (sPluginRegistry == null) {
             log.error("pluginsList=null");
+            return null;
         }
-        return null;
+        return sPluginRegistry.getByClass(pluginClass);
     }
 
     @Override
@@ -0,0 +1,100 @@
+package info.nightscout.androidaps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.nightscout.androidaps.interfaces.ConstraintsInterface;
+import info.nightscout.androidaps.interfaces.PluginBase;
+
+/**
+ * Plugin lookups precomputed when plugins are registered
+ *
+ * Lists by type and by interface are immutable and shared, lookups don't allocate.
+ * Enabled state may change any time (and depends on other plugins) so it is still checked by caller.
+ */
+public class PluginRegistry {
+    private static final List<PluginBase> EMPTY = Collections.emptyList();
+
+    private final List<PluginBase> plugins;
+    private final List<List<PluginBase>> byType = new ArrayList<>();
+    private final Map<Class, List<PluginBase>> byInterface = new HashMap<>();
+    private final Map<Class, PluginBase> byClass = new HashMap<>();
+    private final ConstraintsInterface[] constraints;
+
+    /*
+     * aggregator (ConfigBuilder) implements plugin interfaces by delegating to other plugins,
+     * so it is left out of lists by interface
+     */
+    public PluginRegistry(List<PluginBase> plugins, PluginBase aggregator) {
+        this.plugins = Collections.unmodifiableList(new ArrayList<>(plugins));
+
+        for (int type = 0; type < PluginBase.LAST; type++) {
+            List<PluginBase> list = new ArrayList<>();
+            for (PluginBase p : plugins)
+                if (p.getType() == type)
+                    list.add(p);
+            byType.add(Collections.unmodifiableList(list));
+        }
+
+        Map<Class, List<PluginBase>> interfaces = new HashMap<>();
+        for (PluginBase p : plugins) {
+            if (!byClass.containsKey(p.getClass()))
+                byClass.put(p.getClass(), p);
+            if (p == aggregator)
+                continue;
+            List<Class> implemented = new ArrayList<>();
+            collectInterfaces(p.getClass(), implemented);
+            for (Class i : implemented) {
+                List<PluginBase> list = interfaces.get(i);
+                if (list == null)
+                    interfaces.put(i, list = new ArrayList<>());
+                list.add(p);
+            }
+        }
+        for (Map.Entry<Class, List<PluginBase>> entry : interfaces.entrySet())
+            byInterface.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+
+        List<PluginBase> constraintsList = getByInterface(ConstraintsInterface.class);
+        constraints = new ConstraintsInterface[constraintsList.size()];
+        for (int i = 0; i < constraints.length; i++)
+            constraints[i] = (ConstraintsInterface) constraintsList.get(i);
+    }
+
+    private static void collectInterfaces(Class clazz, List<Class> result) {
+        for (Class c = clazz; c != null; c = c.getSuperclass()) {
+            for (Class i : c.getInterfaces()) {
+                if (!result.contains(i)) {
+                    result.add(i);
+                    collectInterfaces(i, result);
+                }
+            }
+        }
+    }
+
+    public List<PluginBase> getAll() {
+        return plugins;
+    }
+
+    public List<PluginBase> getByType(int type) {
+        if (type < 0 || type >= byType.size())
+            return EMPTY;
+        return byType.get(type);
+    }
+
+    public List<PluginBase> getByInterface(Class interfaceClass) {
+        List<PluginBase> list = byInterface.get(interfaceClass);
+        return list != null ? list : EMPTY;
+    }
+
+    public PluginBase getByClass(Class pluginClass) {
+        return byClass.get(pluginClass);
+    }
+
+    // Array so that iterating doesn't allocate an iterator, don't modify
+    public ConstraintsInterface[] constraints() {
+        return constraints;
+    }
+}
@@ -20,8 +20,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import info.nightscout.androidaps.Config;
 import info.nightscout.androidaps.Constants;
@@ -48,6 +50,7 @@ import info.nightscout.androidaps.plugins.SourceXdrip.SourceXdripPlugin;
 import info.nightscout.androidaps.receivers.DataReceiver;
 import info.nightscout.client.data.NSProfile;
 import info.nightscout.client.data.NSSgv;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.ToastUtils;
 
 
@@ -58,6 +61,16 @@ public class DataService extends IntentService {
     boolean nsClientEnabled = true;
     boolean mm640gEnabled = false;
 
+    private static final int TREATMENT_ADDED = 0;
+    private static final int TREATMENT_CHANGED = 1;
+    private static final int TREATMENT_REMOVED = 2;
+
+    // set while handleTreatments runs
+    private boolean batchingTreatmentChanges = false;
+    private int batchedTreatmentChanges = 0;
+    private Treatment batchedAdded = null;
+    private Treatment batchedRemoved = null;
+
     public DataService() {
         super("DataService");
         registerBus();
@@ -166,7 +179,7 @@ public class DataService extends IntentService {
         bgReading.timeIndex = bundle.getLong(Intents.EXTRA_TIMESTAMP);
         bgReading.raw = bundle.getDouble(Intents.EXTRA_RAW);
 
-        if (bgReading.timeIndex < new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) {
+        if (bgReading.timeIndex < Clock.now() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) {
             if (Config.logIncommingBG)
                 log.debug("Ignoring old XDRIPREC BG " + bgReading.toString());
             return;
@@ -176,7 +189,7 @@ public class DataService extends IntentService {
             log.debug("XDRIPREC BG " + bgReading.toString());
 
         try {
-            MainApp.getDbHelper().getDaoBgReadings().createIfNotExists(bgReading);
+            MainApp.getDbHelper().createBgReadingIfNotExists(bgReading);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -194,6 +207,7 @@ public class DataService extends IntentService {
             final String data = bundle.getString("data");
 
             if ((data != null) && (data.length() > 0)) {
+                List<BgReading> bgReadings = new ArrayList<BgReading>();
                 try {
                     final JSONArray json_array = new JSONArray(data);
                     for (int i = 0; i < json_array.length(); i++) {
@@ -208,20 +222,16 @@ public class DataService extends IntentService {
                                 bgReading.timeIndex = json_object.getLong("date");
                                 bgReading.raw = json_object.getDouble("sgv");
 
-                                if (bgReading.timeIndex < new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) {
+                                if (bgReading.timeIndex < Clock.now() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) {
                                     if (Config.logIncommingBG)
                                         log.debug("Ignoring old MM640g BG " + bgReading.toString());
-                                    return;
+                                    break;
                                 }
 
                                 if (Config.logIncommingBG)
                                     log.debug("MM640g BG " + bgReading.toString());
 
-                                try {
-                                    MainApp.getDbHelper().getDaoBgReadings().createIfNotExists(bgReading);
-                                } catch (SQLException e) {
-                                    e.printStackTrace();
-                                }
+                                bgReadings.add(bgReading);
                                 break;
                             default:
                                 log.debug("Unknown entries type: " + type);
@@ -230,6 +240,7 @@ public class DataService extends IntentService {
                 } catch (JSONException e) {
                     log.error("Got JSON exception: " + e);
                 }
+                storeBgReadings(bgReadings);
             }
         }
         MainApp.bus().post(new EventNewBG());
@@ -339,12 +350,7 @@ public class DataService extends IntentService {
                 }
                 if (bundles.containsKey("treatments")) {
                     String trstring = bundles.getString("treatments");
-                    JSONArray jsonArray = new JSONArray(trstring);
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject trJson = jsonArray.getJSONObject(i);
-                        String trstr = trJson.toString();
-                        handleAddedTreatment(trstr);
-                    }
+                    handleTreatments(new JSONArray(trstring), TREATMENT_ADDED);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -360,12 +366,7 @@ public class DataService extends IntentService {
                 }
                 if (bundles.containsKey("treatments")) {
                     String trstring = bundles.getString("treatments");
-                    JSONArray jsonArray = new JSONArray(trstring);
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject trJson = jsonArray.getJSONObject(i);
-                        String trstr = trJson.toString();
-                        handleChangedTreatment(trstr);
-                    }
+                    handleTreatments(new JSONArray(trstring), TREATMENT_CHANGED);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -378,17 +379,14 @@ public class DataService extends IntentService {
                     String trstring = bundles.getString("treatment");
                     JSONObject trJson = new JSONObject(trstring);
                     String _id = trJson.getString("_id");
-                    removeTreatmentFromDb(_id);
+                    Treatment removed = removeTreatmentFromDb(_id);
+                    if (removed != null)
+                        scheduleTreatmentChange(null, removed);
                 }
 
                 if (bundles.containsKey("treatments")) {
                     String trstring = bundles.getString("treatments");
-                    JSONArray jsonArray = new JSONArray(trstring);
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject trJson = jsonArray.getJSONObject(i);
-                        String _id = trJson.getString("_id");
-                        removeTreatmentFromDb(_id);
-                    }
+                    handleTreatments(new JSONArray(trstring), TREATMENT_REMOVED);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -402,12 +400,12 @@ public class DataService extends IntentService {
                     JSONObject sgvJson = new JSONObject(sgvstring);
                     NSSgv nsSgv = new NSSgv(sgvJson);
                     BgReading bgReading = new BgReading(nsSgv);
-                    if (bgReading.timeIndex < new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000l) {
+                    if (bgReading.timeIndex < Clock.now() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000l) {
                         if (Config.logIncommingData)
                             log.debug("Ignoring old BG: " + bgReading.toString());
                         return;
                     }
-                    MainApp.getDbHelper().getDaoBgReadings().createIfNotExists(bgReading);
+                    MainApp.getDbHelper().createBgReadingIfNotExists(bgReading);
                     if (Config.logIncommingData)
                         log.debug("ADD: Stored new BG: " + bgReading.toString());
                 }
@@ -415,19 +413,19 @@ public class DataService extends IntentService {
                 if (bundles.containsKey("sgvs")) {
                     String sgvstring = bundles.getString("sgvs");
                     JSONArray jsonArray = new JSONArray(sgvstring);
+                    List<BgReading> bgReadings = new ArrayList<BgReading>();
                     for (int i = 0; i < jsonArray.length(); i++) {
                         JSONObject sgvJson = jsonArray.getJSONObject(i);
                         NSSgv nsSgv = new NSSgv(sgvJson);
                         BgReading bgReading = new BgReading(nsSgv);
-                        if (bgReading.timeIndex < new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000l) {
+                        if (bgReading.timeIndex < Clock.now() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000l) {
                             if (Config.logIncommingData)
                                 log.debug("Ignoring old BG: " + bgReading.toString());
                         } else {
-                            MainApp.getDbHelper().getDaoBgReadings().createIfNotExists(bgReading);
-                            if (Config.logIncommingData)
-                                log.debug("ADD: Stored new BG: " + bgReading.toString());
+                            bgReadings.add(bgReading);
                         }
                     }
+                    storeBgReadings(bgReadings);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -440,6 +438,64 @@ public class DataService extends IntentService {
         }
     }
 
+    private void storeBgReadings(List<BgReading> bgReadings) {
+        if (bgReadings.size() == 0)
+            return;
+        try {
+            int created = MainApp.getDbHelper().createBgReadingsIfNotExists(bgReadings);
+            if (Config.logIncommingData)
+                log.debug("ADD: Stored " + created + " new BGs of " + bgReadings.size());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // All treatments are stored in one transaction and one EventTreatmentChange is posted at the end
+    private void handleTreatments(final JSONArray jsonArray, final int change) throws Exception {
+        batchedTreatmentChanges = 0;
+        batchingTreatmentChanges = true;
+        boolean committed = false;
+        try {
+            MainApp.getDbHelper().getDaoTreatments().callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < jsonArray.length(); i++) {
+                        // one bad record must not roll back the others
+                        try {
+                            JSONObject trJson = jsonArray.getJSONObject(i);
+                            switch (change) {
+                                case TREATMENT_ADDED:
+                                    handleAddedTreatment(trJson.toString());
+                                    break;
+                                case TREATMENT_CHANGED:
+                                    handleChangedTreatment(trJson.toString());
+                                    break;
+                                case TREATMENT_REMOVED:
+                                    Treatment removed = removeTreatmentFromDb(trJson.getString("_id"));
+                                    if (removed != null)
+                                        scheduleTreatmentChange(null, removed);
+                                    break;
+                            }
+                        } catch (JSONException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    return null;
+                }
+            });
+            committed = true;
+        } finally {
+            batchingTreatmentChanges = false;
+            // after rollback memory must be reloaded from db
+            if (!committed || batchedTreatmentChanges > 1)
+                scheduleTreatmentChange(null, null);
+            else if (batchedTreatmentChanges == 1)
+                scheduleTreatmentChange(batchedAdded, batchedRemoved);
+            batchedAdded = null;
+            batchedRemoved = null;
+        }
+    }
+
     private void handleAddedTreatment(String trstring) throws JSONException, SQLException {
         JSONObject trJson = new JSONObject(trstring);
         handleDanaRHistoryRecords(trJson); // update record _id in history
@@ -468,7 +524,7 @@ public class DataService extends IntentService {
                 int updated = MainApp.getDbHelper().getDaoTreatments().update(stored);
                 if (Config.logIncommingData)
                     log.debug("Records updated: " + updated);
-                scheduleTreatmentChange();
+                scheduleTreatmentChange(stored, stored);
             }
         } else {
             if (Config.logIncommingData)
@@ -492,7 +548,7 @@ public class DataService extends IntentService {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
-            scheduleTreatmentChange();
+            scheduleTreatmentChange(treatment, null);
         }
     }
 
@@ -516,10 +572,11 @@ public class DataService extends IntentService {
             stored = findById(_id);
         }
 
+        Treatment removed = null;
         if (stored != null) {
             if (Config.logIncommingData)
                 log.debug("CHANGE: Removing old: " + trstring);
-            removeTreatmentFromDb(_id);
+            removed = removeTreatmentFromDb(_id);
         }
 
         if (Config.logIncommingData)
@@ -546,7 +603,7 @@ public class DataService extends IntentService {
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        scheduleTreatmentChange();
+        scheduleTreatmentChange(treatment, removed);
     }
 
     public void handleDanaRHistoryRecords(JSONObject trJson) throws JSONException, SQLException {
@@ -620,16 +677,18 @@ public class DataService extends IntentService {
         return null;
     }
 
-    private void removeTreatmentFromDb(String _id) throws SQLException {
+    @Nullable
+    private Treatment removeTreatmentFromDb(String _id) throws SQLException {
         Treatment stored = findById(_id);
         if (stored != null) {
             log.debug("REMOVE: Existing treatment (removing): " + _id);
             int removed = MainApp.getDbHelper().getDaoTreatments().delete(stored);
             if (Config.logIncommingData)
                 log.debug("Records removed: " + removed);
-            scheduleTreatmentChange();
+            return stored;
         } else {
             log.debug("REMOVE: Not stored treatment (ignoring): " + _id);
+            return null;
         }
     }
 
@@ -639,8 +698,14 @@ public class DataService extends IntentService {
         MainApp.bus().post(new EventNewSMS(bundle));
     }
 
-    public void scheduleTreatmentChange() {
-        MainApp.bus().post(new EventTreatmentChange());
+    public void scheduleTreatmentChange(Treatment added, Treatment removed) {
+        if (batchingTreatmentChanges) {
+            batchedTreatmentChanges++;
+            batchedAdded = added;
+            batchedRemoved = removed;
+            return;
+        }
+        MainApp.bus().post(new EventTreatmentChange(added, removed));
     }
 
 
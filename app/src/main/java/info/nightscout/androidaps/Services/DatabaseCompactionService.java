@@ -0,0 +1,72 @@
+package info.nightscout.androidaps.Services;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+
+import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.db.DatabaseCompaction;
+import info.nightscout.utils.Clock;
+
+/**
+ * Deletes expired database rows once a day while device is idle and charging
+ */
+public class DatabaseCompactionService extends JobService {
+    private static Logger log = LoggerFactory.getLogger(DatabaseCompactionService.class);
+
+    private static final int JOB_ID = 5566;
+    private static final long INTERVAL = 24 * 60 * 60 * 1000L;
+
+    private DatabaseCompaction compaction = null;
+
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : jobScheduler.getAllPendingJobs())
+            if (job.getId() == JOB_ID)
+                return;
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, DatabaseCompactionService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL)
+                .setPersisted(true)
+                .build();
+        jobScheduler.schedule(job);
+        log.debug("Database compaction scheduled");
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        compaction = new DatabaseCompaction(MainApp.getDbHelper().getConnectionSource());
+        final DatabaseCompaction running = compaction;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean reschedule = false;
+                try {
+                    reschedule = running.compact(Clock.now()).cancelled;
+                } catch (SQLException e) {
+                    log.error("Database compaction failed", e);
+                }
+                jobFinished(params, reschedule);
+            }
+        });
+        t.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // device is not idle anymore, continue next time
+        if (compaction != null)
+            compaction.cancel();
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package info.nightscout.androidaps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import info.nightscout.androidaps.db.BgReading;
+
+/**
+ * Recent valid BG readings in memory sorted from oldest
+ *
+ * Ring buffer of primitive arrays, when full the oldest reading is dropped.
+ * Latest reading is O(1), range lookup is binary search. Readings from coveredFrom on
+ * are all in cache, older must be read from database.
+ */
+public class BgCache {
+    public static final int DEFAULT_CAPACITY = 2048; // 24h of 1 min readings
+
+    private final long[] time;
+    private final double[] value;
+    private final double[] raw;
+    private final String[] direction;
+    private final int mask;
+    private int start = 0;
+    private int size = 0;
+    private long coveredFrom = Long.MAX_VALUE;
+
+    // capacity is rounded up to power of 2
+    public BgCache(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        time = new long[length];
+        value = new double[length];
+        raw = new double[length];
+        direction = new String[length];
+        mask = length - 1;
+    }
+
+    public synchronized void clear() {
+        start = 0;
+        size = 0;
+        coveredFrom = Long.MAX_VALUE;
+        for (int i = 0; i < direction.length; i++)
+            direction[i] = null;
+    }
+
+    public synchronized void setCoveredFrom(long coveredFrom) {
+        this.coveredFrom = coveredFrom;
+    }
+
+    public synchronized boolean covers(long from) {
+        return from >= coveredFrom;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return time.length;
+    }
+
+    // index 0 is the oldest reading
+    public synchronized long getTime(int index) {
+        return time[(start + index) & mask];
+    }
+
+    public synchronized double getValue(int index) {
+        return value[(start + index) & mask];
+    }
+
+    public synchronized BgReading get(int index) {
+        int pos = (start + index) & mask;
+        BgReading bgReading = new BgReading();
+        bgReading.timeIndex = time[pos];
+        bgReading.value = value[pos];
+        bgReading.raw = raw[pos];
+        bgReading.direction = direction[pos];
+        return bgReading;
+    }
+
+    public synchronized BgReading getLast() {
+        if (size == 0)
+            return null;
+        return get(size - 1);
+    }
+
+    // Index of first reading not older than time, size() if there is none
+    public synchronized int lowerBound(long t) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (time[(start + mid) & mask] < t)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // Readings from time sorted from oldest
+    public synchronized List<BgReading> getFrom(long from) {
+        int index = lowerBound(from);
+        List<BgReading> result = new ArrayList<BgReading>(size - index);
+        for (; index < size; index++)
+            result.add(get(index));
+        return result;
+    }
+
+    // Last count readings sorted from newest
+    public synchronized List<BgReading> getLast(int count) {
+        List<BgReading> result = new ArrayList<BgReading>(count);
+        for (int index = size - 1; index >= 0 && result.size() < count; index--)
+            result.add(get(index));
+        return result;
+    }
+
+    /*
+     * Adds reading, returns false if reading is invalid, already stored or older than all when full
+     * Readings usually come in order, older ones are inserted by shifting newer
+     */
+    public synchronized boolean add(BgReading bgReading) {
+        if (bgReading.value <= 38)
+            return false;
+        long t = bgReading.timeIndex;
+        int index = lowerBound(t);
+        if (index < size && time[(start + index) & mask] == t)
+            return false;
+        if (size == time.length) {
+            if (index == 0)
+                return false;
+            // drop oldest
+            coveredFrom = Math.max(coveredFrom, time[start] + 1);
+            direction[start] = null;
+            start = (start + 1) & mask;
+            size--;
+            index--;
+        }
+        for (int i = size; i > index; i--) {
+            int to = (start + i) & mask;
+            int from = (start + i - 1) & mask;
+            time[to] = time[from];
+            value[to] = value[from];
+            raw[to] = raw[from];
+            direction[to] = direction[from];
+        }
+        int pos = (start + index) & mask;
+        time[pos] = t;
+        value[pos] = bgReading.value;
+        raw[pos] = bgReading.raw;
+        direction[pos] = bgReading.direction;
+        size++;
+        return true;
+    }
+
+    public synchronized void addAll(List<BgReading> bgReadings) {
+        for (BgReading bgReading : bgReadings)
+            add(bgReading);
+    }
+}
@@ -0,0 +1,123 @@
+package info.nightscout.androidaps.data;
+
+import info.nightscout.androidaps.Constants;
+import info.nightscout.androidaps.interfaces.ConstraintsInterface;
+import info.nightscout.androidaps.interfaces.PluginBase;
+
+/**
+ * Mode flags and limits of all enabled constraints plugins, evaluated in one pass
+ *
+ * Limits are found by passing the OnlyForCheckLimit values through each plugin, the lowest wins.
+ * For every flag and limit the name of plugin which imposed it is kept (null = not limited).
+ */
+public class ConstraintSet {
+    public static final double maxIobOnlyForCheckLimit = 10101010d;
+
+    public long evaluated = 0;
+
+    public boolean loopEnabled = true;
+    public String loopDisabledBy = null;
+    public boolean closedModeEnabled = true;
+    public String closedModeDisabledBy = null;
+    public boolean autosensModeEnabled = true;
+    public String autosensModeDisabledBy = null;
+    public boolean amaModeEnabled = true;
+    public String amaModeDisabledBy = null;
+
+    public double maxBasal = Constants.basalAbsoluteOnlyForCheckLimit;
+    public String maxBasalBy = null;
+    public int maxBasalPercent = Constants.basalPercentOnlyForCheckLimit;
+    public String maxBasalPercentBy = null;
+    public double maxBolus = Constants.bolusOnlyForCheckLimit;
+    public String maxBolusBy = null;
+    public int maxCarbs = Constants.carbsOnlyForCheckLimit;
+    public String maxCarbsBy = null;
+    public double maxIob = maxIobOnlyForCheckLimit;
+    public String maxIobBy = null;
+
+    public static ConstraintSet evaluate(ConstraintsInterface[] constraints, long time) {
+        ConstraintSet set = new ConstraintSet();
+        set.evaluated = time;
+        for (ConstraintsInterface constrain : constraints) {
+            PluginBase plugin = (PluginBase) constrain;
+            if (!plugin.isEnabled(PluginBase.CONSTRAINTS)) continue;
+            String name = plugin.getName();
+
+            if (set.loopEnabled && !constrain.isLoopEnabled()) {
+                set.loopEnabled = false;
+                set.loopDisabledBy = name;
+            }
+            if (set.closedModeEnabled && !constrain.isClosedModeEnabled()) {
+                set.closedModeEnabled = false;
+                set.closedModeDisabledBy = name;
+            }
+            if (set.autosensModeEnabled && !constrain.isAutosensModeEnabled()) {
+                set.autosensModeEnabled = false;
+                set.autosensModeDisabledBy = name;
+            }
+            if (set.amaModeEnabled && !constrain.isAMAModeEnabled()) {
+                set.amaModeEnabled = false;
+                set.amaModeDisabledBy = name;
+            }
+
+            double basal = constrain.applyBasalConstraints(Constants.basalAbsoluteOnlyForCheckLimit);
+            if (basal < set.maxBasal) {
+                set.maxBasal = basal;
+                set.maxBasalBy = name;
+            }
+            int percent = constrain.applyBasalConstraints(Constants.basalPercentOnlyForCheckLimit);
+            if (percent < set.maxBasalPercent) {
+                set.maxBasalPercent = percent;
+                set.maxBasalPercentBy = name;
+            }
+            double bolus = constrain.applyBolusConstraints(Constants.bolusOnlyForCheckLimit);
+            if (bolus < set.maxBolus) {
+                set.maxBolus = bolus;
+                set.maxBolusBy = name;
+            }
+            int carbs = constrain.applyCarbsConstraints(Constants.carbsOnlyForCheckLimit);
+            if (carbs < set.maxCarbs) {
+                set.maxCarbs = carbs;
+                set.maxCarbsBy = name;
+            }
+            double iob = constrain.applyMaxIOBConstraints(maxIobOnlyForCheckLimit);
+            if (iob < set.maxIob) {
+                set.maxIob = iob;
+                set.maxIobBy = name;
+            }
+        }
+        return set;
+    }
+
+    // All plugins only clamp absolute values from top so the lowest limit is equal to passing value through them
+    public double applyBasalConstraints(double absoluteRate) {
+        return Math.max(0d, Math.min(absoluteRate, maxBasal));
+    }
+
+    public double applyBolusConstraints(double insulin) {
+        return Math.max(0d, Math.min(insulin, maxBolus));
+    }
+
+    public int applyCarbsConstraints(int carbs) {
+        return Math.max(0, Math.min(carbs, maxCarbs));
+    }
+
+    public double applyMaxIOBConstraints(double maxIob) {
+        return Math.min(maxIob, this.maxIob);
+    }
+
+    @Override
+    public String toString() {
+        return "ConstraintSet{" +
+                "loop=" + loopEnabled + (loopDisabledBy != null ? " (" + loopDisabledBy + ")" : "") +
+                ", closed=" + closedModeEnabled + (closedModeDisabledBy != null ? " (" + closedModeDisabledBy + ")" : "") +
+                ", autosens=" + autosensModeEnabled + (autosensModeDisabledBy != null ? " (" + autosensModeDisabledBy + ")" : "") +
+                ", ama=" + amaModeEnabled + (amaModeDisabledBy != null ? " (" + amaModeDisabledBy + ")" : "") +
+                ", maxBasal=" + maxBasal + (maxBasalBy != null ? " (" + maxBasalBy + ")" : "") +
+                ", maxBasalPercent=" + maxBasalPercent + (maxBasalPercentBy != null ? " (" + maxBasalPercentBy + ")" : "") +
+                ", maxBolus=" + maxBolus + (maxBolusBy != null ? " (" + maxBolusBy + ")" : "") +
+                ", maxCarbs=" + maxCarbs + (maxCarbsBy != null ? " (" + maxCarbsBy + ")" : "") +
+                ", maxIob=" + maxIob + (maxIobBy != null ? " (" + maxIobBy + ")" : "") +
+                '}';
+    }
+}
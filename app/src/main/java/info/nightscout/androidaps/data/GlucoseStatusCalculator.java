@@ -0,0 +1,87 @@
+package info.nightscout.androidaps.data;
+
+import info.nightscout.androidaps.db.DatabaseHelper;
+
+/**
+ * Glucose status from BG series in one pass without allocations
+ *
+ * Change to every reading up to 42.5 min before the newest one is scaled to 5 min (like oref0 glucose-get-last).
+ * Readings 2.5-7.5 min old are averaged to delta, 2.5-17.5 min to short_avgdelta and 17.5-42.5 min
+ * to long_avgdelta. Slope and noise come from linear regression over the same readings.
+ * Missing readings don't make status invalid, only stale newest reading does.
+ */
+public class GlucoseStatusCalculator {
+    public static final long MAX_AGE = 7 * 60 * 1000L;
+
+    private static final double LAST_FROM = 2.5d;
+    private static final double LAST_TO = 7.5d;
+    private static final double SHORT_TO = 17.5d;
+    private static final double LONG_TO = 42.5d;
+
+    /*
+     * Fills status from readings not newer than time
+     * Returns false if newest reading is older than MAX_AGE or there is no older reading for deltas
+     */
+    public static boolean calculate(BgCache series, long time, DatabaseHelper.GlucoseStatus status) {
+        synchronized (series) {
+            int newest = series.lowerBound(time + 1) - 1;
+            if (newest < 0)
+                return false;
+            long nowTime = series.getTime(newest);
+            if (nowTime < time - MAX_AGE)
+                return false;
+            double nowValue = series.getValue(newest);
+
+            double lastSum = 0d, shortSum = 0d, longSum = 0d;
+            int lastCount = 0, shortCount = 0, longCount = 0;
+            // regression relative to newest reading: x minutes (negative), y mg/dl
+            int n = 1;
+            double sx = 0d, sy = 0d, sxx = 0d, sxy = 0d, syy = 0d;
+
+            for (int i = newest - 1; i >= 0; i--) {
+                double minutesAgo = (nowTime - series.getTime(i)) / 60000d;
+                if (minutesAgo >= LONG_TO)
+                    break;
+                double change = nowValue - series.getValue(i);
+                n++;
+                sx -= minutesAgo;
+                sy -= change;
+                sxx += minutesAgo * minutesAgo;
+                sxy += minutesAgo * change;
+                syy += change * change;
+
+                if (minutesAgo < LAST_FROM)
+                    continue;
+                double avgdelta = change / minutesAgo * 5;
+                if (minutesAgo < SHORT_TO) {
+                    shortSum += avgdelta;
+                    shortCount++;
+                    if (minutesAgo < LAST_TO) {
+                        lastSum += avgdelta;
+                        lastCount++;
+                    }
+                } else {
+                    longSum += avgdelta;
+                    longCount++;
+                }
+            }
+            if (n < 2)
+                return false;
+
+            double dxx = sxx - sx * sx / n;
+            double dxy = sxy - sx * sy / n;
+            double dyy = syy - sy * sy / n;
+            double slopePerMinute = dxx > 0 ? dxy / dxx : 0d;
+
+            status.glucose = nowValue;
+            status.slope = slopePerMinute * 5;
+            status.noise = n > 2 ? Math.sqrt(Math.max(0d, dyy - slopePerMinute * dxy) / (n - 2)) : 0d;
+            // without readings in window use wider one
+            status.short_avgdelta = shortCount > 0 ? shortSum / shortCount : status.slope;
+            status.long_avgdelta = longCount > 0 ? longSum / longCount : status.short_avgdelta;
+            status.delta = lastCount > 0 ? lastSum / lastCount : status.short_avgdelta;
+            status.avgdelta = status.short_avgdelta;
+        }
+        return true;
+    }
+}
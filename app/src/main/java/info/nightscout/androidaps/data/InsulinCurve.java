@@ -0,0 +1,156 @@
+package info.nightscout.androidaps.data;
+
+/**
+ * Bilinear insulin curve of given DIA precalculated in 1 minute steps
+ * Values are for 1U of insulin and are linearly interpolated between minutes
+ */
+public class InsulinCurve {
+    private static final double PEAK = 75d;
+    private static final double END = 180d;
+    private static final long MINUTE = 60 * 1000L;
+
+    // Only a few DIAs are in use at the same time (DIA and DIA/2 for bolus snooze)
+    private static final InsulinCurve[] cache = new InsulinCurve[4];
+    private static int nextCacheSlot = 0;
+
+    public static synchronized InsulinCurve get(double dia) {
+        for (InsulinCurve curve : cache) {
+            if (curve != null && curve.dia == dia)
+                return curve;
+        }
+        InsulinCurve curve = new InsulinCurve(dia);
+        cache[nextCacheSlot] = curve;
+        nextCacheSlot = (nextCacheSlot + 1) % cache.length;
+        return curve;
+    }
+
+    private final double dia;
+    private final double scaleFactor;
+    private final int minutes; // insulin is fully absorbed after this number of minutes
+
+    private final double[] iob;
+    private final double[] activity;
+    // integrals from 0 to minute i over real minutes, used for continuous delivery (temp basals)
+    private final double[] iobIntegral;
+    private final double[] activityIntegral;
+
+    private InsulinCurve(double dia) {
+        this.dia = dia;
+        scaleFactor = 3.0 / dia;
+        minutes = (int) Math.ceil(END / scaleFactor);
+
+        // one more minute at the end with all values zero or integral complete
+        iob = new double[minutes + 2];
+        activity = new double[minutes + 2];
+        iobIntegral = new double[minutes + 2];
+        activityIntegral = new double[minutes + 2];
+        for (int i = 0; i < iob.length; i++) {
+            double minAgo = scaleFactor * i;
+            iob[i] = iobFraction(minAgo);
+            activity[i] = activityFraction(minAgo, dia);
+            // integrating over scaled time, so divide by scaleFactor to get back to real minutes
+            iobIntegral[i] = iobFractionIntegral(minAgo) / scaleFactor;
+            activityIntegral[i] = activityFractionIntegral(minAgo, dia) / scaleFactor;
+        }
+    }
+
+    public double getDia() {
+        return dia;
+    }
+
+    // Time after which insulin has no effect anymore
+    public long getAbsorptionTime() {
+        return (minutes + 1) * MINUTE;
+    }
+
+    // Fraction of insulin remaining msAgo after delivery
+    public double iob(long msAgo) {
+        if (msAgo < 0)
+            return iobFraction(scaleFactor * msAgo / (double) MINUTE);
+        return interpolate(iob, msAgo);
+    }
+
+    // Activity of 1U of insulin msAgo after delivery
+    public double activity(long msAgo) {
+        if (msAgo < 0)
+            return activityFraction(scaleFactor * msAgo / (double) MINUTE, dia);
+        return interpolate(activity, msAgo);
+    }
+
+    // Iob remaining from 1U/min delivered continuously from msAgo until now
+    public double iobIntegral(long msAgo) {
+        if (msAgo <= 0)
+            return 0d;
+        return interpolate(iobIntegral, msAgo);
+    }
+
+    // Activity of 1U/min delivered continuously from msAgo until now
+    public double activityIntegral(long msAgo) {
+        if (msAgo <= 0)
+            return 0d;
+        return interpolate(activityIntegral, msAgo);
+    }
+
+    private double interpolate(double[] table, long msAgo) {
+        long minute = msAgo / MINUTE;
+        if (minute > minutes)
+            return table[minutes + 1];
+        int i = (int) minute;
+        double fraction = (msAgo - minute * MINUTE) / (double) MINUTE;
+        return table[i] + (table[i + 1] - table[i]) * fraction;
+    }
+
+    // Formulas originally used in Treatment.iobCalc, minAgo is scaled to 3h DIA
+
+    static double iobFraction(double minAgo) {
+        if (minAgo < PEAK) {
+            double x1 = minAgo / 5d + 1;
+            return 1 - 0.001852 * x1 * x1 + 0.001852 * x1;
+        } else if (minAgo < END) {
+            double x2 = (minAgo - 75) / 5;
+            return 0.001323 * x2 * x2 - 0.054233 * x2 + 0.55556;
+        }
+        return 0d;
+    }
+
+    static double activityFraction(double minAgo, double dia) {
+        if (minAgo < PEAK) {
+            // units: BG (mg/dL)  = (BG/U) *    U insulin     * scalar
+            return (2 / dia / 60 / PEAK) * minAgo;
+        } else if (minAgo < END) {
+            return 2 / dia / 60 - (minAgo - PEAK) * 2 / dia / 60 / (60 * 3 - PEAK);
+        }
+        return 0d;
+    }
+
+    static double iobFractionIntegral(double minAgo) {
+        if (minAgo <= 0)
+            return 0d;
+        if (minAgo < PEAK) {
+            return iobFractionIntegralToPeak(minAgo / 5d + 1);
+        }
+        double x2 = (Math.min(minAgo, END) - PEAK) / 5d;
+        return iobFractionIntegralToPeak(PEAK / 5d + 1)
+                + 5 * (0.001323 * x2 * x2 * x2 / 3 - 0.054233 * x2 * x2 / 2 + 0.55556 * x2);
+    }
+
+    private static double iobFractionIntegralToPeak(double x1) {
+        return 5 * (iobFractionPrimitive(x1) - iobFractionPrimitive(1));
+    }
+
+    private static double iobFractionPrimitive(double x1) {
+        return x1 - 0.001852 * x1 * x1 * x1 / 3 + 0.001852 * x1 * x1 / 2;
+    }
+
+    static double activityFractionIntegral(double minAgo, double dia) {
+        if (minAgo <= 0)
+            return 0d;
+        double peakActivity = 2 / dia / 60;
+        if (minAgo < PEAK) {
+            return peakActivity / PEAK * minAgo * minAgo / 2;
+        }
+        double afterPeak = Math.min(minAgo, END) - PEAK;
+        return peakActivity / PEAK * PEAK * PEAK / 2
+                + peakActivity * afterPeak - peakActivity / (END - PEAK) * afterPeak * afterPeak / 2;
+    }
+}
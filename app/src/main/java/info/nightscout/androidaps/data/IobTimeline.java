@@ -0,0 +1,140 @@
+package info.nightscout.androidaps.data;
+
+import java.util.Date;
+import java.util.List;
+
+import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.db.Treatment;
+import info.nightscout.client.data.NSProfile;
+
+/**
+ * IOB and activity for a series of times in fixed steps
+ * Every treatment and temp basal is visited once and added only to the steps it affects
+ */
+public class IobTimeline {
+    private final long from;
+    private final long step;
+
+    public final double[] iob;      // bolus iob + basal iob
+    public final double[] basaliob;
+    public final double[] activity;
+
+    public IobTimeline(long from, long to, long step) {
+        this.from = from;
+        this.step = step;
+        int size = (int) ((to - from) / step) + 1;
+        iob = new double[size];
+        basaliob = new double[size];
+        activity = new double[size];
+    }
+
+    /*
+     * Timeline from active treatments and temp basals
+     * Plugins keep hoursToShowInOverview + DIA of history, so from shouldn't be older than hoursToShowInOverview
+     * Running temp basal is counted until now only
+     */
+    public static IobTimeline calculate(long from, long to, long step) {
+        IobTimeline timeline = new IobTimeline(from, to, step);
+        if (MainApp.getConfigBuilder() == null || MainApp.getConfigBuilder().getActiveProfile() == null) // app not initialized yet
+            return timeline;
+        NSProfile profile = MainApp.getConfigBuilder().getActiveProfile().getProfile();
+        if (profile == null)
+            return timeline;
+
+        InsulinCurve curve = InsulinCurve.get(profile.getDia());
+        timeline.addTreatments(MainApp.getConfigBuilder().getActiveTreatments().getTreatments(), curve);
+        timeline.addTempBasals(MainApp.getConfigBuilder().getActiveTempBasals().getMergedList(), profile, curve);
+        return timeline;
+    }
+
+    public int size() {
+        return iob.length;
+    }
+
+    public long getTime(int index) {
+        return from + index * step;
+    }
+
+    // Index of nearest step, -1 if time is outside of timeline
+    public int getIndex(long time) {
+        if (time < from - step / 2)
+            return -1;
+        int index = (int) ((time - from + step / 2) / step);
+        return index < size() ? index : -1;
+    }
+
+    public IobTimeline addTreatments(List<Treatment> treatments, InsulinCurve curve) {
+        for (int pos = 0; pos < treatments.size(); pos++) {
+            Treatment t = treatments.get(pos);
+            addBolus(t.created_at.getTime(), t.insulin, curve);
+        }
+        return this;
+    }
+
+    /*
+     * Net basal rate is taken from profile at the start of temp basal
+     */
+    public IobTimeline addTempBasals(List<TempBasal> tempBasals, NSProfile profile, InsulinCurve curve) {
+        for (int pos = 0; pos < tempBasals.size(); pos++) {
+            TempBasal t = tempBasals.get(pos);
+            int realDuration = t.getRealDuration();
+            if (realDuration <= 0)
+                continue;
+            double netBasalRate = t.getNetBasalRate(profile.getBasal(NSProfile.secondsFromMidnight(t.timeStart)));
+            long start = t.timeStart.getTime();
+            addInfusion(start, start + realDuration * 60 * 1000L, netBasalRate, curve);
+        }
+        return this;
+    }
+
+    // Bolus has no effect before it's delivered
+    public void addBolus(long time, double insulin, InsulinCurve curve) {
+        if (insulin == 0d)
+            return;
+        int first = firstIndexFrom(time);
+        int last = lastIndexTo(time + curve.getAbsorptionTime());
+        for (int i = first; i <= last; i++) {
+            long msAgo = getTime(i) - time;
+            iob[i] += insulin * curve.iob(msAgo);
+            activity[i] += insulin * curve.activity(msAgo);
+        }
+    }
+
+    // Continuous delivery of netBasalRate U/h from start to end
+    public void addInfusion(long start, long end, double netBasalRate, InsulinCurve curve) {
+        if (end <= start || netBasalRate == 0d)
+            return;
+        double ratePerMinute = netBasalRate / 60d;
+        int first = firstIndexFrom(start + 1);
+        int last = lastIndexTo(end + curve.getAbsorptionTime());
+        for (int i = first; i <= last; i++) {
+            long time = getTime(i);
+            long deliveredTo = Math.min(end, time);
+            double basal = ratePerMinute * (curve.iobIntegral(time - start) - curve.iobIntegral(time - deliveredTo));
+            basaliob[i] += basal;
+            iob[i] += basal;
+            activity[i] += ratePerMinute * (curve.activityIntegral(time - start) - curve.activityIntegral(time - deliveredTo));
+        }
+    }
+
+    private int firstIndexFrom(long time) {
+        if (time <= from)
+            return 0;
+        return (int) ((time - from + step - 1) / step);
+    }
+
+    private int lastIndexTo(long time) {
+        if (time < from)
+            return -1;
+        return (int) Math.min(size() - 1, (time - from) / step);
+    }
+
+    public String log() {
+        StringBuilder sb = new StringBuilder("IobTimeline{");
+        for (int i = 0; i < size(); i++) {
+            sb.append(new Date(getTime(i))).append(": ").append(iob[i]).append("/").append(basaliob[i]).append(" ");
+        }
+        return sb.append("}").toString();
+    }
+}
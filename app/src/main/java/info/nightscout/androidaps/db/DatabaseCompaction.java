@@ -0,0 +1,102 @@
+package info.nightscout.androidaps.db;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import info.nightscout.androidaps.Constants;
+
+/**
+ * Deletes rows older than retention time
+ *
+ * Rows are deleted in small batches, each in own transaction, so database is not locked
+ * for long and compaction can be cancelled between batches.
+ */
+public class DatabaseCompaction {
+    private static Logger log = LoggerFactory.getLogger(DatabaseCompaction.class);
+
+    public static final int BATCH_SIZE = 500;
+
+    private static final long HOURS_TO_KEEP = Constants.hoursToKeepInDatabase * 60 * 60 * 1000L;
+    private static final long HISTORY_TO_KEEP = Constants.daysToKeepHistoryInDatabase * 24 * 60 * 60 * 1000L;
+
+    public static class Result {
+        public Map<String, Integer> deleted = new LinkedHashMap<String, Integer>();
+        public int batches = 0;
+        public boolean cancelled = false;
+        public long elapsedMsecs = 0;
+
+        public int getDeleted() {
+            int total = 0;
+            for (Integer count : deleted.values())
+                total += count;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "Deleted " + getDeleted() + " rows " + deleted + " in " + batches + " batches, " + elapsedMsecs + " ms" + (cancelled ? " (cancelled)" : "");
+        }
+    }
+
+    private final ConnectionSource connectionSource;
+    private final int batchSize;
+    private volatile boolean cancelled = false;
+
+    public DatabaseCompaction(ConnectionSource connectionSource) {
+        this(connectionSource, BATCH_SIZE);
+    }
+
+    public DatabaseCompaction(ConnectionSource connectionSource, int batchSize) {
+        this.connectionSource = connectionSource;
+        this.batchSize = batchSize;
+    }
+
+    // Stops running compaction after current batch
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public Result compact(long now) throws SQLException {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        compactTable(result, BgReading.class, DatabaseHelper.DATABASE_BGREADINGS, "timeIndex", now - HOURS_TO_KEEP);
+        compactTable(result, TempBasal.class, DatabaseHelper.DATABASE_TEMPBASALS, "timeIndex", now - HOURS_TO_KEEP);
+        compactTable(result, Treatment.class, DatabaseHelper.DATABASE_TREATMENTS, "timeIndex", now - HOURS_TO_KEEP);
+        compactTable(result, DanaRHistoryRecord.class, DatabaseHelper.DATABASE_DANARHISTORY, "recordDate", now - HISTORY_TO_KEEP);
+        result.cancelled = cancelled;
+        result.elapsedMsecs = System.currentTimeMillis() - start;
+        log.debug("Database compaction: " + result);
+        return result;
+    }
+
+    private <T> void compactTable(Result result, Class<T> clazz, String table, String column, long olderThan) throws SQLException {
+        final Dao<T, ?> dao = DaoManager.createDao(connectionSource, clazz);
+        // subquery limits the delete, DELETE ... LIMIT is not available on Android
+        final String statement = "DELETE FROM `" + table + "` WHERE rowid IN (SELECT rowid FROM `" + table + "` WHERE `" + column + "` < ? LIMIT " + batchSize + ")";
+        final String argument = String.valueOf(olderThan);
+        int deleted = 0;
+        while (!cancelled) {
+            int count = TransactionManager.callInTransaction(connectionSource, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return dao.executeRaw(statement, argument);
+                }
+            });
+            result.batches++;
+            deleted += count;
+            if (count < batchSize)
+                break;
+        }
+        result.deleted.put(table, deleted);
+    }
+}
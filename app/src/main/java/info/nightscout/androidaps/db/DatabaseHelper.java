@@ -1,7 +1,6 @@
 package info.nightscout.androidaps.db;
 
 import android.content.Context;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -22,12 +21,15 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import info.nightscout.androidaps.Constants;
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
+import info.nightscout.androidaps.data.BgCache;
+import info.nightscout.androidaps.data.GlucoseStatusCalculator;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DecimalFormatter;
 import info.nightscout.utils.Round;
 
@@ -40,10 +42,24 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     public static final String DATABASE_TREATMENTS = "Treatments";
     public static final String DATABASE_DANARHISTORY = "DanaRHistory";
 
-    private static final int DATABASE_VERSION = 5;
+    static final int DATABASE_VERSION = 6;
+
+    // timeIndex is primary key of all tables except DanaRHistory so it is indexed already
+    // Changes must be added to DatabaseMigrations too
+    public static final String[] INDEXES = {
+            "CREATE INDEX IF NOT EXISTS `TempBasals_isExtended_timeIndex_idx` ON `" + DATABASE_TEMPBASALS + "` (`isExtended`, `timeIndex`)",
+            "CREATE INDEX IF NOT EXISTS `Treatments__id_idx` ON `" + DATABASE_TREATMENTS + "` (`_id`)",
+            "CREATE INDEX IF NOT EXISTS `DanaRHistory_recordCode_recordDate_idx` ON `" + DATABASE_DANARHISTORY + "` (`recordCode`, `recordDate`)",
+    };
+
+    // recent readings, loaded on first use
+    private final BgCache bgCache = new BgCache(BgCache.DEFAULT_CAPACITY);
+    private boolean bgCacheLoaded = false;
 
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers (loop, UI) are not blocked while incoming data is written
+        setWriteAheadLoggingEnabled(true);
     }
 
 
@@ -55,6 +71,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
             TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
             TableUtils.createTableIfNotExists(connectionSource, DanaRHistoryRecord.class);
+            createIndexes(database);
         } catch (SQLException e) {
             log.error(DatabaseHelper.class.getName(), "Can't create database", e);
             throw new RuntimeException(e);
@@ -64,7 +81,11 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase database, ConnectionSource connectionSource, int oldVersion, int newVersion) {
         try {
-            log.info(DatabaseHelper.class.getName(), "onUpgrade");
+            log.info("onUpgrade from " + oldVersion + " to " + newVersion);
+            if (DatabaseMigrations.canMigrate(oldVersion, newVersion)) {
+                DatabaseMigrations.migrate(connectionSource, oldVersion, newVersion);
+                return;
+            }
             TableUtils.dropTable(connectionSource, TempBasal.class, true);
             TableUtils.dropTable(connectionSource, Treatment.class, true);
             TableUtils.dropTable(connectionSource, BgReading.class, true);
@@ -76,6 +97,11 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         }
     }
 
+    private static void createIndexes(SQLiteDatabase database) {
+        for (String index : INDEXES)
+            database.execSQL(index);
+    }
+
     /**
      * Close the database connections and clear any cached DAOs.
      */
@@ -84,25 +110,6 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         super.close();
     }
 
-    public void cleanUpDatabases() {
-        // TODO: call it somewhere
-        log.debug("Before BgReadings size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_BGREADINGS));
-        getWritableDatabase().delete("BgReadings", "timeIndex" + " < '" + (new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) + "'", null);
-        log.debug("After BgReadings size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_BGREADINGS));
-
-        log.debug("Before TempBasals size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_TEMPBASALS));
-        getWritableDatabase().delete("TempBasals", "timeIndex" + " < '" + (new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) + "'", null);
-        log.debug("After TempBasals size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_TEMPBASALS));
-
-        log.debug("Before Treatments size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_TREATMENTS));
-        getWritableDatabase().delete("Treatments", "timeIndex" + " < '" + (new Date().getTime() - Constants.hoursToKeepInDatabase * 60 * 60 * 1000L) + "'", null);
-        log.debug("After Treatments size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), DATABASE_TREATMENTS));
-
-        log.debug("Before History size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), "DanaRHistory"));
-        getWritableDatabase().delete("History", "recordDate" + " < '" + (new Date().getTime() - Constants.daysToKeepHistoryInDatabase * 24 * 60 * 60 * 1000L) + "'", null);
-        log.debug("After History size: " + DatabaseUtils.queryNumEntries(getReadableDatabase(), "DanaRHistory"));
-    }
-
     public void resetDatabases() {
         try {
             TableUtils.dropTable(connectionSource, TempBasal.class, true);
@@ -113,6 +120,8 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
             TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
             TableUtils.createTableIfNotExists(connectionSource, DanaRHistoryRecord.class);
+            createIndexes(getWritableDatabase());
+            resetBgCache();
 //            MainApp.bus().post(new EventNewBG());
 //            MainApp.bus().post(new EventTreatmentChange());
 //            MainApp.bus().post(new EventTempBasalChange());
@@ -126,6 +135,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 
             TableUtils.dropTable(connectionSource, Treatment.class, true);
             TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
+            createIndexes(getWritableDatabase());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -147,11 +157,79 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         return getDao(DanaRHistoryRecord.class);
     }
 
+    public BgCache getBgCache() {
+        synchronized (bgCache) {
+            if (!bgCacheLoaded) {
+                long from = Clock.now() - Constants.hoursToKeepInMemory * 60 * 60 * 1000L;
+                bgCache.clear();
+                bgCache.addAll(getDataFromDb(from));
+                bgCache.setCoveredFrom(from);
+                bgCacheLoaded = true;
+                log.debug("BgCache loaded: " + bgCache.size() + " readings");
+            }
+        }
+        return bgCache;
+    }
+
+    private void resetBgCache() {
+        synchronized (bgCache) {
+            bgCache.clear();
+            bgCacheLoaded = false;
+        }
+    }
+
+    // Added after commit so cache never contains rolled back readings
+    private void addToBgCache(List<BgReading> bgReadings) {
+        synchronized (bgCache) {
+            if (bgCacheLoaded)
+                bgCache.addAll(bgReadings);
+        }
+    }
+
+    public void createBgReadingIfNotExists(BgReading bgReading) throws SQLException {
+        getDaoBgReadings().createIfNotExists(bgReading);
+        List<BgReading> bgReadings = new ArrayList<BgReading>(1);
+        bgReadings.add(bgReading);
+        addToBgCache(bgReadings);
+    }
+
+    /*
+     * Store readings in one transaction, returns number of readings not stored before
+     */
+    public int createBgReadingsIfNotExists(final List<BgReading> bgReadings) throws SQLException {
+        final Dao<BgReading, Long> daoBgReadings = getDaoBgReadings();
+        try {
+            int created = daoBgReadings.callBatchTasks(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int created = 0;
+                    for (BgReading bgReading : bgReadings) {
+                        if (!daoBgReadings.idExists(bgReading.timeIndex)) {
+                            daoBgReadings.create(bgReading);
+                            created++;
+                        }
+                    }
+                    return created;
+                }
+            });
+            addToBgCache(bgReadings);
+            return created;
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
     /*
      * Return last BgReading from database or null if db is empty
      */
     @Nullable
     public BgReading lastBg() {
+        BgReading cached = getBgCache().getLast();
+        if (cached != null)
+            return cached;
+
         List<BgReading> bgList = null;
 
         try {
@@ -183,13 +261,20 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         if (lastBg == null)
             return null;
 
-        if (lastBg.timeIndex > new Date().getTime() - 9 * 60 * 1000)
+        if (lastBg.timeIndex > Clock.now() - 9 * 60 * 1000)
             return lastBg;
 
         return null;
     }
 
     public List<BgReading> getDataFromTime(long mills) {
+        BgCache cache = getBgCache();
+        if (cache.covers(mills))
+            return cache.getFrom(mills);
+        return getDataFromDb(mills);
+    }
+
+    private List<BgReading> getDataFromDb(long mills) {
         try {
             Dao<BgReading, Long> daoBgreadings = getDaoBgReadings();
             List<BgReading> bgReadings;
@@ -213,6 +298,10 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
         public double glucose = 0d;
         public double delta = 0d;
         public double avgdelta = 0d;
+        public double short_avgdelta = 0d;
+        public double long_avgdelta = 0d;
+        public double slope = 0d; // mg/dl per 5 min from linear regression
+        public double noise = 0d; // mg/dl, deviation of readings from regression line
 
         @Override
         public String toString() {
@@ -237,6 +326,10 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             dest.writeDouble(avgdelta);
             dest.writeDouble(delta);
             dest.writeDouble(glucose);
+            dest.writeDouble(short_avgdelta);
+            dest.writeDouble(long_avgdelta);
+            dest.writeDouble(slope);
+            dest.writeDouble(noise);
         }
 
         public final Parcelable.Creator<GlucoseStatus> CREATOR = new Parcelable.Creator<GlucoseStatus>() {
@@ -253,6 +346,10 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             avgdelta = in.readDouble();
             delta = in.readDouble();
             glucose = in.readDouble();
+            short_avgdelta = in.readDouble();
+            long_avgdelta = in.readDouble();
+            slope = in.readDouble();
+            noise = in.readDouble();
         }
 
         public GlucoseStatus() {
@@ -268,6 +365,10 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             this.glucose = Round.roundTo(this.glucose, 0.1);
             this.delta = Round.roundTo(this.delta, 0.01);
             this.avgdelta = Round.roundTo(this.avgdelta, 0.01);
+            this.short_avgdelta = Round.roundTo(this.short_avgdelta, 0.01);
+            this.long_avgdelta = Round.roundTo(this.long_avgdelta, 0.01);
+            this.slope = Round.roundTo(this.slope, 0.01);
+            this.noise = Round.roundTo(this.noise, 0.01);
             return this;
         }
     }
@@ -275,57 +376,8 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     @Nullable
     public GlucoseStatus getGlucoseStatusData() {
         GlucoseStatus result = new GlucoseStatus();
-        try {
-
-            Dao<BgReading, Long> daoBgreadings = null;
-            daoBgreadings = getDaoBgReadings();
-            List<BgReading> bgReadings;
-            QueryBuilder<BgReading, Long> queryBuilder = daoBgreadings.queryBuilder();
-            queryBuilder.orderBy("timeIndex", false);
-            queryBuilder.where().gt("value", 38);
-            queryBuilder.limit(4l);
-            PreparedQuery<BgReading> preparedQuery = queryBuilder.prepare();
-            bgReadings = daoBgreadings.query(preparedQuery);
-
-            int sizeRecords = bgReadings.size();
-
-            if (sizeRecords < 4 || bgReadings.get(sizeRecords - 4).timeIndex < new Date().getTime() - 7 * 60 * 1000L) {
-                return null;
-            }
-
-            double minutes = 5;
-            double change;
-            double avg;
-
-            if (bgReadings.size() > 3) {
-                BgReading now = bgReadings.get(sizeRecords - 4);
-                BgReading last = bgReadings.get(sizeRecords - 3);
-                BgReading last1 = bgReadings.get(sizeRecords - 2);
-                BgReading last2 = bgReadings.get(sizeRecords - 1);
-                if (last2.value > 38) {
-                    minutes = (now.timeIndex - last2.timeIndex)/(60d*1000);
-                    change = now.value - last2.value;
-                } else if (last1.value > 38) {
-                    minutes = (now.timeIndex - last1.timeIndex)/(60d*1000);;
-                    change = now.value - last1.value;
-                } else if (last.value > 38) {
-                    minutes = (now.timeIndex - last.timeIndex)/(60d*1000);
-                    change = now.value - last.value;
-                } else {
-                    change = 0;
-                }
-                //multiply by 5 to get the same unit as delta, i.e. mg/dL/5m
-                avg = change / minutes * 5;
-
-                result.glucose = now.value;
-                result.delta = (now.value - last.value)*5*60*1000/(now.getTimeIndex() - last.getTimeIndex());
-                result.avgdelta = avg;
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (!GlucoseStatusCalculator.calculate(getBgCache(), Clock.now(), result))
             return null;
-        }
-        result.round();
-        return result;
+        return result.round();
     }
 }
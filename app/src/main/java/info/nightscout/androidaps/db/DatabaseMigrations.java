@@ -0,0 +1,57 @@
+package info.nightscout.androidaps.db;
+
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+
+/**
+ * Upgrades database schema in place so stored data survives version changes
+ *
+ * To change schema: bump DatabaseHelper.DATABASE_VERSION, change entities (used by onCreate)
+ * and add statements doing the same change to existing tables to MIGRATIONS.
+ * Statements of released versions must not be changed later.
+ */
+public class DatabaseMigrations {
+    private static Logger log = LoggerFactory.getLogger(DatabaseMigrations.class);
+
+    // Schema of older versions is unknown, they are recreated
+    public static final int FIRST_MIGRATABLE_VERSION = 5;
+
+    // MIGRATIONS[i] upgrades from FIRST_MIGRATABLE_VERSION + i to next version
+    private static final String[][] MIGRATIONS = {
+            // 5 -> 6: indexes
+            {
+                    "CREATE INDEX IF NOT EXISTS `TempBasals_isExtended_timeIndex_idx` ON `TempBasals` (`isExtended`, `timeIndex`)",
+                    "CREATE INDEX IF NOT EXISTS `Treatments__id_idx` ON `Treatments` (`_id`)",
+                    "CREATE INDEX IF NOT EXISTS `DanaRHistory_recordCode_recordDate_idx` ON `DanaRHistory` (`recordCode`, `recordDate`)",
+            },
+    };
+
+    public static int getLatestVersion() {
+        return FIRST_MIGRATABLE_VERSION + MIGRATIONS.length;
+    }
+
+    public static boolean canMigrate(int oldVersion, int newVersion) {
+        return oldVersion >= FIRST_MIGRATABLE_VERSION && oldVersion <= newVersion && newVersion <= getLatestVersion();
+    }
+
+    // SQLiteOpenHelper runs onUpgrade in a transaction, so failed upgrade leaves old version untouched
+    public static void migrate(ConnectionSource connectionSource, int oldVersion, int newVersion) throws SQLException {
+        if (!canMigrate(oldVersion, newVersion))
+            throw new SQLException("Can't migrate database from version " + oldVersion + " to " + newVersion);
+        DatabaseConnection connection = connectionSource.getReadWriteConnection();
+        try {
+            for (int version = oldVersion; version < newVersion; version++) {
+                log.debug("Migrating database from version " + version + " to " + (version + 1));
+                for (String statement : MIGRATIONS[version - FIRST_MIGRATABLE_VERSION])
+                    connection.executeStatement(statement, DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            }
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+    }
+}
@@ -8,10 +8,13 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Date;
 
+import info.nightscout.androidaps.Config;
 import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.data.InsulinCurve;
 import info.nightscout.androidaps.data.Iob;
 import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 import info.nightscout.utils.DecimalFormatter;
 
@@ -53,76 +56,142 @@ public class TempBasal {
 
 
     public IobTotal iobCalc(Date time) {
-        IobTotal result = new IobTotal();
         NSProfile profile = MainApp.getConfigBuilder().getActiveProfile().getProfile();
 
         if (profile == null)
-            return result;
+            return new IobTotal();
 
-        int realDuration = getRealDuration();
+        return iobCalc(time.getTime(), profile.getBasal(NSProfile.secondsFromMidnight(time)), profile.getDia());
+    }
 
-        if (realDuration > 0) {
-            Double netBasalRate = 0d;
-            Double basalRate = profile.getBasal(profile.secondsFromMidnight(time));
-            Double tempBolusSize = 0.05;
+    // Delivery is counted until time, so it can be used for any time in the past (replay)
+    public IobTotal iobCalc(long time, double basalRate, double dia) {
+        IobTotal result = new IobTotal();
 
-            if (isExtended) {
-                netBasalRate = this.absolute;
-            } else {
-                if (this.isAbsolute) {
-                    netBasalRate = this.absolute - basalRate;
-                } else {
-                    netBasalRate = (this.percent - 100) / 100d * basalRate;
-                }
-            }
+        int realDuration = (int) ((getTimeEnd(time) - timeStart.getTime()) / 60 / 1000);
+
+        if (realDuration > 0) {
+            double netBasalRate = getNetBasalRate(basalRate);
 
             result.netRatio = netBasalRate;
-            Double netBasalAmount = Math.round(netBasalRate * realDuration * 10 / 6) / 100d;
-            result.netInsulin = netBasalAmount;
-            if (netBasalAmount < 0.1) {
-                tempBolusSize = 0.01;
+            result.netInsulin = Math.round(netBasalRate * realDuration * 10 / 6) / 100d;
+            iobCalcContinuous(result, timeStart.getTime(), realDuration, time, netBasalRate, dia);
+
+            if (Config.verifyTempBasalIob && isDiscreteExact(realDuration, netBasalRate)) {
+                IobTotal discrete = new IobTotal();
+                iobCalcDiscrete(discrete, timeStart.getTime(), realDuration, time, netBasalRate, dia);
+                if (Math.abs(discrete.basaliob - result.basaliob) > IOB_VERIFY_TOLERANCE
+                        || Math.abs(discrete.netbasalinsulin - result.netbasalinsulin) > 2 * IOB_VERIFY_TOLERANCE)
+                    log.error("Temp basal IOB mismatch: continuous=" + result.basaliob + "/" + result.netbasalinsulin
+                            + " discrete=" + discrete.basaliob + "/" + discrete.netbasalinsulin + " " + log());
             }
-            if (netBasalRate < 0) {
-                tempBolusSize = -tempBolusSize;
+        }
+        return result;
+    }
+
+    // Difference to basalRate in U/h (for extended bolus its rate)
+    public double getNetBasalRate(double basalRate) {
+        if (isExtended) {
+            return this.absolute;
+        } else {
+            if (this.isAbsolute) {
+                return this.absolute - basalRate;
+            } else {
+                return (this.percent - 100) / 100d * basalRate;
             }
-            Long tempBolusCount = Math.round(netBasalAmount / tempBolusSize);
-            if (tempBolusCount > 0) {
-                Long tempBolusSpacing = realDuration / tempBolusCount;
-                for (Long j = 0l; j < tempBolusCount; j++) {
-                    Treatment tempBolusPart = new Treatment();
-                    tempBolusPart.insulin = tempBolusSize;
-                    Long date = this.timeStart.getTime() + j * tempBolusSpacing * 60 * 1000;
-                    tempBolusPart.created_at = new Date(date);
-
-                    Iob aIOB = tempBolusPart.iobCalc(time, profile.getDia());
-                    result.basaliob += aIOB.iobContrib;
-                    result.activity += aIOB.activityContrib;
-                    Double dia_ago = time.getTime() - profile.getDia() * 60 * 60 * 1000;
-                    if (date > dia_ago && date <= time.getTime()) {
-                        result.netbasalinsulin += tempBolusPart.insulin;
-                        if (tempBolusPart.insulin > 0) {
-                            result.hightempinsulin += tempBolusPart.insulin;
-                        }
+        }
+    }
+
+    // Difference in U tolerated between continuous and discrete calculation
+    // netbasalinsulin may differ by one more bolus part at DIA boundary
+    static final double IOB_VERIFY_TOLERANCE = 0.05d;
+
+    /*
+     * Temp basal IOB as integral of insulin curve over the infusion interval
+     * Insulin is delivered continuously at netBasalRate from start to min(start + realDuration, time)
+     */
+    static void iobCalcContinuous(IobTotal result, long start, int realDuration, long time, double netBasalRate, double dia) {
+        long end = Math.min(start + realDuration * 60 * 1000L, time);
+        if (end <= start || netBasalRate == 0d)
+            return;
+
+        InsulinCurve curve = InsulinCurve.get(dia);
+        double ratePerMinute = netBasalRate / 60d;
+        result.basaliob += ratePerMinute * (curve.iobIntegral(time - start) - curve.iobIntegral(time - end));
+        result.activity += ratePerMinute * (curve.activityIntegral(time - start) - curve.activityIntegral(time - end));
+
+        long diaAgo = time - (long) (dia * 60 * 60 * 1000L);
+        long fromDia = Math.max(start, diaAgo);
+        if (end > fromDia) {
+            double insulin = ratePerMinute * (end - fromDia) / 1000d / 60d;
+            result.netbasalinsulin += insulin;
+            if (insulin > 0)
+                result.hightempinsulin += insulin;
+        }
+    }
+
+    // Reference spaces boluses by whole minutes, it is exact only if they fit into duration without remainder
+    // otherwise boluses are moved towards start (all of them to start if there are more boluses than minutes)
+    static boolean isDiscreteExact(int realDuration, double netBasalRate) {
+        double netBasalAmount = Math.round(netBasalRate * realDuration * 10 / 6) / 100d;
+        double tempBolusSize = netBasalAmount < 0.1 ? 0.01 : 0.05;
+        long tempBolusCount = Math.round(Math.abs(netBasalAmount) / tempBolusSize);
+        return tempBolusCount > 0 && realDuration % tempBolusCount == 0;
+    }
+
+    /*
+     * Original calculation splitting temp basal to small boluses
+     * Kept unchanged as reference for verification of iobCalcContinuous
+     */
+    static void iobCalcDiscrete(IobTotal result, long start, int realDuration, long time, double netBasalRate, double dia) {
+        Double tempBolusSize = 0.05;
+        Double netBasalAmount = Math.round(netBasalRate * realDuration * 10 / 6) / 100d;
+        if (netBasalAmount < 0.1) {
+            tempBolusSize = 0.01;
+        }
+        if (netBasalRate < 0) {
+            tempBolusSize = -tempBolusSize;
+        }
+        Long tempBolusCount = Math.round(netBasalAmount / tempBolusSize);
+        if (tempBolusCount > 0) {
+            InsulinCurve curve = InsulinCurve.get(dia);
+            Long tempBolusSpacing = realDuration / tempBolusCount;
+            for (Long j = 0l; j < tempBolusCount; j++) {
+                Treatment tempBolusPart = new Treatment();
+                tempBolusPart.insulin = tempBolusSize;
+                Long date = start + j * tempBolusSpacing * 60 * 1000;
+                tempBolusPart.created_at = new Date(date);
+
+                Iob aIOB = tempBolusPart.iobCalc(time, curve);
+                result.basaliob += aIOB.iobContrib;
+                result.activity += aIOB.activityContrib;
+                Double dia_ago = time - dia * 60 * 60 * 1000;
+                if (date > dia_ago && date <= time) {
+                    result.netbasalinsulin += tempBolusPart.insulin;
+                    if (tempBolusPart.insulin > 0) {
+                        result.hightempinsulin += tempBolusPart.insulin;
                     }
                 }
             }
         }
-        return result;
     }
 
     // Determine end of basal
     public Date getTimeEnd() {
-        Date tempBasalTimePlannedEnd = getPlannedTimeEnd();
-        Date now = new Date();
+        return new Date(getTimeEnd(Clock.now()));
+    }
+
+    public long getTimeEnd(long now) {
+        long end = timeStart.getTime() + 60 * 1_000L * duration;
 
-        if (timeEnd != null && timeEnd.getTime() < tempBasalTimePlannedEnd.getTime()) {
-            tempBasalTimePlannedEnd = timeEnd;
+        if (timeEnd != null && timeEnd.getTime() < end) {
+            end = timeEnd.getTime();
         }
 
-        if (now.getTime() < tempBasalTimePlannedEnd.getTime())
-            tempBasalTimePlannedEnd = now;
+        if (now < end)
+            end = now;
 
-        return tempBasalTimePlannedEnd;
+        return end;
     }
 
     public Date getPlannedTimeEnd() {
@@ -130,22 +199,22 @@ public class TempBasal {
     }
 
     public int getRealDuration() {
-        Long msecs = getTimeEnd().getTime() - timeStart.getTime();
+        long msecs = getTimeEnd(Clock.now()) - timeStart.getTime();
         return (int) (msecs / 60 / 1000);
     }
 
     public long getMillisecondsFromStart() {
-        return new Date().getTime() - timeStart.getTime();
+        return Clock.now() - timeStart.getTime();
     }
 
     public int getPlannedRemainingMinutes() {
         if (timeEnd != null) return 0;
-        long remainingMin = (getPlannedTimeEnd().getTime() - new Date().getTime()) / 1000 / 60;
+        long remainingMin = (timeStart.getTime() + 60 * 1_000L * duration - Clock.now()) / 1000 / 60;
         return (remainingMin < 0) ? 0 : (int) remainingMin;
     }
 
     public boolean isInProgress() {
-        return isInProgress(new Date());
+        return isInProgress(Clock.date());
     }
 
     public double tempBasalConvertedToAbsolute(Date time) {
@@ -12,10 +12,12 @@ import java.util.Date;
 import java.util.List;
 
 import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.data.InsulinCurve;
 import info.nightscout.androidaps.data.Iob;
 import info.nightscout.androidaps.plugins.ConfigBuilder.ConfigBuilderPlugin;
 import info.nightscout.androidaps.plugins.Overview.graphExtensions.DataPointWithLabelInterface;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 import info.nightscout.utils.DecimalFormatter;
 
@@ -58,33 +60,22 @@ public class Treatment implements DataPointWithLabelInterface {
     }
 
     public Iob iobCalc(Date time, Double dia) {
-        Iob result = new Iob();
+        return iobCalc(time.getTime(), InsulinCurve.get(dia));
+    }
 
-        Double scaleFactor = 3.0 / dia;
-        Double peak = 75d;
-        Double end = 180d;
+    public Iob iobCalc(long time, InsulinCurve curve) {
+        Iob result = new Iob();
 
         if (this.insulin != 0d) {
-            Long bolusTime = this.created_at.getTime();
-            Double minAgo = scaleFactor * (time.getTime() - bolusTime) / 1000d / 60d;
-
-            if (minAgo < peak) {
-                Double x1 = minAgo / 5d + 1;
-                result.iobContrib = this.insulin * (1 - 0.001852 * x1 * x1 + 0.001852 * x1);
-                // units: BG (mg/dL)  = (BG/U) *    U insulin     * scalar
-                result.activityContrib = this.insulin * (2 / dia / 60 / peak) * minAgo;
-
-            } else if (minAgo < end) {
-                Double x2 = (minAgo - 75) / 5;
-                result.iobContrib = this.insulin * (0.001323 * x2 * x2 - 0.054233 * x2 + 0.55556);
-                result.activityContrib = this.insulin * (2 / dia / 60 - (minAgo - peak) * 2 / dia / 60 / (60 * 3 - peak));
-            }
+            long msAgo = time - this.created_at.getTime();
+            result.iobContrib = this.insulin * curve.iob(msAgo);
+            result.activityContrib = this.insulin * curve.activity(msAgo);
         }
         return result;
     }
 
     public long getMillisecondsFromStart() {
-        return new Date().getTime() - created_at.getTime();
+        return Clock.now() - created_at.getTime();
     }
 
     public String log() {
@@ -1,7 +1,24 @@
 package info.nightscout.androidaps.events;
 
+import info.nightscout.androidaps.db.Treatment;
+
 /**
  * Created by mike on 04.06.2016.
  */
 public class EventTreatmentChange {
+    // if both are null all treatments must be reloaded
+    public Treatment added = null;
+    public Treatment removed = null;
+
+    public EventTreatmentChange() {
+    }
+
+    public EventTreatmentChange(Treatment added, Treatment removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public boolean isIncremental() {
+        return added != null || removed != null;
+    }
 }
@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.interfaces;
 
 import java.util.Date;
+import java.util.List;
 
 import info.nightscout.androidaps.db.TempBasal;
 import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
@@ -14,4 +15,6 @@ public interface TempBasalsInterface {
 
     TempBasal getTempBasal (Date time);
     TempBasal getExtendedBolus (Date time);
+
+    List<TempBasal> getMergedList();
 }
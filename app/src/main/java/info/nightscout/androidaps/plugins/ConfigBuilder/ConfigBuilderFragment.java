@@ -15,6 +15,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
@@ -138,7 +139,7 @@ public class ConfigBuilderFragment extends Fragment implements FragmentBase {
         final private int type;
 
         public PluginCustomAdapter(Context context, int textViewResourceId,
-                                   ArrayList<PluginBase> pluginList, int type) {
+                                   List<PluginBase> pluginList, int type) {
             super(context, textViewResourceId, pluginList);
             this.pluginList = new ArrayList<PluginBase>();
             this.pluginList.addAll(pluginList);
@@ -248,7 +249,7 @@ public class ConfigBuilderFragment extends Fragment implements FragmentBase {
     }
 
     void onEnabledCategoryChanged(PluginBase changedPlugin, int type) {
-        ArrayList<PluginBase> pluginsInCategory = null;
+        List<PluginBase> pluginsInCategory = null;
         switch (type) {
             // Multiple selection allowed
             case PluginBase.GENERAL:
@@ -19,11 +19,15 @@ import org.slf4j.LoggerFactory;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import info.nightscout.androidaps.Config;
+import info.nightscout.androidaps.Constants;
 import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.PluginRegistry;
 import info.nightscout.androidaps.R;
 import info.nightscout.androidaps.Services.Intents;
+import info.nightscout.androidaps.data.ConstraintSet;
 import info.nightscout.androidaps.data.PumpEnactResult;
 import info.nightscout.androidaps.db.TempBasal;
 import info.nightscout.androidaps.db.Treatment;
@@ -52,6 +56,7 @@ import info.nightscout.androidaps.plugins.Overview.events.EventNewNotification;
 import info.nightscout.androidaps.plugins.SmsCommunicator.SmsCommunicatorPlugin;
 import info.nightscout.client.data.DbLogger;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 
 /**
@@ -77,6 +82,10 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
 
     static Date lastDeviceStatusUpload = new Date(0);
 
+    // set while loop cycle is running so all its parts see the same limits
+    private volatile ConstraintSet cycleConstraints = null;
+    private volatile ConstraintSet lastConstraints = null;
+
     PowerManager.WakeLock mWakeLock;
 
     public ConfigBuilderPlugin() {
@@ -188,6 +197,17 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
         return activeTempBasals;
     }
 
+    /*
+     * Treatments and temp basals older than this are not needed for IOB calculation nor shown in overview
+     * IOB graph needs also DIA before the first hour shown
+     */
+    public static long getTreatmentsWindowMsecs() {
+        double hours = Constants.hoursToShowInOverview;
+        if (activeProfile != null && activeProfile.getProfile() != null)
+            hours += activeProfile.getProfile().getDia();
+        return (long) (hours * 60 * 60 * 1000L);
+    }
+
     public static APSInterface getActiveAPS() {
         return activeAPS;
     }
@@ -213,7 +233,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     }
 
     private void verifySelectionInCategories() {
-        ArrayList<PluginBase> pluginsInCategory;
+        List<PluginBase> pluginsInCategory;
 
         // PluginBase.APS
         pluginsInCategory = MainApp.getSpecificPluginsListByInterface(APSInterface.class);
@@ -298,7 +318,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     }
 
     @Nullable
-    private PluginBase getTheOneEnabledInArray(ArrayList<PluginBase> pluginsInCategory, int type) {
+    private PluginBase getTheOneEnabledInArray(List<PluginBase> pluginsInCategory, int type) {
         PluginBase found = null;
         for (PluginBase p : pluginsInCategory) {
             if (p.isEnabled(type) && found == null) {
@@ -421,7 +441,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             t.insulin = result.bolusDelivered;
             if (carbTime == 0)
                 t.carbs = (double) result.carbsDelivered; // with different carbTime record will come back from nightscout
-            t.created_at = new Date();
+            t.created_at = Clock.date();
             t.mealBolus = result.carbsDelivered > 0;
             try {
                 MainApp.getDbHelper().getDaoTreatments().create(t);
@@ -473,7 +493,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             Treatment t = new Treatment();
             t.insulin = result.bolusDelivered;
             t.carbs = (double) result.carbsDelivered;
-            t.created_at = new Date();
+            t.created_at = Clock.date();
             t.mealBolus = t.carbs > 0;
             try {
                 MainApp.getDbHelper().getDaoTreatments().create(t);
@@ -482,7 +502,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             }
             t.setTimeIndex(t.getTimeIndex());
             t.sendToNSClient();
-            MainApp.bus().post(new EventTreatmentChange());
+            MainApp.bus().post(new EventTreatmentChange(t, null));
         }
         mWakeLock.release();
         return result;
@@ -653,6 +673,48 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
         }
     }
 
+    /**
+     * Constraint set
+     **/
+    private static final ConstraintsInterface[] NO_CONSTRAINTS = new ConstraintsInterface[0];
+
+    // Empty before plugins are registered, as the old lookup
+    private static ConstraintsInterface[] constraints() {
+        PluginRegistry registry = MainApp.getPluginRegistry();
+        return registry != null ? registry.constraints() : NO_CONSTRAINTS;
+    }
+
+    public ConstraintSet evaluateConstraints() {
+        ConstraintSet constraints = ConstraintSet.evaluate(constraints(), Clock.now());
+        lastConstraints = constraints;
+        if (Config.logConstraintsChanges)
+            log.debug(constraints.toString());
+        return constraints;
+    }
+
+    // Evaluated once at the start of loop cycle, used until endConstraintsCycle()
+    public ConstraintSet beginConstraintsCycle() {
+        ConstraintSet constraints = evaluateConstraints();
+        cycleConstraints = constraints;
+        return constraints;
+    }
+
+    public void endConstraintsCycle() {
+        cycleConstraints = null;
+    }
+
+    // Set of running loop cycle or new one
+    public ConstraintSet getConstraintSet() {
+        ConstraintSet constraints = cycleConstraints;
+        return constraints != null ? constraints : evaluateConstraints();
+    }
+
+    // Last evaluated set, to show what limited values
+    @Nullable
+    public ConstraintSet getLastConstraintSet() {
+        return lastConstraints;
+    }
+
     /**
      * Constraints interface
      **/
@@ -660,10 +722,8 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     public boolean isLoopEnabled() {
         boolean result = true;
 
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             result = result && constrain.isLoopEnabled();
         }
         return result;
@@ -673,10 +733,8 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     public boolean isClosedModeEnabled() {
         boolean result = true;
 
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             result = result && constrain.isClosedModeEnabled();
         }
         return result;
@@ -686,10 +744,8 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     public boolean isAutosensModeEnabled() {
         boolean result = true;
 
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             result = result && constrain.isAutosensModeEnabled();
         }
         return result;
@@ -699,22 +755,19 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
     public boolean isAMAModeEnabled() {
         boolean result = true;
 
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             result = result && constrain.isAMAModeEnabled();
         }
         return result;
     }
 
+    // Only finding constraint plugins is allocation free, ConstraintsInterface still takes and returns boxed values
     @Override
     public Double applyBasalConstraints(Double absoluteRate) {
-        Double rateAfterConstrain = absoluteRate;
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        double rateAfterConstrain = absoluteRate;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             rateAfterConstrain = Math.min(constrain.applyBasalConstraints(absoluteRate), rateAfterConstrain);
         }
         return rateAfterConstrain;
@@ -722,11 +775,9 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
 
     @Override
     public Integer applyBasalConstraints(Integer percentRate) {
-        Integer rateAfterConstrain = percentRate;
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        int rateAfterConstrain = percentRate;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             rateAfterConstrain = Math.min(constrain.applyBasalConstraints(percentRate), rateAfterConstrain);
         }
         return rateAfterConstrain;
@@ -734,11 +785,9 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
 
     @Override
     public Double applyBolusConstraints(Double insulin) {
-        Double insulinAfterConstrain = insulin;
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        double insulinAfterConstrain = insulin;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             insulinAfterConstrain = Math.min(constrain.applyBolusConstraints(insulin), insulinAfterConstrain);
         }
         return insulinAfterConstrain;
@@ -746,11 +795,9 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
 
     @Override
     public Integer applyCarbsConstraints(Integer carbs) {
-        Integer carbsAfterConstrain = carbs;
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        int carbsAfterConstrain = carbs;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             carbsAfterConstrain = Math.min(constrain.applyCarbsConstraints(carbs), carbsAfterConstrain);
         }
         return carbsAfterConstrain;
@@ -758,11 +805,9 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
 
     @Override
     public Double applyMaxIOBConstraints(Double maxIob) {
-        Double maxIobAfterConstrain = maxIob;
-        ArrayList<PluginBase> constraintsPlugins = MainApp.getSpecificPluginsListByInterface(ConstraintsInterface.class);
-        for (PluginBase p : constraintsPlugins) {
-            ConstraintsInterface constrain = (ConstraintsInterface) p;
-            if (!p.isEnabled(PluginBase.CONSTRAINTS)) continue;
+        double maxIobAfterConstrain = maxIob;
+        for (ConstraintsInterface constrain : constraints()) {
+            if (!((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) continue;
             maxIobAfterConstrain = Math.min(constrain.applyMaxIOBConstraints(maxIob), maxIobAfterConstrain);
         }
         return maxIobAfterConstrain;
@@ -780,7 +825,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
                     e.printStackTrace();
                 }
                 // if status not uploaded, upload pump status only
-                if (new Date().getTime() - lastDeviceStatusUpload.getTime() > 120 * 1000L) {
+                if (Clock.now() - lastDeviceStatusUpload.getTime() > 120 * 1000L) {
                     uploadDeviceStatus();
                 }
             }
@@ -795,7 +840,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             data.put("eventType", "Temp Basal");
             data.put("duration", durationInMinutes);
             data.put("absolute", absolute);
-            data.put("created_at", DateUtil.toISOString(new Date()));
+            data.put("created_at", DateUtil.toISOString(Clock.date()));
             data.put("enteredBy", MainApp.instance().getString(R.string.app_name));
             data.put("notes", MainApp.sResources.getString(R.string.androidaps_tempbasalstartnote) + " " + absolute + "u/h " + durationInMinutes +" min"); // ECOR
             Bundle bundle = new Bundle();
@@ -825,7 +870,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
                 data.put("eventType", "Temp Basal");
                 data.put("duration", durationInMinutes);
                 data.put("percent", percent - 100);
-                data.put("created_at", DateUtil.toISOString(new Date()));
+                data.put("created_at", DateUtil.toISOString(Clock.date()));
                 data.put("enteredBy", MainApp.instance().getString(R.string.app_name));
                 data.put("notes", MainApp.sResources.getString(R.string.androidaps_tempbasalstartnote) + " " + percent + "% " + durationInMinutes +" min"); // ECOR
                 Bundle bundle = new Bundle();
@@ -848,7 +893,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             Context context = MainApp.instance().getApplicationContext();
             JSONObject data = new JSONObject();
             data.put("eventType", "Temp Basal");
-            data.put("created_at", DateUtil.toISOString(new Date()));
+            data.put("created_at", DateUtil.toISOString(Clock.date()));
             data.put("enteredBy", MainApp.instance().getString(R.string.app_name));
             data.put("notes", MainApp.sResources.getString(R.string.androidaps_tempbasalendnote)); // ECOR
             Bundle bundle = new Bundle();
@@ -875,7 +920,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
             data.put("splitExt", 100);
             data.put("enteredinsulin", insulin);
             data.put("relative", insulin);
-            data.put("created_at", DateUtil.toISOString(new Date()));
+            data.put("created_at", DateUtil.toISOString(Clock.date()));
             data.put("enteredBy", MainApp.instance().getString(R.string.app_name));
             Bundle bundle = new Bundle();
             bundle.putString("action", "dbAdd");
@@ -895,7 +940,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
         DeviceStatus deviceStatus = new DeviceStatus();
         try {
             LoopPlugin.LastRun lastRun = LoopPlugin.lastRun;
-            if (lastRun != null && lastRun.lastAPSRun.getTime() > new Date().getTime() - 60 * 1000L) {
+            if (lastRun != null && lastRun.lastAPSRun.getTime() > Clock.now() - 60 * 1000L) {
                 // do not send if result is older than 1 min
                 APSResult apsResult = lastRun.request;
                 apsResult.json().put("timestamp", DateUtil.toISOString(lastRun.lastAPSRun));
@@ -923,10 +968,10 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
                 deviceStatus.device = "openaps://" + deviceID();
                 deviceStatus.pump = getJSONStatus();
 
-                deviceStatus.created_at = DateUtil.toISOString(new Date());
+                deviceStatus.created_at = DateUtil.toISOString(Clock.date());
 
                 deviceStatus.sendToNSClient();
-                lastDeviceStatusUpload = new Date();
+                lastDeviceStatusUpload = Clock.date();
             }
         } catch (JSONException e) {
             e.printStackTrace();
@@ -989,7 +1034,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
         JSONObject data = new JSONObject();
         try {
             data.put("eventType", "Announcement");
-            data.put("created_at", DateUtil.toISOString(new Date()));
+            data.put("created_at", DateUtil.toISOString(Clock.date()));
             data.put("notes", error);
             data.put("isAnnouncement", true);
         } catch (JSONException e) {
@@ -1011,7 +1056,7 @@ public class ConfigBuilderPlugin implements PluginBase, PumpInterface, Constrain
         JSONObject data = new JSONObject();
         try {
             data.put("eventType", "Note");
-            data.put("created_at", DateUtil.toISOString(new Date()));
+            data.put("created_at", DateUtil.toISOString(Clock.date()));
             data.put("notes", MainApp.sResources.getString(R.string.androidaps_start));
         } catch (JSONException e) {
             e.printStackTrace();
@@ -0,0 +1,38 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * SerialLink over RFCOMM socket
+ */
+public class BluetoothSerialLink implements SerialLink {
+    private final BluetoothSocket mRfCommSocket;
+
+    public BluetoothSerialLink(BluetoothSocket rfcommSocket) {
+        mRfCommSocket = rfcommSocket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mRfCommSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mRfCommSocket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mRfCommSocket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRfCommSocket.close();
+    }
+}
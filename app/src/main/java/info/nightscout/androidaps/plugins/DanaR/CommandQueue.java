@@ -0,0 +1,283 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import info.nightscout.androidaps.plugins.DanaR.comm.MessageBase;
+
+/**
+ * Asynchronous request queue for DanaR commands
+ *
+ * Callers submit messages and get a future, so whole batch can be queued at once and awaited at the end.
+ * Pump handles one command at a time: writer thread sends next request when reply to the previous one
+ * (frame with the same command) arrives or after timeout. Instead of fixed sleep the gap between last frame
+ * answering a request and the next request follows average response time of the pump, bounded by MIN_GAP and MAX_GAP.
+ * Response times are recorded in histogram per command.
+ */
+public class CommandQueue {
+    private static Logger log = LoggerFactory.getLogger(CommandQueue.class);
+
+    public static final long REPLY_TIMEOUT = 5000;
+    public static final long MIN_GAP = 20;
+    public static final long MAX_GAP = 200;
+
+    public interface Transport {
+        void write(MessageBase message) throws IOException;
+    }
+
+    public static class Request implements Future<MessageBase> {
+        public final MessageBase message;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled = false;
+        private volatile boolean written = false;
+        private long sentNanos = 0;
+
+        Request(MessageBase message) {
+            this.message = message;
+        }
+
+        void finish() {
+            done.countDown();
+        }
+
+        // Only request not written yet can be cancelled
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (written || isDone())
+                return false;
+            cancelled = true;
+            finish();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public MessageBase get() throws InterruptedException {
+            done.await();
+            return message;
+        }
+
+        @Override
+        public MessageBase get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return message;
+        }
+
+        // Waits until reply is received or request failed, returns true if received
+        public boolean await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                log.error("await InterruptedException", e);
+                Thread.currentThread().interrupt();
+            }
+            return message.received;
+        }
+    }
+
+    private final Transport transport;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile long replyTimeout = REPLY_TIMEOUT;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private Request inFlight = null;
+    private MessageBase lastSent = null; // pump may send more frames with the same command (history)
+    private long lastFrameNanos = 0;
+    private double averageResponse = MAX_GAP;
+    private long requests = 0;
+    private long timeouts = 0;
+    private final Map<Integer, LatencyHistogram> latency = new TreeMap<>();
+
+    public CommandQueue(Transport transport) {
+        this.transport = transport;
+        lastFrameNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MAX_GAP);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, CommandQueue.class.getSimpleName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setReplyTimeout(long replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    public Request submit(MessageBase message) {
+        Request request = new Request(message);
+        if (!running) {
+            request.finish();
+            return request;
+        }
+        queue.add(request);
+        // shutdown may have drained queue in the meantime
+        if (!running && queue.remove(request))
+            request.finish();
+        return request;
+    }
+
+    // Request finished without sending, for callers which can't send at all
+    public static Request rejected(MessageBase message) {
+        Request request = new Request(message);
+        request.finish();
+        return request;
+    }
+
+    private void writeLoop() {
+        Request request = null;
+        try {
+            while (running) {
+                request = queue.take();
+                if (request.isCancelled())
+                    continue;
+                waitGap();
+                synchronized (lock) {
+                    inFlight = request;
+                    lastSent = request.message;
+                    request.written = true;
+                    request.sentNanos = System.nanoTime();
+                    requests++;
+                }
+                try {
+                    transport.write(request.message);
+                } catch (IOException e) {
+                    log.error("sendMessage write exception: ", e);
+                    e.printStackTrace();
+                }
+                if (!request.done.await(replyTimeout, TimeUnit.MILLISECONDS)) {
+                    synchronized (lock) {
+                        if (inFlight == request) {
+                            inFlight = null;
+                            timeouts++;
+                            // pump is not keeping up, go back to safe gap
+                            averageResponse = MAX_GAP;
+                            lastFrameNanos = System.nanoTime();
+                        }
+                    }
+                    log.warn("Reply not received " + request.message.getMessageName() + " after " + (System.nanoTime() - request.sentNanos) / 1000000 + " ms");
+                    request.finish();
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+        // taken while waiting for gap, neither queued nor in flight
+        if (request != null)
+            request.finish();
+        failAll();
+    }
+
+    private void waitGap() throws InterruptedException {
+        long wait;
+        synchronized (lock) {
+            wait = getGap() - (System.nanoTime() - lastFrameNanos) / 1000000;
+        }
+        if (wait > 0)
+            Thread.sleep(Math.min(wait, MAX_GAP));
+    }
+
+    // Current gap between last reply and next request in ms
+    public long getGap() {
+        synchronized (lock) {
+            return Math.max(MIN_GAP, Math.min(MAX_GAP, (long) averageResponse));
+        }
+    }
+
+    /*
+     * Message which should handle frame with command, null if no request is waiting for it
+     * Frame is reply to request in flight or follow-up of the last one sent
+     */
+    public MessageBase match(int command) {
+        synchronized (lock) {
+            if (inFlight != null && inFlight.message.getCommand() == command)
+                return inFlight.message;
+            if (lastSent != null && lastSent.getCommand() == command)
+                return lastSent;
+            return null;
+        }
+    }
+
+    /*
+     * Called after every handled frame, completes request if it was reply to it
+     * Unsolicited frames (bolus progress) don't delay next request, user may be stopping the bolus
+     */
+    public void handled(MessageBase message) {
+        Request request = null;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            if (message == lastSent)
+                lastFrameNanos = now;
+            if (inFlight != null && inFlight.message == message) {
+                request = inFlight;
+                inFlight = null;
+                long nanos = now - request.sentNanos;
+                averageResponse = averageResponse * 0.8 + nanos / 1000000d * 0.2;
+                LatencyHistogram histogram = latency.get(message.getCommand());
+                if (histogram == null)
+                    latency.put(message.getCommand(), histogram = new LatencyHistogram());
+                histogram.record(nanos);
+            }
+        }
+        if (request != null)
+            request.finish();
+    }
+
+    public LatencyHistogram getLatency(int command) {
+        synchronized (lock) {
+            return latency.get(command);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+        failAll();
+    }
+
+    private void failAll() {
+        ArrayList<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        synchronized (lock) {
+            if (inFlight != null)
+                pending.add(inFlight);
+            inFlight = null;
+        }
+        for (Request request : pending)
+            request.finish();
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (lock) {
+            sb.append("requests=").append(requests).append(" timeouts=").append(timeouts).append(" gap=").append(getGap()).append(" ms");
+            for (Map.Entry<Integer, LatencyHistogram> entry : latency.entrySet())
+                sb.append("\n").append(String.format("%04X ", entry.getKey())).append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+/**
+ * Response time histogram with power of 2 millisecond buckets
+ *
+ * Bucket 0 is < 1 ms, bucket i is < 2^i ms, last bucket takes everything longer.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 16; // last one from 16 s
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    public synchronized void record(long nanos) {
+        counts[bucket(nanos / 1000000)]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    static int bucket(long millis) {
+        if (millis <= 0)
+            return 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    // Upper bound of bucket in ms
+    public static long bucketLimit(int bucket) {
+        return 1L << bucket;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public synchronized long getAverageMillis() {
+        return count == 0 ? 0 : totalNanos / count / 1000000;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxNanos / 1000000;
+    }
+
+    // Upper bound in ms of bucket where percentile (0..100) falls
+    public synchronized long percentile(double percent) {
+        if (count == 0)
+            return 0;
+        long needed = (long) Math.ceil(count * percent / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= needed && seen > 0)
+                return bucketLimit(i);
+        }
+        return bucketLimit(BUCKETS - 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("n=").append(count).append(" avg=").append(getAverageMillis()).append(" max=").append(getMaxMillis())
+                .append(" p50<").append(percentile(50)).append(" p95<").append(percentile(95)).append(" ms [");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] == 0) continue;
+            sb.append(" <").append(bucketLimit(i)).append(":").append(counts[i]);
+        }
+        return sb.append(" ]").toString();
+    }
+}
@@ -0,0 +1,232 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import info.nightscout.utils.CRC;
+
+/**
+ * Fixed circular receive buffer with DanaR frame parser
+ *
+ * Data is read from stream directly into the ring, header, trailer and CRC are checked in place.
+ * Complete frame is handed out in an array reused for frames of the same length, so nothing is allocated
+ * in steady state. The array is valid only until next frame is taken.
+ * After wrong data recover() skips to the next preamble. Connection should be dropped only when
+ * more than errorBudget errors come without valid frame between them.
+ *
+ *  7E  7E  len  F1  CMD  SUB data CRC CRC 2E  2E
+ */
+public class SerialFrameBuffer {
+    public static final int OK = 1;
+    public static final int INCOMPLETE = 0;
+    public static final int WRONG_START = -1;
+    public static final int WRONG_END = -2;
+    public static final int WRONG_CRC = -3;
+
+    public static final int MAX_FRAME = 255 + 7;
+
+    private final byte[] ring;
+    private final int mask;
+    private int readPos = 0; // absolute positions, index is pos & mask
+    private int writePos = 0;
+
+    private final byte[][] frames = new byte[MAX_FRAME + 1][];
+    private int frameLength = 0;
+
+    private int errorBudget = 0;
+    private int errorsSinceFrame = 0;
+
+    // metrics
+    private long framesTaken = 0;
+    private long droppedBytes = 0;
+    private long framingErrors = 0;
+    private long crcErrors = 0;
+
+    public SerialFrameBuffer() {
+        this(4096);
+    }
+
+    // capacity must be power of 2
+    public SerialFrameBuffer(int capacity) {
+        if (capacity < 2 * MAX_FRAME || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Wrong capacity " + capacity);
+        ring = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return writePos - readPos;
+    }
+
+    public int free() {
+        return ring.length - size();
+    }
+
+    // Read available data from stream into free space, blocks if nothing is available
+    public int fill(InputStream stream) throws IOException {
+        int free = free();
+        if (free == 0)
+            throw new IOException("Receive buffer full");
+        int index = writePos & mask;
+        // contiguous part up to the end of ring
+        int count = stream.read(ring, index, Math.min(free, ring.length - index));
+        if (count > 0)
+            writePos += count;
+        return count;
+    }
+
+    public void append(byte[] data, int offset, int length) {
+        if (length > free())
+            throw new IllegalStateException("Receive buffer full");
+        for (int i = 0; i < length; i++)
+            ring[(writePos++) & mask] = data[offset + i];
+    }
+
+    // Byte of unprocessed data, 0 is first
+    public byte byteAt(int i) {
+        return ring[(readPos + i) & mask];
+    }
+
+    /*
+     * Checks frame at the beginning of data
+     * Returns OK (frame available by takeFrame()), INCOMPLETE or one of errors
+     */
+    public int checkFrame() {
+        int status = checkFrame(0);
+        if (status == OK)
+            frameLength = (byteAt(2) & 0xFF) + 7;
+        return status;
+    }
+
+    private int checkFrame(int offset) {
+        if (size() - offset < 3)
+            return INCOMPLETE;
+        if (byteAt(offset) != (byte) 0x7E || byteAt(offset + 1) != (byte) 0x7E)
+            return WRONG_START;
+        int length = (byteAt(offset + 2) & 0xFF) + 7;
+        if (size() - offset < length)
+            return INCOMPLETE;
+        if (byteAt(offset + length - 2) != (byte) 0x2E || byteAt(offset + length - 1) != (byte) 0x2E)
+            return WRONG_END;
+        if (crc(offset + 3, length - 7) != (short) (((byteAt(offset + length - 4) & 0xFF) << 8) | (byteAt(offset + length - 3) & 0xFF)))
+            return WRONG_CRC;
+        return OK;
+    }
+
+    private short crc(int offset, int length) {
+        int start = (readPos + offset) & mask;
+        int firstPart = Math.min(length, ring.length - start);
+        short crc = CRC.getCrc16(0, ring, start, firstPart);
+        if (firstPart < length)
+            crc = CRC.getCrc16(crc & 0xFFFF, ring, 0, length - firstPart);
+        return crc;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    // Command of frame accepted by checkFrame()
+    public int getCommand() {
+        return (byteAt(5) & 0xFF) | ((byteAt(4) << 8) & 0xFF00);
+    }
+
+    // Removes frame accepted by checkFrame() and returns it in reused array
+    public byte[] takeFrame() {
+        byte[] frame = frames[frameLength];
+        if (frame == null)
+            frame = frames[frameLength] = new byte[frameLength];
+        int start = readPos & mask;
+        int firstPart = Math.min(frameLength, ring.length - start);
+        System.arraycopy(ring, start, frame, 0, firstPart);
+        System.arraycopy(ring, 0, frame, firstPart, frameLength - firstPart);
+        readPos += frameLength;
+        frameLength = 0;
+        framesTaken++;
+        errorsSinceFrame = 0;
+        return frame;
+    }
+
+    public void setErrorBudget(int errorBudget) {
+        this.errorBudget = errorBudget;
+    }
+
+    /*
+     * Drops wrong data up to the next 7E 7E preamble after error returned by checkFrame()
+     * Returns false if error budget is exhausted and connection should be dropped
+     */
+    public boolean recover(int status) {
+        if (status == WRONG_CRC)
+            crcErrors++;
+        else
+            framingErrors++;
+        droppedBytes += resync();
+        errorsSinceFrame++;
+        return errorsSinceFrame <= errorBudget;
+    }
+
+    // Returns count of dropped bytes, at least one
+    int resync() {
+        int size = size();
+        int i = 1;
+        while (i < size - 1 && !(byteAt(i) == (byte) 0x7E && byteAt(i + 1) == (byte) 0x7E))
+            i++;
+        // stray 7E just before preamble would be taken as header, 7E 7E 7E is also start of frame with length 0x7E
+        while (i < size - 2 && byteAt(i + 2) == (byte) 0x7E && !frameStartsAt(i))
+            i++;
+        // keep last 7E, it may be first half of preamble
+        if (i == size - 1 && byteAt(i) != (byte) 0x7E)
+            i = size;
+        i = Math.min(i, size);
+        skip(i);
+        return i;
+    }
+
+    // Valid frame or beginning of one with F1 after length byte
+    private boolean frameStartsAt(int offset) {
+        int status = checkFrame(offset);
+        if (status == INCOMPLETE)
+            return offset + 3 < size() && byteAt(offset + 3) == (byte) 0xF1;
+        return status == OK;
+    }
+
+    public void skip(int count) {
+        readPos += Math.min(count, size());
+        frameLength = 0;
+    }
+
+    public void clear() {
+        readPos = writePos = 0;
+        frameLength = 0;
+    }
+
+    public long getFramesTaken() {
+        return framesTaken;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public long getFramingErrors() {
+        return framingErrors;
+    }
+
+    public long getCrcErrors() {
+        return crcErrors;
+    }
+
+    public String getStats() {
+        return "frames=" + framesTaken + " droppedBytes=" + droppedBytes + " framingErrors=" + framingErrors + " crcErrors=" + crcErrors;
+    }
+
+    // Unprocessed data for logging
+    public String toHexString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size(); i++) {
+            sb.append(String.format("%02x ", byteAt(i)));
+            if ((i + 1) % 4 == 0) sb.append(" ");
+        }
+        return sb.toString();
+    }
+}
@@ -1,6 +1,8 @@
 package info.nightscout.androidaps.plugins.DanaR;
 
 import android.bluetooth.BluetoothSocket;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,9 +16,10 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import info.nightscout.androidaps.Config;
+import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.plugins.DanaR.comm.MessageBase;
 import info.nightscout.androidaps.plugins.DanaR.comm.MessageHashTable;
-import info.nightscout.utils.CRC;
+import info.nightscout.utils.SafeParse;
 
 /**
  * Created by mike on 17.07.2016.
@@ -26,54 +29,74 @@ public class SerialIOThread extends Thread {
 
     private InputStream mInputStream = null;
     private OutputStream mOutputStream = null;
-    private BluetoothSocket mRfCommSocket;
+    private SerialLink mLink;
 
     private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
     private static ScheduledFuture<?> scheduledDisconnection = null;
 
     private boolean mKeepRunning = true;
-    private byte[] mReadBuff = new byte[0];
+    private SerialFrameBuffer mReadBuff = new SerialFrameBuffer();
 
-    MessageBase processedMessage;
+    private CommandQueue mQueue;
 
     public SerialIOThread(BluetoothSocket rfcommSocket) {
+        this(new BluetoothSerialLink(rfcommSocket), errorBudget());
+    }
+
+    public SerialIOThread(SerialLink link, int errorBudget) {
         super(SerialIOThread.class.toString());
 
-        mRfCommSocket = rfcommSocket;
+        mLink = link;
+        mReadBuff.setErrorBudget(errorBudget);
         try {
-            mOutputStream = mRfCommSocket.getOutputStream();
-            mInputStream = mRfCommSocket.getInputStream();
+            mOutputStream = mLink.getOutputStream();
+            mInputStream = mLink.getInputStream();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        mQueue = new CommandQueue(new CommandQueue.Transport() {
+            @Override
+            public void write(MessageBase message) throws IOException {
+                byte[] messageBytes = message.getRawMessageBytes();
+                if (Config.logDanaSerialEngine)
+                    log.debug(">>>>> " + message.getMessageName() + " " + message.toHexString(messageBytes));
+                mOutputStream.write(messageBytes);
+            }
+        });
         this.start();
     }
 
+    private static int errorBudget() {
+        SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(MainApp.instance().getApplicationContext());
+        return SafeParse.stringToInt(SP.getString("danar_frameerrorbudget", "5"));
+    }
+
     @Override
     public final void run() {
         try {
             while (mKeepRunning) {
-                int availableBytes = mInputStream.available();
-                // Ask for 1024 byte (or more if available)
-                byte[] newData = new byte[Math.max(1024, availableBytes)];
-                int gotBytes = mInputStream.read(newData);
-                // When we are here there is some new data available
-                appendToBuffer(newData, gotBytes);
+                // read directly into receive buffer
+                if (mReadBuff.fill(mInputStream) < 0)
+                    break;
 
                 // process all messages we already got
-                while (mReadBuff.length > 3) { // 3rd byte is packet size. continue only if we an determine packet size
-                    byte[] extractedBuff = cutMessageFromBuffer();
-                    if (extractedBuff == null) break; // message is not complete in buffer (wrong packet calls disconnection)
+                while (mKeepRunning) {
+                    int status = mReadBuff.checkFrame();
+                    if (status == SerialFrameBuffer.INCOMPLETE) break;
+                    if (status != SerialFrameBuffer.OK) {
+                        frameError(status);
+                        continue;
+                    }
 
-                    int command = (extractedBuff[5] & 0xFF) | ((extractedBuff[4] << 8) & 0xFF00);
+                    int command = mReadBuff.getCommand();
 
-                    MessageBase message;
-                    if (processedMessage != null && processedMessage.getCommand() == command) {
-                        message = processedMessage;
-                    } else {
-                        // get it from hash table
+                    // reply to request sent, otherwise get it from hash table
+                    MessageBase message = mQueue.match(command);
+                    if (message == null)
                         message = MessageHashTable.findMessage(command);
-                    }
+
+                    // reused array, valid only during handleMessage
+                    byte[] extractedBuff = mReadBuff.takeFrame();
 
                     if (Config.logDanaMessageDetail)
                         log.debug("<<<<< " + message.getMessageName() + " " + message.toHexString(extractedBuff));
@@ -81,123 +104,84 @@ public class SerialIOThread extends Thread {
                     // process the message content
                     message.received = true;
                     message.handleMessage(extractedBuff);
-                    synchronized (message) {
-                        message.notify();
-                    }
+                    mQueue.handled(message);
                     scheduleDisconnection();
                 }
             }
         } catch (Exception e) {
-            if (Config.logDanaSerialEngine && e.getMessage().indexOf("bt socket closed") < 0)
+            if (Config.logDanaSerialEngine && (e.getMessage() == null || e.getMessage().indexOf("bt socket closed") < 0))
                 log.error("Thread exception: ", e);
             mKeepRunning = false;
         }
         disconnect("EndOfLoop");
     }
 
-    void appendToBuffer(byte[] newData, int gotBytes) {
-        // add newData to mReadBuff
-        byte[] newReadBuff = new byte[mReadBuff.length + gotBytes];
-        System.arraycopy(mReadBuff, 0, newReadBuff, 0, mReadBuff.length);
-        System.arraycopy(newData, 0, newReadBuff, mReadBuff.length, gotBytes);
-        mReadBuff = newReadBuff;
+    void frameError(int status) {
+        String reason;
+        switch (status) {
+            case SerialFrameBuffer.WRONG_START:
+                reason = "Wrong beginning of packet";
+                break;
+            case SerialFrameBuffer.WRONG_END:
+                reason = "wrong packet";
+                break;
+            default:
+                reason = "crc error";
+                break;
+        }
+        log.error(reason + " len=" + mReadBuff.size() + "    " + mReadBuff.toHexString());
+        // skip to next packet, reconnect only if it keeps failing
+        if (!mReadBuff.recover(status)) {
+            disconnect(reason);
+        } else if (Config.logDanaSerialEngine) {
+            log.debug("Resynchronized after " + reason + " " + mReadBuff.getStats());
+        }
     }
 
-    byte[] cutMessageFromBuffer() {
-        if (mReadBuff[0] == (byte) 0x7E && mReadBuff[1] == (byte) 0x7E) {
-            int length = (mReadBuff[2] & 0xFF) + 7;
-            // Check if we have enough data
-            if (mReadBuff.length < length) {
-                return null;
-            }
-            if (mReadBuff[length - 2] != (byte) 0x2E || mReadBuff[length - 1] != (byte) 0x2E) {
-                log.error("wrong packet lenght=" + length + " data " + MessageBase.toHexString(mReadBuff));
-                disconnect("wrong packet");
-                return null;
-            }
-
-            short crc = CRC.getCrc16(mReadBuff, 3, length - 7);
-            byte crcByte0 = (byte) (crc >> 8 & 0xFF);
-            byte crcByte1 = (byte) (crc & 0xFF);
-
-            byte crcByte0received = mReadBuff[length - 4];
-            byte crcByte1received = mReadBuff[length - 3];
-
-            if (crcByte0 != crcByte0received || crcByte1 != crcByte1received) {
-                log.error("CRC Error" + String.format("%02x ", crcByte0) + String.format("%02x ", crcByte1) + String.format("%02x ", crcByte0received) + String.format("%02x ", crcByte1received));
-                disconnect("crc error");
-                return null;
-            }
-            // Packet is verified here. extract data
-            byte[] extractedBuff = new byte[length];
-            System.arraycopy(mReadBuff, 0, extractedBuff, 0, length);
-            // remove extracted data from read buffer
-            byte[] unprocessedData = new byte[mReadBuff.length - length];
-            System.arraycopy(mReadBuff, length, unprocessedData, 0, unprocessedData.length);
-            mReadBuff = unprocessedData;
-            return extractedBuff;
-        } else {
-            log.error("Wrong beginning of packet len=" + mReadBuff.length + "    " + MessageBase.toHexString(mReadBuff));
-            disconnect("Wrong beginning of packet");
-            return null;
-        }
+    // Sends message and waits for reply
+    public void sendMessage(MessageBase message) {
+        sendMessageAsync(message).await();
+        scheduleDisconnection();
     }
 
-    public synchronized void sendMessage(MessageBase message) {
-        if (!mRfCommSocket.isConnected()) {
+    // Queues message, reply is awaited on returned request
+    public CommandQueue.Request sendMessageAsync(MessageBase message) {
+        if (!mLink.isConnected()) {
             log.error("Socket not connected on sendMessage");
-            return;
-        }
-        processedMessage = message;
-
-        byte[] messageBytes = message.getRawMessageBytes();
-        if (Config.logDanaSerialEngine)
-            log.debug(">>>>> " + message.getMessageName() + " " + message.toHexString(messageBytes));
-
-        try {
-            mOutputStream.write(messageBytes);
-        } catch (Exception e) {
-            log.error("sendMessage write exception: ", e);
-            e.printStackTrace();
-        }
-
-        synchronized (message) {
-            try {
-                message.wait(5000);
-            } catch (InterruptedException e) {
-                log.error("sendMessage InterruptedException", e);
-                e.printStackTrace();
-            }
-        }
-
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-        }
-        if (!message.received) {
-            log.warn("Reply not received " + message.getMessageName());
+            return CommandQueue.rejected(message);
         }
         scheduleDisconnection();
+        return mQueue.submit(message);
+    }
+
+    CommandQueue getQueue() {
+        return mQueue;
     }
 
     public void scheduleDisconnection() {
         class DisconnectRunnable implements Runnable {
             public void run() {
                 disconnect("scheduleDisconnection");
-                scheduledDisconnection = null;
+                synchronized (worker) {
+                    scheduledDisconnection = null;
+                }
             }
         }
         // prepare task for execution in 5 sec
         // cancel waiting task to prevent sending multiple disconnections
-        if (scheduledDisconnection != null)
-            scheduledDisconnection.cancel(false);
-        Runnable task = new DisconnectRunnable();
-        final int sec = 5;
-        scheduledDisconnection = worker.schedule(task, sec, TimeUnit.SECONDS);
+        // called from reader and sending threads, task replaced by one of them would not be cancelled
+        synchronized (worker) {
+            if (scheduledDisconnection != null)
+                scheduledDisconnection.cancel(false);
+            Runnable task = new DisconnectRunnable();
+            final int sec = 5;
+            scheduledDisconnection = worker.schedule(task, sec, TimeUnit.SECONDS);
+        }
     }
 
     public void disconnect(String reason) {
         mKeepRunning = false;
+        mQueue.shutdown();
         try {
             mInputStream.close();
         } catch (Exception e) {
@@ -209,7 +193,7 @@ public class SerialIOThread extends Thread {
             if (Config.logDanaSerialEngine) log.debug(e.getMessage());
         }
         try {
-            mRfCommSocket.close();
+            mLink.close();
         } catch (Exception e) {
             if (Config.logDanaSerialEngine) log.debug(e.getMessage());
         }
@@ -218,7 +202,10 @@ public class SerialIOThread extends Thread {
         } catch (Exception e) {
             if (Config.logDanaSerialEngine) log.debug(e.getMessage());
         }
-        if (Config.logDanaSerialEngine) log.debug("Disconnected: " + reason);
+        if (Config.logDanaSerialEngine) {
+            log.debug("Disconnected: " + reason + " " + mReadBuff.getStats());
+            log.debug("Latency: " + mQueue.getStats());
+        }
     }
 
 }
@@ -0,0 +1,20 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connection to the pump used by SerialIOThread
+ *
+ * RFCOMM socket in the app, in-memory streams in tests.
+ */
+public interface SerialLink {
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    void close() throws IOException;
+}
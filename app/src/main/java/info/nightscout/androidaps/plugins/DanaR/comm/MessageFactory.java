@@ -0,0 +1,64 @@
+package info.nightscout.androidaps.plugins.DanaR.comm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Creates message instance for received command
+ *
+ * Every frame gets its own instance, so flags and decoded values are never shared between frames
+ * or with requests of other callers. Commands are 16 bit, table is indexed by high and low byte,
+ * so lookup is two array accesses without boxing.
+ */
+public class MessageFactory {
+    private static Logger log = LoggerFactory.getLogger(MessageFactory.class);
+
+    private final Constructor[][] constructors = new Constructor[256][];
+    private int size = 0;
+
+    // Registers class of prototype under its command, class must have public no-arg constructor
+    public void register(MessageBase prototype) {
+        int command = prototype.getCommand();
+        Constructor constructor;
+        try {
+            constructor = prototype.getClass().getConstructor();
+        } catch (NoSuchMethodException e) {
+            log.error("Message without public constructor: " + prototype.getClass().getName());
+            return;
+        }
+        Constructor[] row = constructors[command >> 8 & 0xFF];
+        if (row == null)
+            row = constructors[command >> 8 & 0xFF] = new Constructor[256];
+        if (row[command & 0xFF] == null)
+            size++;
+        row[command & 0xFF] = constructor;
+    }
+
+    public boolean contains(int command) {
+        return constructor(command) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Constructor constructor(int command) {
+        Constructor[] row = constructors[command >> 8 & 0xFF];
+        return row != null ? row[command & 0xFF] : null;
+    }
+
+    // New instance for command, generic MessageBase for unknown commands
+    public MessageBase create(int command) {
+        Constructor constructor = constructor(command);
+        if (constructor != null) {
+            try {
+                return (MessageBase) constructor.newInstance();
+            } catch (Exception e) {
+                log.error("Unable to create message " + String.format("%04X", command), e);
+            }
+        }
+        return new MessageBase();
+    }
+}
@@ -3,19 +3,18 @@ package info.nightscout.androidaps.plugins.DanaR.comm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-
 /**
  * Created by mike on 28.05.2016.
  */
 public class MessageHashTable {
     private static Logger log = LoggerFactory.getLogger(MessageHashTable.class);
 
-    public static HashMap<Integer, MessageBase> messages = null;
+    // fresh instance is created for every received frame
+    private static MessageFactory messages = null;
 
     static {
         if (messages == null) {
-            messages = new HashMap<Integer, MessageBase>();
+            messages = new MessageFactory();
             put(new MsgBolusStop());                 // 0x0101 CMD_MEALINS_STOP
             put(new MsgBolusStart());                // 0x0102 CMD_MEALINS_START_DATA
             put(new MsgBolusProgress());             // 0x0202 CMD_PUMP_THIS_REMAINDER_MEAL_INS
@@ -71,15 +70,11 @@ public class MessageHashTable {
     public static void put(MessageBase message) {
         int command = message.getCommand();
         //String name = MessageOriginalNames.getName(command);
-        messages.put(command, message);
+        messages.register(message);
         //log.debug(String.format("%04x ", command) + " " + name);
     }
 
-    public static MessageBase findMessage(Integer command) {
-        if (messages.containsKey(command)) {
-            return messages.get(command);
-        } else {
-            return new MessageBase();
-        }
+    public static MessageBase findMessage(int command) {
+        return messages.create(command);
     }
 }
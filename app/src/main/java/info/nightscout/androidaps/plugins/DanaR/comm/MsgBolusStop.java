@@ -20,11 +20,12 @@ public class MsgBolusStop extends MessageBase {
 
     public MsgBolusStop() {
         SetCommand(0x0101);
-        stopped = false;
     }
 
+    // Flags are reset only here, no-arg constructor is used for incoming frames too
     public MsgBolusStop(Double amount, Treatment t) {
         this();
+        stopped = false;
         this.t = t;
         this.amount = amount;
         forced = false;
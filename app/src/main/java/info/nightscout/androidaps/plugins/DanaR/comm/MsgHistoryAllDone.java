@@ -11,7 +11,6 @@ public class MsgHistoryAllDone extends MessageBase {
 
     public MsgHistoryAllDone() {
         SetCommand(0x41F1);
-        received = false;
     }
 
     @Override
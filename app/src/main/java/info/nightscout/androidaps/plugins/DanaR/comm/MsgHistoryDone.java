@@ -14,7 +14,6 @@ public class MsgHistoryDone extends MessageBase {
 
     public MsgHistoryDone() {
         SetCommand(0x31F1);
-        received = false;
     }
 
     @Override
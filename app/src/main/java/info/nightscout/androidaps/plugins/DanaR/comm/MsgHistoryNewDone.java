@@ -14,7 +14,6 @@ public class MsgHistoryNewDone extends MessageBase {
 
     public MsgHistoryNewDone() {
         SetCommand(0x42F1);
-        received = false;
     }
 
     @Override
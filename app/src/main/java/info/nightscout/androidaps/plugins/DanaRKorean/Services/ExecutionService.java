@@ -274,9 +274,10 @@ public class ExecutionService extends Service {
             MsgStatusBolusExtended exStatusMsg = new MsgStatusBolusExtended();
 
 
-            mSerialIOThread.sendMessage(new MsgSettingShippingInfo()); // TODO: show it somewhere
-            mSerialIOThread.sendMessage(tempStatusMsg); // do this before statusBasic because here is temp duration
-            mSerialIOThread.sendMessage(exStatusMsg);
+            // queued at once, the blocking send below returns when all before it are finished
+            mSerialIOThread.sendMessageAsync(new MsgSettingShippingInfo()); // TODO: show it somewhere
+            mSerialIOThread.sendMessageAsync(tempStatusMsg); // do this before statusBasic because here is temp duration
+            mSerialIOThread.sendMessageAsync(exStatusMsg);
             //mSerialIOThread.sendMessage(statusMsg);
             mSerialIOThread.sendMessage(statusBasicMsg);
 
@@ -306,14 +307,14 @@ public class ExecutionService extends Service {
 
             Date now = new Date();
             if (danaRKoreanPump.lastSettingsRead.getTime() + 60 * 60 * 1000L < now.getTime() || !((DanaRKoreanPlugin)MainApp.getSpecificPlugin(DanaRKoreanPlugin.class)).isInitialized()) {
-                mSerialIOThread.sendMessage(new MsgSettingShippingInfo());
-                mSerialIOThread.sendMessage(new MsgSettingMeal());
-                mSerialIOThread.sendMessage(new MsgSettingBasal());
+                mSerialIOThread.sendMessageAsync(new MsgSettingShippingInfo());
+                mSerialIOThread.sendMessageAsync(new MsgSettingMeal());
+                mSerialIOThread.sendMessageAsync(new MsgSettingBasal());
                 //0x3201
-                mSerialIOThread.sendMessage(new MsgSettingMaxValues());
-                mSerialIOThread.sendMessage(new MsgSettingGlucose());
-                mSerialIOThread.sendMessage(new MsgSettingPumpTime());
-                mSerialIOThread.sendMessage(new MsgSettingProfileRatios());
+                mSerialIOThread.sendMessageAsync(new MsgSettingMaxValues());
+                mSerialIOThread.sendMessageAsync(new MsgSettingGlucose());
+                mSerialIOThread.sendMessageAsync(new MsgSettingPumpTime());
+                mSerialIOThread.sendMessageAsync(new MsgSettingProfileRatios());
                 mSerialIOThread.sendMessage(new MsgSetTime(new Date()));
                 danaRKoreanPump.lastSettingsRead = now;
             }
@@ -388,6 +389,7 @@ public class ExecutionService extends Service {
                 log.debug("Communication stopped");
             }
         }
+        // pump switches mode after bolus, not reply latency so not covered by queue gap
         waitMsec(300);
         bolusingTreatment = null;
         getPumpStatus();
@@ -398,6 +400,7 @@ public class ExecutionService extends Service {
         if (Config.logDanaBTComm)
             log.debug("bolusStop >>>>> @ " + (bolusingTreatment == null ? "" : bolusingTreatment.insulin));
         MsgBolusStop stop = new MsgBolusStop();
+        stop.stopped = false;
         stop.forced = true;
         if (isConnected()) {
             mSerialIOThread.sendMessage(stop);
@@ -453,7 +456,9 @@ public class ExecutionService extends Service {
                 break;
         }
         MsgHistoryDone done = new MsgHistoryDone();
+        done.received = false;
         mSerialIOThread.sendMessage(new MsgPCCommStart());
+        // time for pump to switch to PC communication mode, not covered by queue gap
         waitMsec(400);
         mSerialIOThread.sendMessage(msg);
         while (!done.received && mRfcommSocket.isConnected()) {
@@ -3,6 +3,7 @@ package info.nightscout.androidaps.plugins.Loop;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -76,7 +77,7 @@ public class LoopFragment extends Fragment implements View.OnClickListener, Frag
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.loop_run:
-                getPlugin().invoke(true);
+                getPlugin().trigger(true);
                 break;
         }
 
@@ -109,7 +110,10 @@ public class LoopFragment extends Fragment implements View.OnClickListener, Frag
                 public void run() {
                     if (getPlugin().lastRun != null) {
                         requestView.setText(getPlugin().lastRun.request != null ? getPlugin().lastRun.request.toSpanned() : "");
-                        constraintsProcessedView.setText(getPlugin().lastRun.constraintsProcessed != null ? getPlugin().lastRun.constraintsProcessed.toSpanned() : "");
+                        CharSequence constraintsProcessed = getPlugin().lastRun.constraintsProcessed != null ? getPlugin().lastRun.constraintsProcessed.toSpanned() : "";
+                        if (getPlugin().lastRun.limitedBy != null)
+                            constraintsProcessed = TextUtils.concat(constraintsProcessed, "\n", MainApp.sResources.getString(R.string.loop_limitedby, getPlugin().lastRun.limitedBy));
+                        constraintsProcessedView.setText(constraintsProcessed);
                         setByPumpView.setText(getPlugin().lastRun.setByPump != null ? getPlugin().lastRun.setByPump.toSpanned() : "");
                         sourceView.setText(getPlugin().lastRun.source != null ? getPlugin().lastRun.source : "");
                         lastRunView.setText(getPlugin().lastRun.lastAPSRun != null && getPlugin().lastRun.lastAPSRun.getTime() != 0 ? getPlugin().lastRun.lastAPSRun.toLocaleString() : "");
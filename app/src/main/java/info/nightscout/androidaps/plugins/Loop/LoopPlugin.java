@@ -22,16 +22,18 @@ import info.nightscout.androidaps.Constants;
 import info.nightscout.androidaps.MainActivity;
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
+import info.nightscout.androidaps.data.ConstraintSet;
 import info.nightscout.androidaps.data.PumpEnactResult;
 import info.nightscout.androidaps.events.EventNewBG;
 import info.nightscout.androidaps.events.EventTreatmentChange;
 import info.nightscout.androidaps.interfaces.APSInterface;
-import info.nightscout.androidaps.interfaces.ConstraintsInterface;
 import info.nightscout.androidaps.interfaces.PluginBase;
 import info.nightscout.androidaps.plugins.ConfigBuilder.ConfigBuilderPlugin;
 import info.nightscout.androidaps.plugins.Loop.events.EventLoopSetLastRunGui;
 import info.nightscout.androidaps.plugins.Loop.events.EventLoopUpdateGui;
 import info.nightscout.androidaps.plugins.Loop.events.EventNewOpenLoopNotification;
+import info.nightscout.utils.Clock;
+import info.nightscout.utils.EventDispatcher;
 
 /**
  * Created by mike on 05.08.2016.
@@ -53,17 +55,26 @@ public class LoopPlugin implements PluginBase {
         public Date lastAPSRun = null;
         public Date lastEnact = null;
         public Date lastOpenModeAccept;
+        public ConstraintSet constraints = null;
+        public String limitedBy = null; // plugin which limited requested rate
     }
 
     static public LastRun lastRun = null;
 
+    private final LoopScheduler scheduler = new LoopScheduler(new LoopScheduler.Runner() {
+        @Override
+        public void run(boolean allowNotification) {
+            runLoop(allowNotification);
+        }
+    });
+
     public LoopPlugin() {
         if (sHandlerThread == null) {
             sHandlerThread = new HandlerThread(LoopPlugin.class.getSimpleName());
             sHandlerThread.start();
             sHandler = new Handler(sHandlerThread.getLooper());
         }
-        MainApp.bus().register(this);
+        MainApp.bus().register(this, EventDispatcher.LOOP);
     }
 
     @Override
@@ -108,27 +119,44 @@ public class LoopPlugin implements PluginBase {
 
     @Subscribe
     public void onStatusEvent(final EventTreatmentChange ev) {
-        invoke(true);
+        trigger(true);
     }
 
     @Subscribe
     public void onStatusEvent(final EventNewBG ev) {
-        invoke(true);
+        trigger(true);
+    }
+
+    // Queue loop run, merged with other triggers while one is in flight
+    public void trigger(boolean allowNotification) {
+        scheduler.trigger(allowNotification);
     }
 
+    // Run loop now, waits for run in flight
     public void invoke(boolean allowNotification) {
+        scheduler.runNow(allowNotification);
+    }
+
+    public LoopScheduler getScheduler() {
+        return scheduler;
+    }
+
+    private void runLoop(boolean allowNotification) {
         try {
             if (Config.logFunctionCalls)
                 log.debug("invoke");
-            ConstraintsInterface constraintsInterface = MainApp.getConfigBuilder();
-            if (!constraintsInterface.isLoopEnabled()) {
+            final ConfigBuilderPlugin configBuilder = MainApp.getConfigBuilder();
+            if (configBuilder == null)
+                return;
+            // all constraints plugins are asked once per cycle
+            ConstraintSet constraints = configBuilder.beginConstraintsCycle();
+            if (!constraints.loopEnabled) {
                 MainApp.bus().post(new EventLoopSetLastRunGui(MainApp.sResources.getString(R.string.loopdisabled)));
                 return;
             }
-            final ConfigBuilderPlugin configBuilder = MainApp.getConfigBuilder();
             APSResult result = null;
 
-            if (configBuilder == null || !isEnabled(PluginBase.LOOP))
+            if (!isEnabled(PluginBase.LOOP))
                 return;
 
             // Check if pump info is loaded
@@ -148,16 +176,18 @@ public class LoopPlugin implements PluginBase {
 
             // check rate for constrais
             final APSResult resultAfterConstraints = result.clone();
-            resultAfterConstraints.rate = constraintsInterface.applyBasalConstraints(resultAfterConstraints.rate);
+            resultAfterConstraints.rate = constraints.applyBasalConstraints(resultAfterConstraints.rate);
 
             if (lastRun == null) lastRun = new LastRun();
             lastRun.request = result;
             lastRun.constraintsProcessed = resultAfterConstraints;
-            lastRun.lastAPSRun = new Date();
+            lastRun.lastAPSRun = Clock.date();
             lastRun.source = ((PluginBase) usedAPS).getName();
             lastRun.setByPump = null;
+            lastRun.constraints = constraints;
+            lastRun.limitedBy = resultAfterConstraints.rate < result.rate ? constraints.maxBasalBy : null;
 
-            if (constraintsInterface.isClosedModeEnabled()) {
+            if (constraints.closedModeEnabled) {
                 if (result.changeRequested) {
                     final PumpEnactResult waiting = new PumpEnactResult();
                     final PumpEnactResult previousResult = lastRun.setByPump;
@@ -219,6 +249,8 @@ public class LoopPlugin implements PluginBase {
             MainApp.bus().post(new EventLoopUpdateGui());
             MainApp.getConfigBuilder().uploadDeviceStatus();
         } finally {
+            if (MainApp.getConfigBuilder() != null)
+                MainApp.getConfigBuilder().endConstraintsCycle();
             if (Config.logFunctionCalls)
                 log.debug("invoke end");
         }
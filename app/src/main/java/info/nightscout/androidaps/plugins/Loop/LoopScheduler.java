@@ -0,0 +1,131 @@
+package info.nightscout.androidaps.plugins.Loop;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the loop at most once at a time
+ *
+ * Triggers coming while a run is queued or in flight are merged into one follow-up run.
+ * Direct runs wait for the one in flight. Queue wait and run duration are recorded.
+ */
+public class LoopScheduler {
+    private static Logger log = LoggerFactory.getLogger(LoopScheduler.class);
+
+    public interface Runner {
+        void run(boolean allowNotification);
+    }
+
+    private final Runner runner;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, LoopScheduler.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Object runLock = new Object();
+
+    // follow-up run waiting in executor
+    private boolean pending = false;
+    private boolean pendingAllowNotification = false;
+    private long pendingSince = 0;
+
+    private long runs = 0;
+    private long merged = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long totalRunNanos = 0;
+    private long maxRunNanos = 0;
+
+    public LoopScheduler(Runner runner) {
+        this.runner = runner;
+    }
+
+    // Queue run, returns false if merged into already pending one
+    public synchronized boolean trigger(boolean allowNotification) {
+        if (pending) {
+            pendingAllowNotification |= allowNotification;
+            merged++;
+            return false;
+        }
+        pending = true;
+        pendingAllowNotification = allowNotification;
+        pendingSince = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean allowNotification;
+                long since;
+                synchronized (LoopScheduler.this) {
+                    // triggers from now on need another run
+                    pending = false;
+                    allowNotification = pendingAllowNotification;
+                    since = pendingSince;
+                }
+                try {
+                    runNow(allowNotification, since);
+                } catch (RuntimeException e) {
+                    log.error("Loop run failed", e);
+                }
+            }
+        });
+        return true;
+    }
+
+    // Run on calling thread after the one in flight is finished
+    public void runNow(boolean allowNotification) {
+        runNow(allowNotification, System.nanoTime());
+    }
+
+    private void runNow(boolean allowNotification, long since) {
+        synchronized (runLock) {
+            long start = System.nanoTime();
+            try {
+                runner.run(allowNotification);
+            } finally {
+                long end = System.nanoTime();
+                record(start - since, end - start);
+            }
+        }
+    }
+
+    private synchronized void record(long waitNanos, long runNanos) {
+        runs++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        totalRunNanos += runNanos;
+        maxRunNanos = Math.max(maxRunNanos, runNanos);
+        log.debug("Loop run waited " + waitNanos / 1000000 + " ms, took " + runNanos / 1000000 + " ms");
+    }
+
+    public synchronized long getRuns() {
+        return runs;
+    }
+
+    // Triggers merged into pending run
+    public synchronized long getMerged() {
+        return merged;
+    }
+
+    public synchronized long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public synchronized long getMaxRunNanos() {
+        return maxRunNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (runs == 0)
+            return "0 runs, " + merged + " merged";
+        return runs + " runs, " + merged + " merged, wait avg " + totalWaitNanos / runs / 1000000 + " max " + maxWaitNanos / 1000000
+                + " ms, run avg " + totalRunNanos / runs / 1000000 + " max " + maxRunNanos / 1000000 + " ms";
+    }
+}
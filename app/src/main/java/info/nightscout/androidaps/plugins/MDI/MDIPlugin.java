@@ -23,6 +23,7 @@ import info.nightscout.androidaps.plugins.Overview.events.EventOverviewBolusProg
 import info.nightscout.androidaps.plugins.VirtualPump.VirtualPumpFragment;
 import info.nightscout.androidaps.plugins.VirtualPump.events.EventVirtualPumpUpdateGui;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 
 /**
@@ -236,11 +237,11 @@ public class MDIPlugin implements PluginBase, PumpInterface {
                 extended.put("ActiveProfile", MainApp.getConfigBuilder().getActiveProfile().getProfile().getActiveProfile());
             } catch (Exception e) {
             }
-            status.put("timestamp", DateUtil.toISOString(new Date()));
+            status.put("timestamp", DateUtil.toISOString(Clock.date()));
 
             pump.put("status", status);
             pump.put("extended", extended);
-            pump.put("clock", DateUtil.toISOString(new Date()));
+            pump.put("clock", DateUtil.toISOString(Clock.date()));
         } catch (JSONException e) {
         }
         return pump;
@@ -0,0 +1,50 @@
+package info.nightscout.androidaps.plugins.OpenAPSMA;
+
+import org.json.JSONException;
+
+import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.interfaces.PumpInterface;
+import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
+import info.nightscout.client.data.NSProfile;
+
+/**
+ * Engine running the determine-basal algorithm
+ */
+public interface DetermineBasalAdapter {
+    void setData(NSProfile profile,
+                 double maxIob,
+                 double maxBasal,
+                 double minBg,
+                 double maxBg,
+                 double targetBg,
+                 PumpInterface pump,
+                 IobTotal iobData,
+                 DatabaseHelper.GlucoseStatus glucoseStatus,
+                 TreatmentsPlugin.MealData mealData);
+
+    // Recorded input params in the format returned by get...Param()
+    void setData(String glucoseStatus,
+                 String currentTemp,
+                 String iobData,
+                 String profile,
+                 String mealData) throws JSONException;
+
+    DetermineBasalResult invoke();
+
+    // Params of the last setData(), not changed by later runs
+    DetermineBasalParams getParams();
+
+    String getGlucoseStatusParam();
+
+    String getCurrentTempParam();
+
+    String getIobDataParam();
+
+    String getProfileParam();
+
+    String getMealDataParam();
+
+    boolean isHealthy();
+
+    void release();
+}
@@ -23,7 +23,7 @@ import info.nightscout.androidaps.plugins.Treatments.TreatmentsFragment;
 import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
 import info.nightscout.client.data.NSProfile;
 
-public class DetermineBasalAdapterJS implements Parcelable {
+public class DetermineBasalAdapterJS implements DetermineBasalAdapter, Parcelable {
     private static Logger log = LoggerFactory.getLogger(DetermineBasalAdapterJS.class);
 
 
@@ -41,31 +41,38 @@ public class DetermineBasalAdapterJS implements Parcelable {
     private final String PARAM_profile = "profile";
     private final String PARAM_meal_data = "meal_data";
 
-    private String storedCurrentTemp = null;
-    public String storedIobData = null;
-    private String storedGlucoseStatus = null;
-    private String storedProfile = null;
-    private String storedMeal_data = null;
+    // Inputs are kept on Java side and serialized only when requested
+    // replaced as a whole by setData
+    private volatile DetermineBasalParams params = new DetermineBasalParams();
+
+    // runtime is reused for all loop runs, set when script fails and runtime must be recreated
+    private boolean failed = false;
 
     /**
      *   Parcelable implementation
      *   result string for display only
      **/
     protected DetermineBasalAdapterJS(Parcel in) {
-        storedCurrentTemp = in.readString();
-        storedIobData = in.readString();
-        storedGlucoseStatus = in.readString();
-        storedProfile = in.readString();
-        storedMeal_data = in.readString();
+        String currentTemp = in.readString();
+        String iobData = in.readString();
+        String glucoseStatus = in.readString();
+        String profile = in.readString();
+        String mealData = in.readString();
+        try {
+            params = new DetermineBasalParams(glucoseStatus, currentTemp, iobData, profile, mealData);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(storedCurrentTemp);
-        dest.writeString(storedIobData);
-        dest.writeString(storedGlucoseStatus);
-        dest.writeString(storedProfile);
-        dest.writeString(storedMeal_data);
+        DetermineBasalParams p = params;
+        dest.writeString(p.getCurrentTempParam());
+        dest.writeString(p.getIobDataParam());
+        dest.writeString(p.getGlucoseStatusParam());
+        dest.writeString(p.getProfileParam());
+        dest.writeString(p.getMealDataParam());
     }
 
     @Override
@@ -93,11 +100,37 @@ public class DetermineBasalAdapterJS implements Parcelable {
         mV8rt = V8.createV8Runtime();
         mScriptReader = scriptReader;
 
+        boolean loaded = false;
+        try {
+            init();
+            initLogCallback();
+            initProcessExitCallback();
+            initModuleParent();
+            loadScript();
+            loaded = true;
+        } finally {
+            // native runtime would leak, objects created so far go with it
+            if (!loaded)
+                mV8rt.release(false);
+        }
+
+        // runtime is bound to the creating thread, unlock it for the next loop run
+        mV8rt.getLocker().release();
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return !failed && !mV8rt.isReleased();
+    }
+
+    // Fresh input objects for every run so nothing is left over from previous one
+    private void resetInputs() {
+        mProfile.release();
+        mCurrentTemp.release();
+        mIobData.release();
+        mGlucoseStatus.release();
+        mMealData.release();
         init();
-        initLogCallback();
-        initProcessExitCallback();
-        initModuleParent();
-        loadScript();
     }
 
     public void init() {
@@ -143,15 +176,27 @@ public class DetermineBasalAdapterJS implements Parcelable {
         mV8rt.add(PARAM_meal_data, mMealData);
     }
 
-    public DetermineBasalResult invoke() {
-        mV8rt.executeVoidScript(
-                "console.error(\"determine_basal(\"+\n" +
-                        "JSON.stringify(" + PARAM_glucoseStatus + ")+ \", \" +\n" +
-                        "JSON.stringify(" + PARAM_currentTemp +   ")+ \", \" +\n" +
-                        "JSON.stringify(" + PARAM_iobData +       ")+ \", \" +\n" +
-                        "JSON.stringify(" + PARAM_profile +       ")+ \", \" +\n" +
-                        "JSON.stringify(" + PARAM_meal_data +     ")+ \") \");"
-        );
+    @Override
+    public synchronized DetermineBasalResult invoke() {
+        mV8rt.getLocker().acquire();
+        try {
+            return invokeLocked();
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            mV8rt.getLocker().release();
+        }
+    }
+
+    private DetermineBasalResult invokeLocked() {
+        if (Config.logAPSResult)
+            log.debug("Input params: determine_basal(" +
+                    params.getGlucoseStatusParam() + ", " +
+                    params.getCurrentTempParam() + ", " +
+                    params.getIobDataParam() + ", " +
+                    params.getProfileParam() + ", " +
+                    params.getMealDataParam() + ")");
         mV8rt.executeVoidScript(
                 "var rT = determine_basal(" +
                         PARAM_glucoseStatus + ", " +
@@ -168,43 +213,44 @@ public class DetermineBasalAdapterJS implements Parcelable {
         if (Config.logAPSResult)
             log.debug("Result: " + ret);
 
-        V8Object v8ObjectReuslt = mV8rt.getObject("rT");
-
         DetermineBasalResult result = null;
         try {
-            result = new DetermineBasalResult(v8ObjectReuslt, new JSONObject(ret));
+            result = new DetermineBasalResult(new JSONObject(ret));
         } catch (JSONException e) {
             e.printStackTrace();
         }
 
-        // Store input params for Parcelable
-        storedGlucoseStatus = mV8rt.executeStringScript("JSON.stringify(" + PARAM_glucoseStatus + ");");
-        storedIobData = mV8rt.executeStringScript("JSON.stringify(" + PARAM_iobData + ");");
-        storedCurrentTemp = mV8rt.executeStringScript("JSON.stringify(" + PARAM_currentTemp + ");");
-        storedProfile = mV8rt.executeStringScript("JSON.stringify(" + PARAM_profile + ");");
-        storedMeal_data = mV8rt.executeStringScript("JSON.stringify(" + PARAM_meal_data + ");");
-
         return result;
     }
 
-    String getGlucoseStatusParam() {
-        return storedGlucoseStatus;
+    @Override
+    public DetermineBasalParams getParams() {
+        return params;
     }
 
-    String getCurrentTempParam() {
-        return storedCurrentTemp;
+    @Override
+    public String getGlucoseStatusParam() {
+        return params.getGlucoseStatusParam();
     }
 
-    String getIobDataParam() {
-        return storedIobData;
+    @Override
+    public String getCurrentTempParam() {
+        return params.getCurrentTempParam();
+    }
+
+    @Override
+    public String getIobDataParam() {
+        return params.getIobDataParam();
     }
 
-    String getProfileParam() {
-        return storedProfile;
+    @Override
+    public String getProfileParam() {
+        return params.getProfileParam();
     }
 
-    String getMealDataParam() {
-        return storedMeal_data;
+    @Override
+    public String getMealDataParam() {
+        return params.getMealDataParam();
     }
 
     private void loadScript() throws IOException {
@@ -258,7 +304,8 @@ public class DetermineBasalAdapterJS implements Parcelable {
     }
 
 
-    public void setData(NSProfile profile,
+    @Override
+    public synchronized void setData(NSProfile profile,
                         double maxIob,
                         double maxBasal,
                         double minBg,
@@ -268,42 +315,78 @@ public class DetermineBasalAdapterJS implements Parcelable {
                         IobTotal iobData,
                         DatabaseHelper.GlucoseStatus glucoseStatus,
                         TreatmentsPlugin.MealData mealData) {
+        params = new DetermineBasalParams(profile, maxIob, maxBasal, minBg, maxBg, targetBg, pump, iobData, glucoseStatus, mealData);
+        mV8rt.getLocker().acquire();
+        try {
+            resetInputs();
+            fillInputs();
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            mV8rt.getLocker().release();
+        }
+    }
 
-        String units = profile.getUnits();
+    @Override
+    public synchronized void setData(String glucoseStatus,
+                                     String currentTemp,
+                                     String iobData,
+                                     String profile,
+                                     String mealData) throws JSONException {
+        params = new DetermineBasalParams(glucoseStatus, currentTemp, iobData, profile, mealData);
+        mV8rt.getLocker().acquire();
+        try {
+            resetInputs();
+            fillInputs();
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            mV8rt.getLocker().release();
+        }
+    }
 
-        mProfile.add("max_iob", maxIob);
-        mProfile.add("carbs_hr", profile.getCarbAbsorbtionRate());
-        mProfile.add("dia", profile.getDia());
+    private void fillInputs() {
+        mProfile.add("max_iob", params.maxIob);
+        mProfile.add("carbs_hr", params.carbsHr);
+        mProfile.add("dia", params.dia);
         mProfile.add("type", "current");
-        mProfile.add("max_daily_basal", profile.getMaxDailyBasal());
-        mProfile.add("max_basal", maxBasal);
-        mProfile.add("min_bg", minBg);
-        mProfile.add("max_bg", maxBg);
-        mProfile.add("target_bg", targetBg);
-        mProfile.add("carb_ratio", profile.getIc(profile.secondsFromMidnight()));
-        mProfile.add("sens", NSProfile.toMgdl(profile.getIsf(NSProfile.secondsFromMidnight()).doubleValue(), units));
-
-        mProfile.add("current_basal", pump.getBaseBasalRate());
-        mCurrentTemp.add("duration", pump.getTempBasalRemainingMinutes());
-        mCurrentTemp.add("rate", pump.getTempBasalAbsoluteRate());
-
-        mIobData.add("iob", iobData.iob); //netIob
-        mIobData.add("activity", iobData.activity); //netActivity
-        mIobData.add("bolussnooze", iobData.bolussnooze); //bolusIob
-        mIobData.add("basaliob", iobData.basaliob);
-        mIobData.add("netbasalinsulin", iobData.netbasalinsulin);
-        mIobData.add("hightempinsulin", iobData.hightempinsulin);
-
-        mGlucoseStatus.add("glucose", glucoseStatus.glucose);
-        mGlucoseStatus.add("delta", glucoseStatus.delta);
-        mGlucoseStatus.add("avgdelta", glucoseStatus.avgdelta);
-
-        mMealData.add("carbs", mealData.carbs);
-        mMealData.add("boluses", mealData.boluses);
+        mProfile.add("max_daily_basal", params.maxDailyBasal);
+        mProfile.add("max_basal", params.maxBasal);
+        mProfile.add("min_bg", params.minBg);
+        mProfile.add("max_bg", params.maxBg);
+        // target_bg is optional in the script
+        if (!Double.isNaN(params.targetBg))
+            mProfile.add("target_bg", params.targetBg);
+        mProfile.add("carb_ratio", params.carbRatio);
+        mProfile.add("sens", params.sens);
+        mProfile.add("current_basal", params.currentBasal);
+
+        mCurrentTemp.add("duration", params.currentTempDuration);
+        mCurrentTemp.add("rate", params.currentTempRate);
+
+        mIobData.add("iob", params.iob); //netIob
+        mIobData.add("activity", params.activity); //netActivity
+        mIobData.add("bolussnooze", params.bolusSnooze); //bolusIob
+        mIobData.add("basaliob", params.basalIob);
+        mIobData.add("netbasalinsulin", params.netBasalInsulin);
+        mIobData.add("hightempinsulin", params.highTempInsulin);
+
+        mGlucoseStatus.add("glucose", params.glucose);
+        mGlucoseStatus.add("delta", params.delta);
+        mGlucoseStatus.add("avgdelta", params.avgDelta);
+
+        mMealData.add("carbs", params.carbs);
+        mMealData.add("boluses", params.boluses);
     }
 
 
-     public void release() {
+    @Override
+    public synchronized void release() {
+        if (mV8rt.isReleased())
+            return;
+        mV8rt.getLocker().acquire();
         mProfile.release();
         mCurrentTemp.release();
         mIobData.release();
@@ -0,0 +1,405 @@
+package info.nightscout.androidaps.plugins.OpenAPSMA;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import info.nightscout.androidaps.Config;
+import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.interfaces.PumpInterface;
+import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
+import info.nightscout.client.data.NSProfile;
+
+/**
+ * Java port of assets/OpenAPSMA/determine-basal.js
+ * Results (including reason strings) must be the same as from DetermineBasalAdapterJS
+ */
+public class DetermineBasalAdapterJava implements DetermineBasalAdapter {
+    private static Logger log = LoggerFactory.getLogger(DetermineBasalAdapterJava.class);
+
+    // replaced as a whole by setData
+    private volatile DetermineBasalParams params = new DetermineBasalParams();
+
+    @Override
+    public void setData(NSProfile profile,
+                        double maxIob,
+                        double maxBasal,
+                        double minBg,
+                        double maxBg,
+                        double targetBg,
+                        PumpInterface pump,
+                        IobTotal iobData,
+                        DatabaseHelper.GlucoseStatus glucoseStatus,
+                        TreatmentsPlugin.MealData mealData) {
+        params = new DetermineBasalParams(profile, maxIob, maxBasal, minBg, maxBg, targetBg, pump, iobData, glucoseStatus, mealData);
+    }
+
+    @Override
+    public void setData(String glucoseStatus,
+                        String currentTemp,
+                        String iobData,
+                        String profile,
+                        String mealData) throws JSONException {
+        params = new DetermineBasalParams(glucoseStatus, currentTemp, iobData, profile, mealData);
+    }
+
+    @Override
+    public DetermineBasalResult invoke() {
+        JSONObject rT;
+        try {
+            rT = determineBasal();
+        } catch (JSONException e) {
+            log.error("Unhandled exception", e);
+            return null;
+        }
+        if (Config.logAPSResult)
+            log.debug("Result: " + rT.toString());
+        return new DetermineBasalResult(rT);
+    }
+
+    private JSONObject determineBasal() throws JSONException {
+        DetermineBasalParams p = params;
+        JSONObject rT = new JSONObject();
+
+        if (Double.isNaN(p.currentBasal)) {
+            rT.put("error", "Error: could not get current basal rate");
+            return rT;
+        }
+
+        double bg = p.glucose;
+        if (bg < 38) {
+            rT.put("error", "CGM is calibrating or in ??? state");
+            return rT;
+        }
+
+        double minBg = p.minBg;
+        double targetBg;
+        if (!Double.isNaN(p.targetBg)) {
+            targetBg = p.targetBg;
+        } else if (!Double.isNaN(minBg) && !Double.isNaN(p.maxBg)) {
+            targetBg = (minBg + p.maxBg) / 2;
+        } else {
+            rT.put("error", "Error: could not determine target_bg");
+            return rT;
+        }
+
+        if (Double.isNaN(p.activity) || Double.isNaN(p.iob)) {
+            rT.put("error", "Error: iob_data missing some property");
+            return rT;
+        }
+
+        // tick is string when positive and number when negative
+        Object tick;
+        String tickString;
+        if (p.delta >= 0) {
+            tickString = "+" + js(p.delta);
+            tick = tickString;
+        } else {
+            tickString = js(p.delta);
+            tick = p.delta;
+        }
+        double minDelta = Math.min(p.delta, p.avgDelta);
+
+        double bgi = round((-p.activity * p.sens * 5) * 100) / 100;
+        double deviation = round(15d / 5 * (p.avgDelta - bgi));
+        if (deviation < 0) {
+            deviation = round(30d / 5 * (p.avgDelta - bgi));
+        }
+
+        double naiveEventualBG = round(bg - (p.iob * p.sens));
+        double eventualBG = naiveEventualBG + deviation;
+        double bolusContrib = p.bolusSnooze * p.sens;
+        double naiveSnoozeBG = round(naiveEventualBG + 1.5 * bolusContrib);
+        double snoozeBG = naiveSnoozeBG + deviation;
+
+        double expectedDelta = round((bgi + (targetBg - eventualBG) / (p.dia * 60 / 5)) * 10) / 10;
+
+        if (Double.isNaN(eventualBG)) {
+            rT.put("error", "Error: could not calculate eventualBG");
+            return rT;
+        }
+
+        double threshold = minBg - 0.5 * (minBg - 50);
+
+        rT = new JSONObject();
+        rT.put("temp", "absolute");
+        rT.put("bg", bg);
+        rT.put("tick", tick);
+        rT.put("eventualBG", eventualBG);
+        rT.put("snoozeBG", snoozeBG);
+
+        double basaliob = p.basalIob != 0 && !Double.isNaN(p.basalIob) ? p.basalIob : p.iob - p.bolusSnooze;
+        String mealAssist;
+        String reason;
+        if (minDelta > Math.max(3, bgi) && ((p.carbs > 0 && (1.1 * p.carbs / p.carbRatio > p.boluses + basaliob)) || (deviation > 25 && minDelta > 7))) {
+            eventualBG = Math.max(bg, eventualBG) + deviation;
+            rT.put("eventualBG", eventualBG);
+            minBg = 80;
+            targetBg = (minBg + p.maxBg) / 2;
+            expectedDelta = round((bgi + (targetBg - eventualBG) / (p.dia * 60 / 5)) * 10) / 10;
+            mealAssist = "On: Carbs: " + js(p.carbs) + " Boluses: " + js(p.boluses) + " Target: " + js(targetBg) + " Deviation: " + js(deviation) + " BGI: " + js(bgi);
+        } else {
+            mealAssist = "Off: Carbs: " + js(p.carbs) + " Boluses: " + js(p.boluses) + " Target: " + js(targetBg) + " Deviation: " + js(deviation) + " BGI: " + js(bgi);
+        }
+        rT.put("mealAssist", mealAssist);
+
+        if (bg < threshold) { // low glucose suspend mode: BG is < ~80
+            reason = "BG " + js(bg) + "<" + js(threshold);
+            if ((p.delta <= 0 && p.avgDelta <= 0) || (p.delta < expectedDelta && p.avgDelta < expectedDelta)) {
+                return setTempBasal(0, 30, rT, reason);
+            }
+            if (p.delta > p.avgDelta) {
+                reason += ", delta " + js(p.delta) + ">0";
+            } else {
+                reason += ", avg delta " + toFixed(p.avgDelta, 2) + ">0";
+            }
+            if (p.currentTempRate > p.currentBasal) { // if a high-temp is running
+                reason += ", cancel high temp";
+                return setTempBasal(0, 0, rT, reason);
+            } else if (p.currentTempDuration != 0 && eventualBG > p.maxBg) { // if low-temped and predicted to go high from negative IOB
+                reason += ", cancel low temp";
+                return setTempBasal(0, 0, rT, reason);
+            }
+            reason += "; no high-temp to cancel";
+            return rT.put("reason", reason);
+        }
+
+        if (eventualBG < minBg) { // if eventual BG is below target:
+            if (mealAssist.startsWith("On")) {
+                reason = "Meal assist: " + js(p.carbs) + "g, " + js(p.boluses) + "U";
+            } else {
+                reason = "Eventual BG " + js(eventualBG) + "<" + js(minBg);
+                // if 5m or 15m avg BG is rising faster than expected delta
+                if (minDelta > expectedDelta && minDelta > 0) {
+                    if (p.delta > p.avgDelta) {
+                        reason += ", but Delta " + tickString + " > Exp. Delta " + js(expectedDelta);
+                    } else {
+                        reason += ", but Avg. Delta " + toFixed(p.avgDelta, 2) + " > Exp. Delta " + js(expectedDelta);
+                    }
+                    if (p.currentTempDuration > 0) { // if there is currently any temp basal running
+                        reason += "; cancel";
+                        return setTempBasal(0, 0, rT, reason);
+                    } else {
+                        reason += "; no temp to cancel";
+                        return rT.put("reason", reason);
+                    }
+                }
+            }
+
+            // if this is just due to boluses, we can snooze until the bolus IOB decays (at double speed)
+            if (snoozeBG > minBg) { // if adding back in the bolus contribution BG would be above min
+                // if BG is falling and high-temped, or rising and low-temped, cancel
+                if (p.delta < 0 && p.currentTempDuration > 0 && p.currentTempRate > p.currentBasal) {
+                    reason += tickString + ", and temp " + js(p.currentTempRate) + " > basal " + js(p.currentBasal);
+                    return setTempBasal(0, 0, rT, reason);
+                } else if (p.delta > 0 && p.currentTempDuration > 0 && p.currentTempRate < p.currentBasal) {
+                    reason += tickString + ", and temp " + js(p.currentTempRate) + " < basal " + js(p.currentBasal);
+                    return setTempBasal(0, 0, rT, reason);
+                }
+
+                reason += ", bolus snooze: eventual BG range " + js(eventualBG) + "-" + js(snoozeBG);
+                return rT.put("reason", reason);
+            } else {
+                // calculate 30m low-temp required to get projected BG up to target
+                // multiply by 2 to low-temp faster for increased hypo safety
+                double insulinReq = 2 * Math.min(0, (snoozeBG - targetBg) / p.sens);
+                if (minDelta < 0 && minDelta > expectedDelta) {
+                    // if we're barely falling, newinsulinReq should be barely negative
+                    reason += ", Snooze BG " + js(snoozeBG);
+                    insulinReq = round((insulinReq * (minDelta / expectedDelta)) * 100) / 100;
+                }
+                // rate required to deliver insulinReq less insulin over 30m:
+                double rate = p.currentBasal + (2 * insulinReq);
+                rate = round(rate * 1000) / 1000;
+                // if required temp < existing temp basal
+                double insulinScheduled = p.currentTempDuration * (p.currentTempRate - p.currentBasal) / 60;
+                if (insulinScheduled < insulinReq - 0.2) { // if current temp would deliver >0.2U less than the required insulin, raise the rate
+                    reason = js(p.currentTempDuration) + "m@" + toFixed(p.currentTempRate - p.currentBasal, 3) + " = " + toFixed(insulinScheduled, 3) + " < req " + js(insulinReq) + "-0.2U";
+                    return setTempBasal(rate, 30, rT, reason);
+                }
+                if (!Double.isNaN(p.currentTempRate) && (p.currentTempDuration > 5 && rate > p.currentTempRate - 0.1)) {
+                    reason += ", temp " + js(p.currentTempRate) + " ~< req " + js(rate) + "U/hr";
+                    return rT.put("reason", reason);
+                } else {
+                    reason += ", setting " + js(rate) + "U/hr";
+                    return setTempBasal(rate, 30, rT, reason);
+                }
+            }
+        }
+
+        // if eventual BG is above min but BG is falling faster than expected Delta
+        if (minDelta < expectedDelta) {
+            if (p.delta < p.avgDelta) {
+                reason = "Eventual BG " + js(eventualBG) + ">" + js(minBg) + " but Delta " + tickString + " < Exp. Delta " + js(expectedDelta);
+            } else {
+                reason = "Eventual BG " + js(eventualBG) + ">" + js(minBg) + " but Avg. Delta " + toFixed(p.avgDelta, 2) + " < Exp. Delta " + js(expectedDelta);
+            }
+            if (p.currentTempDuration > 0) { // if there is currently any temp basal running
+                reason += "; cancel";
+                return setTempBasal(0, 0, rT, reason);
+            } else {
+                reason += "; no temp to cancel";
+                return rT.put("reason", reason);
+            }
+        }
+
+        if (eventualBG < p.maxBg) {
+            reason = js(eventualBG) + " is in range. No temp required";
+            if (p.currentTempDuration > 0) { // if there is currently any temp basal running
+                reason += "; cancel";
+                return setTempBasal(0, 0, rT, reason);
+            }
+            // offline mode of the script is never used by the adapter
+            return rT.put("reason", reason);
+        }
+
+        if (snoozeBG < p.maxBg) {
+            reason = js(snoozeBG) + " < " + js(p.maxBg);
+            if (p.currentTempDuration > 0) { // if there is currently any temp basal running
+                reason += "; cancel";
+                return setTempBasal(0, 0, rT, reason);
+            } else {
+                reason += "; no temp to cancel";
+                return rT.put("reason", reason);
+            }
+        }
+
+        // eventual BG is at/above target:
+        // if iob is over max, just cancel any temps
+        reason = "Eventual BG " + js(eventualBG) + ">=" + js(p.maxBg) + ", ";
+        if (basaliob > p.maxIob) {
+            reason = "basaliob " + js(basaliob) + " > max_iob " + js(p.maxIob);
+            return setTempBasal(0, 0, rT, reason);
+        }
+
+        // otherwise, calculate 30m high-temp required to get projected BG down to target
+        // if in meal assist mode, check if snoozeBG is lower, as eventualBG is not dependent on IOB
+        double insulinReq = (Math.min(snoozeBG, eventualBG) - targetBg) / p.sens;
+        if (minDelta < 0 && minDelta > expectedDelta) {
+            insulinReq = round((insulinReq * (1 - (minDelta / expectedDelta))) * 100) / 100;
+        }
+        // if that would put us over max_iob, then reduce accordingly
+        if (insulinReq > p.maxIob - basaliob) {
+            reason = "max_iob " + js(p.maxIob) + ", ";
+            insulinReq = p.maxIob - basaliob;
+        }
+
+        // rate required to deliver insulinReq more insulin over 30m:
+        double rate = p.currentBasal + (2 * insulinReq);
+        rate = round(rate * 1000) / 1000;
+
+        double maxSafeBasal = Math.min(p.maxBasal, Math.min(3 * p.maxDailyBasal, 4 * p.currentBasal));
+        if (rate > maxSafeBasal) {
+            reason += "adj. req. rate:" + toFixed(rate, 1) + " to maxSafeBasal:" + toFixed(maxSafeBasal, 1) + ", ";
+            rate = maxSafeBasal;
+        }
+
+        double insulinScheduled = p.currentTempDuration * (p.currentTempRate - p.currentBasal) / 60;
+        if (insulinScheduled > insulinReq + 0.2) { // if current temp would deliver >0.2U more than the required insulin, lower the rate
+            reason = js(p.currentTempDuration) + "m@" + toFixed(p.currentTempRate - p.currentBasal, 3) + " = " + toFixed(insulinScheduled, 3) + " > req " + js(insulinReq) + "+0.2U";
+            return setTempBasal(rate, 30, rT, reason);
+        }
+
+        if (Double.isNaN(p.currentTempDuration) || p.currentTempDuration == 0) { // no temp is set
+            reason += "no temp, setting " + js(rate) + "U/hr";
+            return setTempBasal(rate, 30, rT, reason);
+        }
+
+        if (p.currentTempDuration > 5 && rate < p.currentTempRate + 0.1) { // if required temp <~ existing temp basal
+            reason += "temp " + js(p.currentTempRate) + " >~ req " + js(rate) + "U/hr";
+            return rT.put("reason", reason);
+        }
+
+        // required temp > existing temp basal
+        reason += "temp " + js(p.currentTempRate) + "<" + js(rate) + "U/hr";
+        return setTempBasal(rate, 30, rT, reason);
+    }
+
+    private static JSONObject setTempBasal(double rate, int duration, JSONObject rT, String reason) throws JSONException {
+        rT.put("reason", reason);
+        rT.put("duration", duration);
+        rT.put("rate", rate);
+        return rT;
+    }
+
+    // Math.round of JS
+    static double round(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return value;
+        return Math.round(value);
+    }
+
+    // Number to string conversion of JS
+    static String js(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        if (Double.isNaN(value))
+            return "NaN";
+        if (Double.isInfinite(value))
+            return value > 0 ? "Infinity" : "-Infinity";
+        String s = Double.toString(value);
+        int exponent = s.indexOf('E');
+        if (exponent < 0)
+            return s;
+        if (Math.abs(value) >= 1e-6)
+            return new BigDecimal(s).stripTrailingZeros().toPlainString();
+        // very small numbers like 1e-7 or 2.220446049250313e-16
+        String mantissa = s.substring(0, exponent);
+        if (mantissa.endsWith(".0"))
+            mantissa = mantissa.substring(0, mantissa.length() - 2);
+        return mantissa + "e" + s.substring(exponent + 1);
+    }
+
+    // Number.toFixed of JS
+    static String toFixed(double value, int digits) {
+        if (Double.isNaN(value))
+            return "NaN";
+        String s = new BigDecimal(value).setScale(digits, RoundingMode.HALF_UP).toPlainString();
+        if (value < 0 && !s.startsWith("-"))
+            s = "-" + s;
+        return s;
+    }
+
+    @Override
+    public DetermineBasalParams getParams() {
+        return params;
+    }
+
+    @Override
+    public String getGlucoseStatusParam() {
+        return params.getGlucoseStatusParam();
+    }
+
+    @Override
+    public String getCurrentTempParam() {
+        return params.getCurrentTempParam();
+    }
+
+    @Override
+    public String getIobDataParam() {
+        return params.getIobDataParam();
+    }
+
+    @Override
+    public String getProfileParam() {
+        return params.getProfileParam();
+    }
+
+    @Override
+    public String getMealDataParam() {
+        return params.getMealDataParam();
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return true;
+    }
+
+    @Override
+    public void release() {
+    }
+}
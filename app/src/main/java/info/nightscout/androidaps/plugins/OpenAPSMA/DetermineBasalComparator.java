@@ -0,0 +1,57 @@
+package info.nightscout.androidaps.plugins.OpenAPSMA;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Replays recorded determine-basal input params through two engines and reports differences of results
+ */
+public class DetermineBasalComparator {
+    private static final double NUMBER_TOLERANCE = 1e-9;
+
+    // Returns null if both engines give the same result
+    public static String compare(DetermineBasalAdapter reference,
+                                 DetermineBasalAdapter tested,
+                                 String glucoseStatus,
+                                 String currentTemp,
+                                 String iobData,
+                                 String profile,
+                                 String mealData) throws JSONException {
+        reference.setData(glucoseStatus, currentTemp, iobData, profile, mealData);
+        tested.setData(glucoseStatus, currentTemp, iobData, profile, mealData);
+        DetermineBasalResult expected = reference.invoke();
+        DetermineBasalResult actual = tested.invoke();
+        if (expected == null || actual == null)
+            return "no result: " + (expected == null ? "reference" : "tested");
+        return diff(expected.json, actual.json);
+    }
+
+    // Compare same way as JSON.stringify outputs, numbers with tolerance
+    public static String diff(JSONObject expected, JSONObject actual) {
+        Set<String> keys = new TreeSet<>();
+        Iterator<String> it = expected.keys();
+        while (it.hasNext()) keys.add(it.next());
+        it = actual.keys();
+        while (it.hasNext()) keys.add(it.next());
+        // added to result later by plugin
+        keys.remove("timestamp");
+
+        StringBuilder diff = new StringBuilder();
+        for (String key : keys) {
+            Object e = expected.opt(key);
+            Object a = actual.opt(key);
+            if (e instanceof Number && a instanceof Number) {
+                if (Math.abs(((Number) e).doubleValue() - ((Number) a).doubleValue()) <= NUMBER_TOLERANCE)
+                    continue;
+            } else if (e != null && a != null && e.getClass() == a.getClass() && e.toString().equals(a.toString())) {
+                continue;
+            }
+            diff.append(key).append(": ").append(e).append(" != ").append(a).append("\n");
+        }
+        return diff.length() == 0 ? null : diff.toString();
+    }
+}
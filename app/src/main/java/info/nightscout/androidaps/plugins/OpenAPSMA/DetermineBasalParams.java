@@ -0,0 +1,240 @@
+package info.nightscout.androidaps.plugins.OpenAPSMA;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.interfaces.PumpInterface;
+import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
+import info.nightscout.client.data.NSProfile;
+
+/**
+ * Input params of determine-basal kept on Java side
+ * New instance is created for every run and not changed afterwards, so it can be shown
+ * together with result of the same run while the next run is prepared.
+ * JSON for display, logging and replay is created only when requested
+ */
+public class DetermineBasalParams {
+    // undefined values of JS are NaN
+
+    // profile
+    double maxIob;
+    double carbsHr;
+    double dia;
+    double maxDailyBasal;
+    double maxBasal;
+    double minBg;
+    double maxBg;
+    double targetBg = Double.NaN;
+    double carbRatio;
+    double sens;
+    double currentBasal;
+
+    // current temp
+    double currentTempDuration;
+    double currentTempRate;
+
+    // iob data
+    double iob;
+    double activity;
+    double bolusSnooze;
+    double basalIob;
+    double netBasalInsulin;
+    double highTempInsulin;
+
+    // glucose status
+    double glucose;
+    double delta;
+    double avgDelta;
+
+    // meal data
+    double carbs;
+    double boluses;
+
+    // serialized only when requested, guarded by this
+    private String glucoseStatusJson;
+    private String currentTempJson;
+    private String iobDataJson;
+    private String profileJson;
+    private String mealDataJson;
+
+    // empty params before first run
+    DetermineBasalParams() {
+    }
+
+    DetermineBasalParams(NSProfile profile,
+                         double maxIob,
+                         double maxBasal,
+                         double minBg,
+                         double maxBg,
+                         double targetBg,
+                         PumpInterface pump,
+                         IobTotal iobData,
+                         DatabaseHelper.GlucoseStatus glucoseStatus,
+                         TreatmentsPlugin.MealData mealData) {
+        String units = profile.getUnits();
+
+        this.maxIob = maxIob;
+        carbsHr = profile.getCarbAbsorbtionRate();
+        dia = profile.getDia();
+        maxDailyBasal = profile.getMaxDailyBasal();
+        this.maxBasal = maxBasal;
+        this.minBg = minBg;
+        this.maxBg = maxBg;
+        this.targetBg = targetBg;
+        carbRatio = profile.getIc(profile.secondsFromMidnight());
+        sens = NSProfile.toMgdl(profile.getIsf(NSProfile.secondsFromMidnight()).doubleValue(), units);
+
+        currentBasal = pump.getBaseBasalRate();
+        currentTempDuration = pump.getTempBasalRemainingMinutes();
+        currentTempRate = pump.getTempBasalAbsoluteRate();
+
+        iob = iobData.iob;
+        activity = iobData.activity;
+        bolusSnooze = iobData.bolussnooze;
+        basalIob = iobData.basaliob;
+        netBasalInsulin = iobData.netbasalinsulin;
+        highTempInsulin = iobData.hightempinsulin;
+
+        glucose = glucoseStatus.glucose;
+        delta = glucoseStatus.delta;
+        avgDelta = glucoseStatus.avgdelta;
+
+        carbs = mealData.carbs;
+        boluses = mealData.boluses;
+    }
+
+    DetermineBasalParams(String glucoseStatus,
+                         String currentTemp,
+                         String iobData,
+                         String profile,
+                         String mealData) throws JSONException {
+        JSONObject p = new JSONObject(profile);
+        maxIob = p.optDouble("max_iob");
+        carbsHr = p.optDouble("carbs_hr");
+        dia = p.optDouble("dia");
+        maxDailyBasal = p.optDouble("max_daily_basal");
+        maxBasal = p.optDouble("max_basal");
+        minBg = p.optDouble("min_bg");
+        maxBg = p.optDouble("max_bg");
+        targetBg = p.optDouble("target_bg");
+        carbRatio = p.optDouble("carb_ratio");
+        sens = p.optDouble("sens");
+        currentBasal = p.optDouble("current_basal");
+
+        JSONObject t = new JSONObject(currentTemp);
+        currentTempDuration = t.optDouble("duration");
+        currentTempRate = t.optDouble("rate");
+
+        JSONObject i = new JSONObject(iobData);
+        iob = i.optDouble("iob");
+        activity = i.optDouble("activity");
+        bolusSnooze = i.optDouble("bolussnooze");
+        basalIob = i.optDouble("basaliob");
+        netBasalInsulin = i.optDouble("netbasalinsulin");
+        highTempInsulin = i.optDouble("hightempinsulin");
+
+        JSONObject g = new JSONObject(glucoseStatus);
+        glucose = g.optDouble("glucose");
+        delta = g.optDouble("delta");
+        avgDelta = g.optDouble("avgdelta");
+
+        JSONObject m = new JSONObject(mealData);
+        carbs = m.optDouble("carbs");
+        boluses = m.optDouble("boluses");
+
+        // recorded params are already serialized
+        glucoseStatusJson = glucoseStatus;
+        currentTempJson = currentTemp;
+        iobDataJson = iobData;
+        profileJson = profile;
+        mealDataJson = mealData;
+    }
+
+    synchronized String getGlucoseStatusParam() {
+        if (glucoseStatusJson != null)
+            return glucoseStatusJson;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("glucose", glucose);
+            json.put("delta", delta);
+            json.put("avgdelta", avgDelta);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        glucoseStatusJson = json.toString();
+        return glucoseStatusJson;
+    }
+
+    synchronized String getCurrentTempParam() {
+        if (currentTempJson != null)
+            return currentTempJson;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("temp", "absolute");
+            json.put("duration", currentTempDuration);
+            json.put("rate", currentTempRate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        currentTempJson = json.toString();
+        return currentTempJson;
+    }
+
+    synchronized String getIobDataParam() {
+        if (iobDataJson != null)
+            return iobDataJson;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("iob", iob);
+            json.put("activity", activity);
+            json.put("bolussnooze", bolusSnooze);
+            json.put("basaliob", basalIob);
+            json.put("netbasalinsulin", netBasalInsulin);
+            json.put("hightempinsulin", highTempInsulin);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        iobDataJson = json.toString();
+        return iobDataJson;
+    }
+
+    synchronized String getProfileParam() {
+        if (profileJson != null)
+            return profileJson;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("max_iob", maxIob);
+            json.put("carbs_hr", carbsHr);
+            json.put("dia", dia);
+            json.put("type", "current");
+            json.put("max_daily_basal", maxDailyBasal);
+            json.put("max_basal", maxBasal);
+            json.put("max_bg", maxBg);
+            json.put("min_bg", minBg);
+            if (!Double.isNaN(targetBg))
+                json.put("target_bg", targetBg);
+            json.put("carb_ratio", carbRatio);
+            json.put("sens", sens);
+            json.put("current_basal", currentBasal);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        profileJson = json.toString();
+        return profileJson;
+    }
+
+    synchronized String getMealDataParam() {
+        if (mealDataJson != null)
+            return mealDataJson;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("carbs", carbs);
+            json.put("boluses", boluses);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        mealDataJson = json.toString();
+        return mealDataJson;
+    }
+}
@@ -3,8 +3,6 @@ package info.nightscout.androidaps.plugins.OpenAPSMA;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import com.eclipsesource.v8.V8Object;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,38 +16,41 @@ public class DetermineBasalResult extends APSResult {
     public String mealAssist;
     public IobTotal iob;
 
-    public DetermineBasalResult(V8Object result, JSONObject j) {
-        json = j;
-        if (result.contains("error")) {
-            reason = result.getString("error");
-            changeRequested = false;
-            rate = -1;
-            duration = -1;
-            mealAssist = "";
-        } else {
-            reason = result.getString("reason");
-            eventualBG = result.getDouble("eventualBG");
-            snoozeBG = result.getDouble("snoozeBG");
-            if (result.contains("rate")) {
-                rate = result.getDouble("rate");
-                if (rate < 0d) rate = 0d;
-                changeRequested = true;
-            } else {
-                rate = -1;
+    public DetermineBasalResult(JSONObject result) {
+        json = result;
+        try {
+            if (result.has("error")) {
+                reason = result.getString("error");
                 changeRequested = false;
-            }
-            if (result.contains("duration")) {
-                duration = result.getInteger("duration");
-                changeRequested = changeRequested;
-            } else {
+                rate = -1;
                 duration = -1;
-                changeRequested = false;
+                mealAssist = "";
+            } else {
+                reason = result.getString("reason");
+                eventualBG = result.getDouble("eventualBG");
+                snoozeBG = result.getDouble("snoozeBG");
+                if (result.has("rate")) {
+                    rate = result.getDouble("rate");
+                    if (rate < 0d) rate = 0d;
+                    changeRequested = true;
+                } else {
+                    rate = -1;
+                    changeRequested = false;
+                }
+                if (result.has("duration")) {
+                    duration = result.getInt("duration");
+                    changeRequested = changeRequested;
+                } else {
+                    duration = -1;
+                    changeRequested = false;
+                }
+                if (result.has("mealAssist")) {
+                    mealAssist = result.getString("mealAssist");
+                } else mealAssist = "";
             }
-            if (result.contains("mealAssist")) {
-                mealAssist = result.getString("mealAssist");
-            } else mealAssist = "";
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-        result.release();
     }
 
     @Override
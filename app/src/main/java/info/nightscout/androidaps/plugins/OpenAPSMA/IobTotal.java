@@ -3,8 +3,7 @@ package info.nightscout.androidaps.plugins.OpenAPSMA;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Date;
-
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 import info.nightscout.utils.Round;
 
@@ -67,7 +66,7 @@ public class IobTotal {
             json.put("iob", iob);
             json.put("basaliob", basaliob);
             json.put("activity", activity);
-            json.put("time", DateUtil.toISOString(new Date()));
+            json.put("time", DateUtil.toISOString(Clock.date()));
         } catch (JSONException e) {
             e.printStackTrace();
         }
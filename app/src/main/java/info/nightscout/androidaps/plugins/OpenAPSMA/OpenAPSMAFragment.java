@@ -102,21 +102,18 @@ public class OpenAPSMAFragment extends Fragment implements View.OnClickListener,
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    DetermineBasalResult lastAPSResult = getPlugin().lastAPSResult;
-                    if (lastAPSResult != null) {
-                        resultView.setText(JSONFormatter.format(lastAPSResult.json));
-                        requestView.setText(lastAPSResult.toSpanned());
-                    }
-                    DetermineBasalAdapterJS determineBasalAdapterJS = getPlugin().lastDetermineBasalAdapterJS;
-                    if (determineBasalAdapterJS != null) {
-                        glucoseStatusView.setText(JSONFormatter.format(determineBasalAdapterJS.getGlucoseStatusParam()));
-                        currentTempView.setText(JSONFormatter.format(determineBasalAdapterJS.getCurrentTempParam()));
-                        iobDataView.setText(JSONFormatter.format(determineBasalAdapterJS.getIobDataParam()));
-                        profileView.setText(JSONFormatter.format(determineBasalAdapterJS.getProfileParam()));
-                        mealDataView.setText(JSONFormatter.format(determineBasalAdapterJS.getMealDataParam()));
-                    }
-                    if (getPlugin().lastAPSRun != null) {
-                        lastRunView.setText(getPlugin().lastAPSRun.toLocaleString());
+                    // inputs and result of the same run
+                    OpenAPSMAPlugin.LastRun lastRun = getPlugin().lastRun;
+                    if (lastRun != null) {
+                        resultView.setText(JSONFormatter.format(lastRun.result.json));
+                        requestView.setText(lastRun.result.toSpanned());
+                        DetermineBasalParams params = lastRun.params;
+                        glucoseStatusView.setText(JSONFormatter.format(params.getGlucoseStatusParam()));
+                        currentTempView.setText(JSONFormatter.format(params.getCurrentTempParam()));
+                        iobDataView.setText(JSONFormatter.format(params.getIobDataParam()));
+                        profileView.setText(JSONFormatter.format(params.getProfileParam()));
+                        mealDataView.setText(JSONFormatter.format(params.getMealDataParam()));
+                        lastRunView.setText(lastRun.date.toLocaleString());
                     }
                 }
             });
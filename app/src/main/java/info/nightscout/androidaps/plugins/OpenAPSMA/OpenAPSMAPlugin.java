@@ -19,6 +19,7 @@ import info.nightscout.androidaps.Constants;
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
 import info.nightscout.androidaps.Services.Intents;
+import info.nightscout.androidaps.data.ConstraintSet;
 import info.nightscout.androidaps.db.DatabaseHelper;
 import info.nightscout.androidaps.interfaces.APSInterface;
 import info.nightscout.androidaps.interfaces.PluginBase;
@@ -32,6 +33,7 @@ import info.nightscout.androidaps.plugins.OpenAPSMA.events.EventOpenAPSMAUpdateR
 import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
 import info.nightscout.client.data.DbLogger;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 import info.nightscout.utils.Round;
 import info.nightscout.utils.SafeParse;
@@ -43,10 +45,26 @@ import info.nightscout.utils.ToastUtils;
 public class OpenAPSMAPlugin implements PluginBase, APSInterface {
     private static Logger log = LoggerFactory.getLogger(OpenAPSMAPlugin.class);
 
+    // Inputs and result of one run, shown together in fragment
+    static class LastRun {
+        final DetermineBasalParams params;
+        final DetermineBasalResult result;
+        final Date date;
+
+        LastRun(DetermineBasalParams params, DetermineBasalResult result, Date date) {
+            this.params = params;
+            this.result = result;
+            this.date = date;
+        }
+    }
+
     // last values
-    DetermineBasalAdapterJS lastDetermineBasalAdapterJS = null;
-    Date lastAPSRun = null;
-    DetermineBasalResult lastAPSResult = null;
+    volatile LastRun lastRun = null;
+    volatile Date lastAPSRun = null;
+    volatile DetermineBasalResult lastAPSResult = null;
+
+    // V8 runtime with compiled script or Java engine, reused by all loop runs
+    private DetermineBasalAdapter determineBasalAdapter = null;
 
     boolean fragmentEnabled = false;
     boolean fragmentVisible = true;
@@ -102,15 +120,8 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
     }
 
     @Override
-    public void invoke() {
+    public synchronized void invoke() {
         lastAPSResult = null;
-        DetermineBasalAdapterJS determineBasalAdapterJS = null;
-        try {
-            determineBasalAdapterJS = new DetermineBasalAdapterJS(new ScriptReader(MainApp.instance().getBaseContext()));
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-            return;
-        }
 
         DatabaseHelper.GlucoseStatus glucoseStatus = MainApp.getDbHelper().getGlucoseStatusData();
         NSProfile profile = MainApp.getConfigBuilder().getActiveProfile().getProfile();
@@ -156,7 +167,7 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
             targetBgDefault = "7";
         }
 
-        Date now = new Date();
+        Date now = Clock.date();
 
         double maxIob = SafeParse.stringToDouble(SP.getString("openapsma_max_iob", "1.5"));
         double maxBasal = SafeParse.stringToDouble(SP.getString("openapsma_max_basal", "1"));
@@ -178,7 +189,9 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
 
         TreatmentsPlugin.MealData mealData = treatments.getMealData();
 
-        maxIob = MainApp.getConfigBuilder().applyMaxIOBConstraints(maxIob);
+        // same set as running loop cycle
+        ConstraintSet constraints = MainApp.getConfigBuilder().getConstraintSet();
+        maxIob = constraints.applyMaxIOBConstraints(maxIob);
 
         minBg = verifyHardLimits(minBg, "minBg", 72, 180);
         maxBg = verifyHardLimits(maxBg, "maxBg", 100, 270);
@@ -193,24 +206,32 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
         if (!checkOnlyHardLimits(profile.getMaxDailyBasal(), "max_daily_basal", 0.1, 10)) return;
         if (!checkOnlyHardLimits(pump.getBaseBasalRate(), "current_basal", 0.01, 5)) return;
 
-        determineBasalAdapterJS.setData(profile, maxIob, maxBasal, minBg, maxBg, targetBg, pump, iobTotal, glucoseStatus, mealData);
-
+        DetermineBasalAdapter determineBasalAdapter;
+        try {
+            determineBasalAdapter = getDetermineBasalAdapter(SP.getBoolean("openapsma_javaengine", false));
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            return;
+        }
 
-        DetermineBasalResult determineBasalResult = determineBasalAdapterJS.invoke();
-        // Fix bug determine basal
-        if (determineBasalResult.rate == 0d && determineBasalResult.duration == 0 && !MainApp.getConfigBuilder().isTempBasalInProgress())
-            determineBasalResult.changeRequested = false;
-        // limit requests on openloop mode
-        if (!MainApp.getConfigBuilder().isClosedModeEnabled()) {
-            if (MainApp.getConfigBuilder().isTempBasalInProgress() && Math.abs(determineBasalResult.rate - MainApp.getConfigBuilder().getTempBasalAbsoluteRate()) < 0.1)
-                determineBasalResult.changeRequested = false;
-            if (!MainApp.getConfigBuilder().isTempBasalInProgress() && Math.abs(determineBasalResult.rate - MainApp.getConfigBuilder().getBaseBasalRate()) < 0.1)
-                determineBasalResult.changeRequested = false;
+        DetermineBasalResult determineBasalResult;
+        try {
+            determineBasalAdapter.setData(profile, maxIob, maxBasal, minBg, maxBg, targetBg, pump, iobTotal, glucoseStatus, mealData);
+            determineBasalResult = determineBasalAdapter.invoke();
+        } catch (RuntimeException e) {
+            // runtime is marked as failed and recreated on next run
+            log.error("determine_basal failed: " + e.getMessage(), e);
+            return;
         }
+        if (determineBasalResult == null)
+            return;
 
-        determineBasalResult.iob = iobTotal;
+        if (Config.compareDetermineBasalEngines)
+            compareWithOtherEngine(determineBasalAdapter);
 
-        determineBasalAdapterJS.release();
+        dropNeedlessChangeRequest(determineBasalResult, MainApp.getConfigBuilder(), constraints.closedModeEnabled);
+
+        determineBasalResult.iob = iobTotal;
 
         try {
             determineBasalResult.json.put("timestamp", DateUtil.toISOString(now));
@@ -218,7 +239,7 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
             e.printStackTrace();
         }
 
-        lastDetermineBasalAdapterJS = determineBasalAdapterJS;
+        lastRun = new LastRun(determineBasalAdapter.getParams(), determineBasalResult, now);
         lastAPSResult = determineBasalResult;
         lastAPSRun = now;
         MainApp.bus().post(new EventOpenAPSMAUpdateGui());
@@ -226,6 +247,59 @@ public class OpenAPSMAPlugin implements PluginBase, APSInterface {
         //deviceStatus.suggested = determineBasalResult.json;
     }
 
+    private DetermineBasalAdapter getDetermineBasalAdapter(boolean javaEngine) throws IOException {
+        if (determineBasalAdapter != null && (!determineBasalAdapter.isHealthy() || (determineBasalAdapter instanceof DetermineBasalAdapterJava) != javaEngine)) {
+            log.debug("Recreating determine basal engine");
+            determineBasalAdapter.release();
+            determineBasalAdapter = null;
+        }
+        if (determineBasalAdapter == null)
+            determineBasalAdapter = createDetermineBasalAdapter(javaEngine);
+        return determineBasalAdapter;
+    }
+
+    private static DetermineBasalAdapter createDetermineBasalAdapter(boolean javaEngine) throws IOException {
+        if (javaEngine)
+            return new DetermineBasalAdapterJava();
+        return new DetermineBasalAdapterJS(new ScriptReader(MainApp.instance().getBaseContext()));
+    }
+
+    // Replay params of last run through both engines and log differences
+    private void compareWithOtherEngine(DetermineBasalAdapter used) {
+        DetermineBasalAdapter other = null;
+        try {
+            other = createDetermineBasalAdapter(!(used instanceof DetermineBasalAdapterJava));
+            String diff = DetermineBasalComparator.compare(used, other,
+                    used.getGlucoseStatusParam(),
+                    used.getCurrentTempParam(),
+                    used.getIobDataParam(),
+                    used.getProfileParam(),
+                    used.getMealDataParam());
+            if (diff != null)
+                log.error("Determine basal engines differ:\n" + diff);
+            else
+                log.debug("Determine basal engines match");
+        } catch (Exception e) {
+            log.error("Unhandled exception", e);
+        } finally {
+            if (other != null)
+                other.release();
+        }
+    }
+
+    public static void dropNeedlessChangeRequest(DetermineBasalResult determineBasalResult, PumpInterface pump, boolean closedLoop) {
+        // Fix bug determine basal
+        if (determineBasalResult.rate == 0d && determineBasalResult.duration == 0 && !pump.isTempBasalInProgress())
+            determineBasalResult.changeRequested = false;
+        // limit requests on openloop mode
+        if (!closedLoop) {
+            if (pump.isTempBasalInProgress() && Math.abs(determineBasalResult.rate - pump.getTempBasalAbsoluteRate()) < 0.1)
+                determineBasalResult.changeRequested = false;
+            if (!pump.isTempBasalInProgress() && Math.abs(determineBasalResult.rate - pump.getBaseBasalRate()) < 0.1)
+                determineBasalResult.changeRequested = false;
+        }
+    }
+
     // safety checks
     public static boolean checkOnlyHardLimits(Double value, String valueName, double lowLimit, double highLimit) {
         return value.equals(verifyHardLimits(value, valueName, lowLimit, highLimit));
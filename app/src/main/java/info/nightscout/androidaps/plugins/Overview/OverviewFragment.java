@@ -49,6 +49,7 @@ import info.nightscout.androidaps.Config;
 import info.nightscout.androidaps.Constants;
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
+import info.nightscout.androidaps.data.IobTimeline;
 import info.nightscout.androidaps.data.PumpEnactResult;
 import info.nightscout.androidaps.db.BgReading;
 import info.nightscout.androidaps.db.DatabaseHelper;
@@ -622,7 +623,7 @@ public class OverviewFragment extends Fragment {
         calendar.set(Calendar.MINUTE, 0);
         calendar.add(Calendar.HOUR, 1);
 
-        int hoursToFetch = 6;
+        int hoursToFetch = Constants.hoursToShowInOverview;
         long toTime = calendar.getTimeInMillis() + 100000; // little bit more to avoid wrong rounding
         long fromTime = toTime - hoursToFetch * 60 * 60 * 1000L;
 
@@ -787,6 +788,22 @@ public class OverviewFragment extends Fragment {
             seriesTreatments.setColor(Color.CYAN);
         }
 
+        // **** IOB graph ****
+        // scaled to low line like basals, till the end of the graph
+        IobTimeline iobTimeline = IobTimeline.calculate(fromTime, toTime, 5 * 60 * 1000L);
+        double maxIobFound = 0d;
+        for (int i = 0; i < iobTimeline.size(); i++)
+            maxIobFound = Math.max(maxIobFound, Math.abs(iobTimeline.iob[i]));
+        if (maxIobFound > 0) {
+            DataPoint[] iobPoints = new DataPoint[iobTimeline.size()];
+            for (int i = 0; i < iobTimeline.size(); i++)
+                iobPoints[i] = new DataPoint(iobTimeline.getTime(i), iobTimeline.iob[i] / maxIobFound * lowLine);
+            LineGraphSeries<DataPoint> seriesIob = new LineGraphSeries<DataPoint>(iobPoints);
+            seriesIob.setColor(Color.MAGENTA);
+            seriesIob.setDrawDataPoints(false);
+            bgGraph.addSeries(seriesIob);
+        }
+
         // set manual y bounds to have nice steps
         bgGraph.getViewport().setMaxY(maxBgValue);
         bgGraph.getViewport().setMinY(0);
@@ -23,12 +23,17 @@ import java.util.List;
 import info.nightscout.androidaps.Config;
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
+import info.nightscout.androidaps.data.InsulinCurve;
 import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.events.EventNewBasalProfile;
 import info.nightscout.androidaps.events.EventPreferenceChange;
 import info.nightscout.androidaps.events.EventTempBasalChange;
 import info.nightscout.androidaps.interfaces.PluginBase;
 import info.nightscout.androidaps.interfaces.TempBasalsInterface;
+import info.nightscout.androidaps.plugins.ConfigBuilder.ConfigBuilderPlugin;
 import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
+import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 
 /**
  * Created by mike on 05.08.2016.
@@ -100,8 +105,8 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
 /*
             // **************** TESTING CREATE FAKE RECORD *****************
             TempBasal fake = new TempBasal();
-            fake.timeStart = new Date(new Date().getTime() - 45 * 40 * 1000);
-            fake.timeEnd = new Date(new Date().getTime() - new Double(Math.random() * 45d * 40 * 1000).longValue());
+            fake.timeStart = new Date(Clock.now() - 45 * 40 * 1000);
+            fake.timeEnd = new Date(Clock.now() - new Double(Math.random() * 45d * 40 * 1000).longValue());
             fake.duration = 30;
             fake.percent = 150;
             fake.isAbsolute = false;
@@ -109,21 +114,9 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
             dao.createOrUpdate(fake);
             // **************** TESTING CREATE FAKE RECORD *****************
 */
-            QueryBuilder<TempBasal, Long> queryBuilder = dao.queryBuilder();
-            queryBuilder.orderBy("timeIndex", false);
-            Where where = queryBuilder.where();
-            where.eq("isExtended", false);
-            queryBuilder.limit(30L);
-            PreparedQuery<TempBasal> preparedQuery = queryBuilder.prepare();
-            tempBasals = dao.query(preparedQuery);
-
-            QueryBuilder<TempBasal, Long> queryBuilderExt = dao.queryBuilder();
-            queryBuilderExt.orderBy("timeIndex", false);
-            Where whereExt = queryBuilderExt.where();
-            whereExt.eq("isExtended", true);
-            queryBuilderExt.limit(30L);
-            PreparedQuery<TempBasal> preparedQueryExt = queryBuilderExt.prepare();
-            extendedBoluses = dao.query(preparedQueryExt);
+            long windowStart = Clock.now() - ConfigBuilderPlugin.getTreatmentsWindowMsecs();
+            tempBasals = loadWindow(dao, false, windowStart);
+            extendedBoluses = loadWindow(dao, true, windowStart);
 
             // Update ended
             checkForExpiredExtended();
@@ -135,6 +128,37 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
         }
     }
 
+    /*
+     * Records started in window plus the last one started before
+     * which may still run into window (records do not overlap)
+     */
+    private static List<TempBasal> loadWindow(Dao<TempBasal, Long> dao, boolean isExtended, long windowStart) throws SQLException {
+        QueryBuilder<TempBasal, Long> queryBuilder = dao.queryBuilder();
+        queryBuilder.orderBy("timeIndex", false);
+        Where where = queryBuilder.where();
+        where.eq("isExtended", isExtended).and().ge("timeIndex", windowStart);
+        PreparedQuery<TempBasal> preparedQuery = queryBuilder.prepare();
+        List<TempBasal> list = dao.query(preparedQuery);
+
+        QueryBuilder<TempBasal, Long> queryBuilderBefore = dao.queryBuilder();
+        queryBuilderBefore.orderBy("timeIndex", false);
+        Where whereBefore = queryBuilderBefore.where();
+        whereBefore.eq("isExtended", isExtended).and().lt("timeIndex", windowStart);
+        queryBuilderBefore.limit(1L);
+        list.addAll(dao.query(queryBuilderBefore.prepare()));
+        return list;
+    }
+
+    // Drop records which ended before window since loading
+    private static List<TempBasal> slideWindow(List<TempBasal> list, long windowStart) {
+        int size = list.size();
+        while (size > 1 && list.get(size - 1).timeEnd != null && list.get(size - 1).timeEnd.getTime() < windowStart)
+            size--;
+        if (size < list.size())
+            return new ArrayList<TempBasal>(list.subList(0, size));
+        return list;
+    }
+
     public void checkForExpiredTemps() {
         checkForExpired(tempBasals);
     }
@@ -144,12 +168,13 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
     }
 
     private void checkForExpired(List<TempBasal> list) {
-        long now = new Date().getTime();
+        long now = Clock.now();
         for (int position = list.size() - 1; position >= 0; position--) {
             TempBasal t = list.get(position);
             boolean update = false;
-            if (t.timeEnd == null && t.getPlannedTimeEnd().getTime() < now) {
-                t.timeEnd = new Date(t.getPlannedTimeEnd().getTime());
+            long plannedEnd = t.timeStart.getTime() + 60 * 1000L * t.duration;
+            if (t.timeEnd == null && plannedEnd < now) {
+                t.timeEnd = new Date(plannedEnd);
                 if (Config.logTempBasalsCut)
                     log.debug("Add timeEnd to old record");
                 update = true;
@@ -157,7 +182,7 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
             if (position > 0) {
                 Date startofnewer = list.get(position - 1).timeStart;
                 if (t.timeEnd == null) {
-                    t.timeEnd = new Date(Math.min(startofnewer.getTime(), t.getPlannedTimeEnd().getTime()));
+                    t.timeEnd = new Date(Math.min(startofnewer.getTime(), plannedEnd));
                     if (Config.logTempBasalsCut)
                         log.debug("Add timeEnd to old record");
                     update = true;
@@ -186,7 +211,7 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
      * Recalculate IOB if value is older than 1 minute
      */
     public void updateTotalIOBIfNeeded() {
-        if (lastCalculationTimestamp > new Date().getTime() - 60 * 1000)
+        if (lastCalculationTimestamp > Clock.now() - 60 * 1000)
             return;
         updateTotalIOB();
     }
@@ -200,22 +225,31 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
     public void updateTotalIOB() {
         checkForExpired(tempBasals);
         checkForExpired(extendedBoluses);
-        Date now = new Date();
+        Date now = Clock.date();
+        long windowStart = now.getTime() - ConfigBuilderPlugin.getTreatmentsWindowMsecs();
+        tempBasals = slideWindow(tempBasals, windowStart);
+        extendedBoluses = slideWindow(extendedBoluses, windowStart);
         IobTotal total = new IobTotal();
-        for (Integer pos = 0; pos < tempBasals.size(); pos++) {
-            TempBasal t = tempBasals.get(pos);
+        NSProfile profile = MainApp.getConfigBuilder().getActiveProfile().getProfile();
+        if (profile != null) {
+            // temps ended before absorption time have no effect anymore
+            long absorbedBefore = now.getTime() - InsulinCurve.get(profile.getDia()).getAbsorptionTime();
+            addIob(total, tempBasals, now, absorbedBefore);
+            if (useExtendedBoluses)
+                addIob(total, extendedBoluses, now, absorbedBefore);
+        }
+        lastCalculationTimestamp = Clock.now();
+        lastCalculation = total;
+    }
+
+    private static void addIob(IobTotal total, List<TempBasal> list, Date now, long absorbedBefore) {
+        for (int pos = 0; pos < list.size(); pos++) {
+            TempBasal t = list.get(pos);
+            if (t.timeEnd != null && t.timeEnd.getTime() < absorbedBefore)
+                continue;
             IobTotal calc = t.iobCalc(now);
             total.plus(calc);
         }
-        if (useExtendedBoluses) {
-            for (Integer pos = 0; pos < extendedBoluses.size(); pos++) {
-                TempBasal t = extendedBoluses.get(pos);
-                IobTotal calc = t.iobCalc(now);
-                total.plus(calc);
-            }
-        }
-        lastCalculationTimestamp = new Date().getTime();
-        lastCalculation = total;
     }
 
     @Nullable
@@ -237,7 +271,8 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
         return null;
     }
 
-    List<TempBasal> getMergedList() {
+    @Override
+    public List<TempBasal> getMergedList() {
         if (useExtendedBoluses) {
             List<TempBasal> merged = new ArrayList<TempBasal>();
             merged.addAll(tempBasals);
@@ -260,6 +295,12 @@ public class TempBasalsPlugin implements PluginBase, TempBasalsInterface {
         initializeData();
     }
 
+    @Subscribe
+    public void onStatusEvent(final EventNewBasalProfile ev) {
+        // window depends on DIA
+        initializeData();
+    }
+
     public void onStatusEvent(final EventPreferenceChange s) {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(MainApp.instance().getApplicationContext());
         useExtendedBoluses = sharedPreferences.getBoolean("danar_useextended", false);
@@ -3,6 +3,7 @@ package info.nightscout.androidaps.plugins.Treatments;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
 import com.squareup.otto.Subscribe;
 
 import org.slf4j.Logger;
@@ -10,18 +11,20 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import info.nightscout.androidaps.MainApp;
 import info.nightscout.androidaps.R;
-import info.nightscout.androidaps.data.Iob;
+import info.nightscout.androidaps.data.InsulinCurve;
 import info.nightscout.androidaps.db.Treatment;
+import info.nightscout.androidaps.events.EventNewBasalProfile;
 import info.nightscout.androidaps.events.EventTreatmentChange;
 import info.nightscout.androidaps.interfaces.PluginBase;
 import info.nightscout.androidaps.interfaces.TreatmentsInterface;
+import info.nightscout.androidaps.plugins.ConfigBuilder.ConfigBuilderPlugin;
 import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 
 /**
  * Created by mike on 05.08.2016.
@@ -32,7 +35,9 @@ public class TreatmentsPlugin implements PluginBase, TreatmentsInterface {
     public static long lastCalculationTimestamp = 0;
     public static IobTotal lastCalculation;
 
-    public static List<Treatment> treatments;
+    // replaced, never modified, all writers hold treatmentsLock
+    public static volatile List<Treatment> treatments;
+    private static final Object treatmentsLock = new Object();
 
     private static boolean fragmentEnabled = true;
     private static boolean fragmentVisible = true;
@@ -82,17 +87,69 @@ public class TreatmentsPlugin implements PluginBase, TreatmentsInterface {
         initializeData();
     }
 
+    /*
+     * Load all treatments from window needed for IOB and overview
+     * Later changes come with events and old treatments are dropped in slideWindow
+     */
     public void initializeData() {
-        try {
-            Dao<Treatment, Long> dao = MainApp.getDbHelper().getDaoTreatments();
-            QueryBuilder<Treatment, Long> queryBuilder = dao.queryBuilder();
-            queryBuilder.orderBy("timeIndex", false);
-            queryBuilder.limit(30l);
-            PreparedQuery<Treatment> preparedQuery = queryBuilder.prepare();
-            treatments = dao.query(preparedQuery);
-        } catch (SQLException e) {
-            log.debug(e.getMessage(), e);
-            treatments = new ArrayList<Treatment>();
+        // under lock so that reload and incremental change don't overwrite each other
+        synchronized (treatmentsLock) {
+            try {
+                long windowStart = Clock.now() - ConfigBuilderPlugin.getTreatmentsWindowMsecs();
+                Dao<Treatment, Long> dao = MainApp.getDbHelper().getDaoTreatments();
+                QueryBuilder<Treatment, Long> queryBuilder = dao.queryBuilder();
+                queryBuilder.orderBy("timeIndex", false);
+                Where where = queryBuilder.where();
+                where.ge("timeIndex", windowStart);
+                PreparedQuery<Treatment> preparedQuery = queryBuilder.prepare();
+                treatments = dao.query(preparedQuery);
+            } catch (SQLException e) {
+                log.debug(e.getMessage(), e);
+                treatments = new ArrayList<Treatment>();
+            }
+        }
+    }
+
+    /*
+     * Apply one change to loaded treatments instead of reloading them from database
+     * List is replaced, not modified, because other threads may iterate it
+     */
+    private void applyChange(Treatment added, Treatment removed) {
+        synchronized (treatmentsLock) {
+            List<Treatment> updated = new ArrayList<Treatment>(treatments);
+            if (removed != null)
+                removeByTimeIndex(updated, removed.getTimeIndex());
+            if (added != null) {
+                removeByTimeIndex(updated, added.getTimeIndex());
+                long windowStart = Clock.now() - ConfigBuilderPlugin.getTreatmentsWindowMsecs();
+                if (added.getTimeIndex() >= windowStart) {
+                    int pos = 0;
+                    while (pos < updated.size() && updated.get(pos).getTimeIndex() > added.getTimeIndex())
+                        pos++;
+                    updated.add(pos, added);
+                }
+            }
+            treatments = updated;
+        }
+    }
+
+    // Drop treatments which got out of window since loading
+    private void slideWindow(long now) {
+        synchronized (treatmentsLock) {
+            long windowStart = now - ConfigBuilderPlugin.getTreatmentsWindowMsecs();
+            List<Treatment> current = treatments;
+            int size = current.size();
+            while (size > 0 && current.get(size - 1).getTimeIndex() < windowStart)
+                size--;
+            if (size < current.size())
+                treatments = new ArrayList<Treatment>(current.subList(0, size));
+        }
+    }
+
+    private static void removeByTimeIndex(List<Treatment> list, long timeIndex) {
+        for (int pos = list.size() - 1; pos >= 0; pos--) {
+            if (list.get(pos).getTimeIndex() == timeIndex)
+                list.remove(pos);
         }
     }
 
@@ -100,7 +157,7 @@ public class TreatmentsPlugin implements PluginBase, TreatmentsInterface {
      * Recalculate IOB if value is older than 1 minute
      */
     public void updateTotalIOBIfNeeded() {
-        if (lastCalculationTimestamp > new Date().getTime() - 60 * 1000)
+        if (lastCalculationTimestamp > Clock.now() - 60 * 1000)
             return;
         updateTotalIOB();
     }
@@ -122,37 +179,59 @@ public class TreatmentsPlugin implements PluginBase, TreatmentsInterface {
             return;
         }
 
-        Double dia = profile.getDia();
+        long now = Clock.now();
+        slideWindow(now);
+        total = calculateIob(treatments, now, profile.getDia());
 
-        Date now = new Date();
-        for (Integer pos = 0; pos < treatments.size(); pos++) {
+        lastCalculationTimestamp = Clock.now();
+        lastCalculation = total;
+    }
+
+    // treatments must be sorted from newest, older are already absorbed
+    public static IobTotal calculateIob(List<Treatment> treatments, long now, double dia) {
+        IobTotal total = new IobTotal();
+        InsulinCurve curve = InsulinCurve.get(dia);
+        InsulinCurve snoozeCurve = InsulinCurve.get(dia / 2);
+
+        double iob = 0d;
+        double activity = 0d;
+        double bolussnooze = 0d;
+        for (int pos = 0; pos < treatments.size(); pos++) {
             Treatment t = treatments.get(pos);
-            Iob tIOB = t.iobCalc(now, dia);
-            total.iob += tIOB.iobContrib;
-            total.activity += tIOB.activityContrib;
-            Iob bIOB = t.iobCalc(now, dia / 2);
-            total.bolussnooze += bIOB.iobContrib;
+            long msAgo = now - t.created_at.getTime();
+            if (msAgo > curve.getAbsorptionTime())
+                break;
+            double insulin = t.insulin;
+            if (insulin == 0d)
+                continue;
+            iob += insulin * curve.iob(msAgo);
+            activity += insulin * curve.activity(msAgo);
+            bolussnooze += insulin * snoozeCurve.iob(msAgo);
         }
-
-        lastCalculationTimestamp = new Date().getTime();
-        lastCalculation = total;
+        total.iob = iob;
+        total.activity = activity;
+        total.bolussnooze = bolussnooze;
+        return total;
     }
 
-    public class MealData {
+    public static class MealData {
         public double boluses = 0d;
         public double carbs = 0d;
     }
 
     @Override
     public MealData getMealData() {
-        MealData result = new MealData();
         NSProfile profile = MainApp.getConfigBuilder().getActiveProfile().getProfile();
         if (profile == null)
-            return result;
+            return new MealData();
+        return calculateMealData(treatments, Clock.now(), profile.getDia());
+    }
 
+    // Carbs and meal boluses within last DIA
+    public static MealData calculateMealData(List<Treatment> treatments, long now, double dia) {
+        MealData result = new MealData();
+        long dia_ago = now - (new Double(dia * 60 * 60 * 1000l)).longValue();
         for (Treatment treatment : treatments) {
-            long now = new Date().getTime();
-            long dia_ago = now - (new Double(profile.getDia() * 60 * 60 * 1000l)).longValue();
             long t = treatment.created_at.getTime();
             if (t > dia_ago && t <= now) {
                 if (treatment.carbs >= 1) {
@@ -173,8 +252,17 @@ public class TreatmentsPlugin implements PluginBase, TreatmentsInterface {
 
     @Subscribe
     public void onStatusEvent(final EventTreatmentChange ev) {
-        initializeData();
+        if (ev.isIncremental())
+            applyChange(ev.added, ev.removed);
+        else
+            initializeData();
         updateTotalIOB();
     }
 
+    @Subscribe
+    public void onStatusEvent(final EventNewBasalProfile ev) {
+        // window depends on DIA
+        initializeData();
+    }
+
 }
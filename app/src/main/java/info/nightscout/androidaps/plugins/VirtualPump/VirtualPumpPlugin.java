@@ -22,6 +22,7 @@ import info.nightscout.androidaps.interfaces.PumpInterface;
 import info.nightscout.androidaps.plugins.Overview.events.EventOverviewBolusProgress;
 import info.nightscout.androidaps.plugins.VirtualPump.events.EventVirtualPumpUpdateGui;
 import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DateUtil;
 
 /**
@@ -160,12 +161,12 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
 
     @Override
     public TempBasal getTempBasal() {
-        return MainApp.getConfigBuilder().getActiveTempBasals().getTempBasal(new Date());
+        return MainApp.getConfigBuilder().getActiveTempBasals().getTempBasal(Clock.date());
     }
 
     @Override
     public TempBasal getExtendedBolus() {
-        return MainApp.getConfigBuilder().getActiveTempBasals().getExtendedBolus(new Date());
+        return MainApp.getConfigBuilder().getActiveTempBasals().getExtendedBolus(Clock.date());
     }
 
     @Override
@@ -231,7 +232,7 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
         if (!result.success)
             return result;
         TempBasal tempBasal = new TempBasal();
-        tempBasal.timeStart = new Date();
+        tempBasal.timeStart = Clock.date();
         tempBasal.isAbsolute = true;
         tempBasal.absolute = absoluteRate;
         tempBasal.duration = durationInMinutes;
@@ -263,7 +264,7 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
                 return result;
         }
         TempBasal tempBasal = new TempBasal();
-        tempBasal.timeStart = new Date();
+        tempBasal.timeStart = Clock.date();
         tempBasal.isAbsolute = false;
         tempBasal.percent = percent;
         tempBasal.duration = durationInMinutes;
@@ -293,7 +294,7 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
         if (!result.success)
             return result;
         TempBasal extendedBolus = new TempBasal();
-        extendedBolus.timeStart = new Date();
+        extendedBolus.timeStart = Clock.date();
         extendedBolus.isExtended = true;
         extendedBolus.absolute = insulin * 60d / durationInMinutes;
         extendedBolus.duration = durationInMinutes;
@@ -327,7 +328,7 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
         if (isTempBasalInProgress()) {
             result.enacted = true;
             TempBasal tb = getTempBasal();
-            tb.timeEnd = new Date();
+            tb.timeEnd = Clock.date();
             try {
                 MainApp.instance().getDbHelper().getDaoTempBasals().update(tb);
                 //tempBasal = null;
@@ -349,7 +350,7 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
         PumpEnactResult result = new PumpEnactResult();
         if (isExtendedBoluslInProgress()) {
             TempBasal extendedBolus = getExtendedBolus();
-            extendedBolus.timeEnd = new Date();
+            extendedBolus.timeEnd = Clock.date();
             try {
                 MainApp.instance().getDbHelper().getDaoTempBasals().update(extendedBolus);
             } catch (SQLException e) {
@@ -387,13 +388,13 @@ public class VirtualPumpPlugin implements PluginBase, PumpInterface {
                 status.put("tempbasalstart", DateUtil.toISOString(tb.timeStart));
                 status.put("tempbasalremainmin", tb.getPlannedRemainingMinutes());
             }
-            status.put("timestamp", DateUtil.toISOString(new Date()));
+            status.put("timestamp", DateUtil.toISOString(Clock.date()));
 
             pump.put("battery", battery);
             pump.put("status", status);
             pump.put("extended", extended);
             pump.put("reservoir", reservoirInUnits);
-            pump.put("clock", DateUtil.toISOString(new Date()));
+            pump.put("clock", DateUtil.toISOString(Clock.date()));
         } catch (JSONException e) {
         }
         return pump;
@@ -16,6 +16,7 @@ import info.nightscout.androidaps.events.EventTreatmentChange;
 import info.nightscout.androidaps.interfaces.PluginBase;
 import info.nightscout.androidaps.plugins.Loop.events.EventNewOpenLoopNotification;
 import info.nightscout.androidaps.plugins.Wear.wearintegration.WatchUpdaterService;
+import info.nightscout.utils.EventDispatcher;
 
 /**
  * Created by adrian on 17/11/16.
@@ -30,7 +31,7 @@ public class WearPlugin implements PluginBase {
 
     WearPlugin(Context ctx) {
         this.ctx = ctx;
-        MainApp.bus().register(this);
+        MainApp.bus().register(this, EventDispatcher.UI);
     }
 
     @Override
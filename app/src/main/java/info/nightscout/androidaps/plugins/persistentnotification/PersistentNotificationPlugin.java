@@ -31,6 +31,7 @@ import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
 import info.nightscout.androidaps.plugins.Overview.Notification;
 import info.nightscout.client.data.NSProfile;
 import info.nightscout.utils.DecimalFormatter;
+import info.nightscout.utils.EventDispatcher;
 
 /**
  * Created by adrian on 23/12/16.
@@ -174,7 +175,7 @@ public class PersistentNotificationPlugin implements PluginBase{
 
     private void checkBusRegistration() {
         if(fragmentEnabled){
-            MainApp.bus().register(this);
+            MainApp.bus().register(this, EventDispatcher.UI);
         } else {
             try {
                 MainApp.bus().unregister(this);
@@ -0,0 +1,33 @@
+package info.nightscout.androidaps.replay;
+
+import java.util.Date;
+
+import info.nightscout.utils.Clock;
+
+/**
+ * Time of replayed loop, moved forward by ReplayEngine instead of wall clock
+ */
+public class ReplayClock implements Clock.Source {
+    private long now;
+
+    public ReplayClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    public Date date() {
+        return new Date(now);
+    }
+
+    public void set(long now) {
+        this.now = now;
+    }
+
+    public void advance(long msecs) {
+        now += msecs;
+    }
+}
@@ -0,0 +1,170 @@
+package info.nightscout.androidaps.replay;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.QueryBuilder;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import info.nightscout.androidaps.data.BgCache;
+import info.nightscout.androidaps.db.BgReading;
+import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.db.Treatment;
+
+/**
+ * In memory history for replay
+ * Records are kept sorted from oldest and looked up by binary search, so one loop cycle doesn't depend on history length
+ */
+public class ReplayData implements ReplayDataSource {
+    private final List<BgReading> bgReadings = new ArrayList<BgReading>();
+    private final List<Treatment> treatments = new ArrayList<Treatment>();
+    private final List<TempBasal> tempBasals = new ArrayList<TempBasal>();
+    private boolean sorted = true;
+    private BgCache bgCache = null;
+
+    // Glucose status at from needs readings up to 42.5 min older
+    public static final long BG_HISTORY = 45 * 60 * 1000L;
+
+    // Load history for replay from database
+    public static ReplayData loadFromDatabase(DatabaseHelper db, long from, long to, double dia) throws SQLException {
+        return loadFromDatabase(db.getDaoBgReadings(), db.getDaoTreatments(), db.getDaoTempBasals(), from, to, dia);
+    }
+
+    /*
+     * Loop run at from needs data from before: readings for deltas, treatments and temps
+     * for IOB up to absorption time (temps may start long before)
+     */
+    static ReplayData loadFromDatabase(Dao<BgReading, Long> daoBgReadings,
+                                       Dao<Treatment, Long> daoTreatments,
+                                       Dao<TempBasal, Long> daoTempBasals,
+                                       long from, long to, double dia) throws SQLException {
+        ReplayData data = new ReplayData();
+        long historyFrom = ReplayEngine.historyFrom(from, dia);
+
+        QueryBuilder<BgReading, Long> bgQuery = daoBgReadings.queryBuilder();
+        bgQuery.orderBy("timeIndex", true);
+        bgQuery.where().between("timeIndex", from - BG_HISTORY, to).and().gt("value", 38);
+        data.bgReadings.addAll(daoBgReadings.query(bgQuery.prepare()));
+
+        QueryBuilder<Treatment, Long> treatmentQuery = daoTreatments.queryBuilder();
+        treatmentQuery.orderBy("timeIndex", true);
+        treatmentQuery.where().between("timeIndex", historyFrom, to);
+        data.treatments.addAll(daoTreatments.query(treatmentQuery.prepare()));
+
+        QueryBuilder<TempBasal, Long> tempBasalQuery = daoTempBasals.queryBuilder();
+        tempBasalQuery.orderBy("timeIndex", true);
+        tempBasalQuery.where().between("timeIndex", historyFrom, to).and().eq("isExtended", false);
+        data.tempBasals.addAll(daoTempBasals.query(tempBasalQuery.prepare()));
+
+        return data;
+    }
+
+    public void add(BgReading bgReading) {
+        bgReadings.add(bgReading);
+        sorted = false;
+        bgCache = null;
+    }
+
+    public void add(Treatment treatment) {
+        treatments.add(treatment);
+        sorted = false;
+    }
+
+    public void add(TempBasal tempBasal) {
+        tempBasals.add(tempBasal);
+        sorted = false;
+    }
+
+    public List<BgReading> getBgReadings() {
+        sort();
+        return bgReadings;
+    }
+
+    @Override
+    public BgCache getBgCache() {
+        sort();
+        if (bgCache == null) {
+            bgCache = new BgCache(bgReadings.size());
+            bgCache.addAll(bgReadings);
+        }
+        return bgCache;
+    }
+
+    @Override
+    public List<Treatment> getTreatments(long from, long to) {
+        sort();
+        List<Treatment> result = new ArrayList<Treatment>();
+        int first = upperBound(treatments.size(), from, TREATMENT_TIME);
+        for (int pos = upperBound(treatments.size(), to, TREATMENT_TIME) - 1; pos >= first; pos--)
+            result.add(treatments.get(pos));
+        return result;
+    }
+
+    @Override
+    public List<TempBasal> getTempBasals(long from, long to) {
+        sort();
+        int first = upperBound(tempBasals.size(), from, TEMP_TIME);
+        int last = upperBound(tempBasals.size(), to, TEMP_TIME);
+        return new ArrayList<TempBasal>(tempBasals.subList(first, last));
+    }
+
+    private interface TimeOf {
+        long time(ReplayData data, int pos);
+    }
+
+    private static final TimeOf TREATMENT_TIME = new TimeOf() {
+        @Override
+        public long time(ReplayData data, int pos) {
+            return data.treatments.get(pos).created_at.getTime();
+        }
+    };
+
+    private static final TimeOf TEMP_TIME = new TimeOf() {
+        @Override
+        public long time(ReplayData data, int pos) {
+            return data.tempBasals.get(pos).timeStart.getTime();
+        }
+    };
+
+    // First position with time greater than given time
+    private int upperBound(int size, long time, TimeOf timeOf) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timeOf.time(this, mid) <= time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void sort() {
+        if (sorted)
+            return;
+        Collections.sort(bgReadings, new Comparator<BgReading>() {
+            @Override
+            public int compare(BgReading lhs, BgReading rhs) {
+                return Long.compare(lhs.timeIndex, rhs.timeIndex);
+            }
+        });
+        Collections.sort(treatments, new Comparator<Treatment>() {
+            @Override
+            public int compare(Treatment lhs, Treatment rhs) {
+                return Long.compare(lhs.created_at.getTime(), rhs.created_at.getTime());
+            }
+        });
+        Collections.sort(tempBasals, new Comparator<TempBasal>() {
+            @Override
+            public int compare(TempBasal lhs, TempBasal rhs) {
+                return Long.compare(lhs.timeStart.getTime(), rhs.timeStart.getTime());
+            }
+        });
+        sorted = true;
+    }
+}
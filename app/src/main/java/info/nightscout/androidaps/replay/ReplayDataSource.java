@@ -0,0 +1,22 @@
+package info.nightscout.androidaps.replay;
+
+import java.util.List;
+
+import info.nightscout.androidaps.data.BgCache;
+import info.nightscout.androidaps.db.BgReading;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.db.Treatment;
+
+/**
+ * Recorded history the loop is replayed over
+ */
+public interface ReplayDataSource {
+    // All valid readings sorted from oldest
+    BgCache getBgCache();
+
+    // Treatments from (from, to], sorted from newest
+    List<Treatment> getTreatments(long from, long to);
+
+    // Temp basals started in (from, to], sorted from oldest
+    List<TempBasal> getTempBasals(long from, long to);
+}
@@ -0,0 +1,154 @@
+package info.nightscout.androidaps.replay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.List;
+
+import info.nightscout.androidaps.data.BgCache;
+import info.nightscout.androidaps.data.GlucoseStatusCalculator;
+import info.nightscout.androidaps.data.InsulinCurve;
+import info.nightscout.androidaps.db.DatabaseHelper;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.db.Treatment;
+import info.nightscout.androidaps.plugins.OpenAPSMA.DetermineBasalAdapter;
+import info.nightscout.androidaps.plugins.OpenAPSMA.DetermineBasalResult;
+import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
+import info.nightscout.androidaps.plugins.OpenAPSMA.OpenAPSMAPlugin;
+import info.nightscout.androidaps.plugins.Treatments.TreatmentsPlugin;
+import info.nightscout.client.data.NSProfile;
+import info.nightscout.utils.Clock;
+
+/**
+ * Runs the loop over recorded history in 5 minute steps without waiting for real time
+ *
+ * Every cycle calculates glucose status, IOB and meal data from history the same way as plugins do,
+ * runs determine basal and in closed loop enacts the result on SimulatedPump.
+ * In open loop recorded temp basals are used instead.
+ */
+public class ReplayEngine {
+    private static Logger log = LoggerFactory.getLogger(ReplayEngine.class);
+
+    public static final long TICK = 5 * 60 * 1000L;
+    private static final long MAX_TEMP_DURATION = 24 * 60 * 60 * 1000L;
+
+    // Values in mg/dl, defaults are the same as OpenAPSMA preferences
+    public static class Settings {
+        public double maxIob = 1.5d;
+        public double maxBasal = 1d;
+        public double minBg = 100d;
+        public double maxBg = 180d;
+        public double targetBg = 150d;
+        public boolean closedLoop = true;
+    }
+
+    private final ReplayDataSource data;
+    private final NSProfile profile;
+    private final Settings settings;
+    private final DetermineBasalAdapter determineBasalAdapter;
+    private final ReplayClock clock = new ReplayClock(0);
+    private SimulatedPump pump;
+
+    public ReplayEngine(ReplayDataSource data, NSProfile profile, Settings settings, DetermineBasalAdapter determineBasalAdapter) {
+        this.data = data;
+        this.profile = profile;
+        this.settings = settings;
+        this.determineBasalAdapter = determineBasalAdapter;
+    }
+
+    // Oldest treatment or temp basal which affects the first cycle at from
+    public static long historyFrom(long from, double dia) {
+        return from - InsulinCurve.get(dia).getAbsorptionTime() - MAX_TEMP_DURATION;
+    }
+
+    public SimulatedPump getPump() {
+        return pump;
+    }
+
+    public ReplayResult run(long from, long to) {
+        ReplayResult result = new ReplayResult();
+        double dia = profile.getDia();
+        long absorptionTime = InsulinCurve.get(dia).getAbsorptionTime();
+
+        clock.set(from);
+        pump = new SimulatedPump(clock, profile);
+        // in closed loop only temps set before replay are taken from history
+        long recordedTo = settings.closedLoop ? from : to;
+        for (TempBasal tempBasal : data.getTempBasals(historyFrom(from, dia), recordedTo))
+            pump.addTempBasal(tempBasal);
+
+        BgCache bgCache = data.getBgCache();
+        DatabaseHelper.GlucoseStatus glucoseStatus = new DatabaseHelper.GlucoseStatus();
+
+        long start = System.nanoTime();
+        // code depending on current time (profile lookups) sees replayed time on this thread
+        Clock.setThreadSource(clock);
+        try {
+            for (long time = from; time <= to; time += TICK) {
+                clock.set(time);
+                result.cycles++;
+
+                if (!GlucoseStatusCalculator.calculate(bgCache, time, glucoseStatus)) {
+                    result.skipped++;
+                    continue;
+                }
+                glucoseStatus.round();
+
+                List<Treatment> treatments = data.getTreatments(time - absorptionTime, time);
+                IobTotal bolusIob = TreatmentsPlugin.calculateIob(treatments, time, dia);
+                IobTotal basalIob = calculateBasalIob(time, dia, absorptionTime);
+                IobTotal iobTotal = IobTotal.combine(bolusIob, basalIob).round();
+                TreatmentsPlugin.MealData mealData = TreatmentsPlugin.calculateMealData(treatments, time, dia);
+
+                DetermineBasalResult determineBasalResult;
+                try {
+                    determineBasalAdapter.setData(profile, settings.maxIob, settings.maxBasal, settings.minBg, settings.maxBg, settings.targetBg, pump, iobTotal, glucoseStatus, mealData);
+                    determineBasalResult = determineBasalAdapter.invoke();
+                } catch (RuntimeException e) {
+                    log.error("determine_basal failed at " + new Date(time) + ": " + e.getMessage(), e);
+                    determineBasalResult = null;
+                }
+                if (determineBasalResult == null) {
+                    result.skipped++;
+                    continue;
+                }
+                OpenAPSMAPlugin.dropNeedlessChangeRequest(determineBasalResult, pump, settings.closedLoop);
+                determineBasalResult.iob = iobTotal;
+
+                boolean enacted = false;
+                if (settings.closedLoop && determineBasalResult.changeRequested) {
+                    enacted = pump.applyAPSRequest(determineBasalResult).enacted;
+                    if (enacted)
+                        result.enacted++;
+                }
+                result.decisions.add(new ReplayResult.Decision(time, determineBasalResult, enacted));
+            }
+        } finally {
+            Clock.setThreadSource(null);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        log.debug("Replay finished: " + result);
+        return result;
+    }
+
+    // Same as TempBasalsPlugin but over simulated pump history
+    private IobTotal calculateBasalIob(long time, double dia, long absorptionTime) {
+        IobTotal total = new IobTotal();
+        double basalRate = profile.getBasal(NSProfile.secondsFromMidnight(new Date(time)));
+        long absorbedBefore = time - absorptionTime;
+        List<TempBasal> tempBasals = pump.getTempBasals();
+        for (int pos = tempBasals.size() - 1; pos >= 0; pos--) {
+            TempBasal t = tempBasals.get(pos);
+            long start = t.timeStart.getTime();
+            if (start + MAX_TEMP_DURATION < absorbedBefore)
+                break;
+            if (start >= time)
+                continue;
+            if (Math.min(t.getPlannedTimeEnd().getTime(), t.timeEnd != null ? t.timeEnd.getTime() : Long.MAX_VALUE) < absorbedBefore)
+                continue;
+            total.plus(t.iobCalc(time, basalRate, dia));
+        }
+        return total;
+    }
+}
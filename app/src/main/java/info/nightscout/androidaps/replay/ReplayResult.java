@@ -0,0 +1,47 @@
+package info.nightscout.androidaps.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import info.nightscout.androidaps.plugins.OpenAPSMA.DetermineBasalResult;
+
+/**
+ * Decisions of replayed loop and speed of replay
+ */
+public class ReplayResult {
+    public static class Decision {
+        public final long time;
+        public final DetermineBasalResult result;
+        public final boolean enacted;
+
+        public Decision(long time, DetermineBasalResult result, boolean enacted) {
+            this.time = time;
+            this.result = result;
+            this.enacted = enacted;
+        }
+    }
+
+    public final List<Decision> decisions = new ArrayList<Decision>();
+    public int cycles = 0;
+    public int skipped = 0; // no valid glucose status or no result
+    public int enacted = 0;
+    public long elapsedNanos = 0;
+
+    public double cyclesPerSecond() {
+        if (elapsedNanos == 0)
+            return 0d;
+        return cycles * 1e9d / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayResult{" +
+                "cycles=" + cycles +
+                ", decisions=" + decisions.size() +
+                ", skipped=" + skipped +
+                ", enacted=" + enacted +
+                ", elapsedMs=" + elapsedNanos / 1000000 +
+                ", cyclesPerSecond=" + Math.round(cyclesPerSecond()) +
+                '}';
+    }
+}
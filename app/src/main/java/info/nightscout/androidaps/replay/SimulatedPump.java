@@ -0,0 +1,198 @@
+package info.nightscout.androidaps.replay;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import info.nightscout.androidaps.data.PumpEnactResult;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.plugins.Loop.APSResult;
+import info.nightscout.androidaps.plugins.VirtualPump.VirtualPumpPlugin;
+import info.nightscout.client.data.NSProfile;
+
+/**
+ * Virtual pump for replay
+ * Temp basals are kept in memory and time comes from ReplayClock, no database, events or delays
+ */
+public class SimulatedPump extends VirtualPumpPlugin {
+    private final ReplayClock clock;
+    private final NSProfile profile;
+    // sorted from oldest
+    private final List<TempBasal> tempBasals = new ArrayList<TempBasal>();
+
+    public SimulatedPump(ReplayClock clock, NSProfile profile) {
+        this.clock = clock;
+        this.profile = profile;
+    }
+
+    // Recorded temp basal, copied because cancelTempBasal() changes it and replay must not modify recorded data
+    public void addTempBasal(TempBasal tempBasal) {
+        TempBasal copy = new TempBasal();
+        copy.timeIndex = tempBasal.timeIndex;
+        copy.timeStart = tempBasal.timeStart != null ? new Date(tempBasal.timeStart.getTime()) : null;
+        copy.timeEnd = tempBasal.timeEnd != null ? new Date(tempBasal.timeEnd.getTime()) : null;
+        copy.percent = tempBasal.percent;
+        copy.absolute = tempBasal.absolute;
+        copy.duration = tempBasal.duration;
+        copy.isExtended = tempBasal.isExtended;
+        copy.isAbsolute = tempBasal.isAbsolute;
+        tempBasals.add(copy);
+    }
+
+    public List<TempBasal> getTempBasals() {
+        return tempBasals;
+    }
+
+    // Same decisions as ConfigBuilderPlugin.applyAPSRequest without constraints
+    public PumpEnactResult applyAPSRequest(APSResult request) {
+        PumpEnactResult result;
+        if ((request.rate == 0 && request.duration == 0) || Math.abs(request.rate - getBaseBasalRate()) < 0.05) {
+            if (isTempBasalInProgress()) {
+                result = cancelTempBasal();
+            } else {
+                result = new PumpEnactResult();
+                result.absolute = request.rate;
+                result.duration = 0;
+                result.enacted = false;
+                result.comment = "Basal set correctly";
+                result.success = true;
+            }
+        } else if (isTempBasalInProgress() && Math.abs(request.rate - getTempBasalAbsoluteRate()) < 0.05) {
+            result = new PumpEnactResult();
+            result.absolute = getTempBasalAbsoluteRate();
+            result.duration = (int) getTempBasalRemainingMinutes();
+            result.enacted = false;
+            result.comment = "Temp basal set correctly";
+            result.success = true;
+        } else {
+            result = setTempBasalAbsolute(request.rate, request.duration);
+        }
+        return result;
+    }
+
+    @Override
+    public double getBaseBasalRate() {
+        return profile.getBasal(NSProfile.secondsFromMidnight(clock.date()));
+    }
+
+    @Override
+    public double getTempBasalAbsoluteRate() {
+        TempBasal tempBasal = getTempBasal();
+        if (tempBasal == null)
+            return 0;
+        if (tempBasal.isAbsolute)
+            return tempBasal.absolute;
+        return getBaseBasalRate() * tempBasal.percent / 100d;
+    }
+
+    @Override
+    public double getTempBasalRemainingMinutes() {
+        TempBasal tempBasal = getTempBasal();
+        if (tempBasal == null)
+            return 0;
+        long remainingMin = (tempBasal.getPlannedTimeEnd().getTime() - clock.now()) / 1000 / 60;
+        return (remainingMin < 0) ? 0 : (int) remainingMin;
+    }
+
+    @Override
+    public TempBasal getTempBasal() {
+        return getTempBasal(clock.date());
+    }
+
+    @Override
+    public TempBasal getTempBasal(Date time) {
+        for (int pos = tempBasals.size() - 1; pos >= 0; pos--) {
+            TempBasal tempBasal = tempBasals.get(pos);
+            if (tempBasal.isInProgress(time))
+                return tempBasal;
+            if (tempBasal.timeStart.getTime() + 24 * 60 * 60 * 1000L < time.getTime())
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public TempBasal getExtendedBolus() {
+        return null;
+    }
+
+    @Override
+    public PumpEnactResult deliverTreatment(Double insulin, Integer carbs, Context context) {
+        PumpEnactResult result = new PumpEnactResult();
+        result.success = true;
+        result.bolusDelivered = insulin;
+        result.carbsDelivered = carbs;
+        return result;
+    }
+
+    @Override
+    public PumpEnactResult setTempBasalAbsolute(Double absoluteRate, Integer durationInMinutes) {
+        PumpEnactResult result = cancelTempBasal();
+        TempBasal tempBasal = new TempBasal();
+        tempBasal.timeStart = clock.date();
+        tempBasal.isAbsolute = true;
+        tempBasal.absolute = absoluteRate;
+        tempBasal.duration = durationInMinutes;
+        tempBasals.add(tempBasal);
+        result.success = true;
+        result.enacted = true;
+        result.isTempCancel = false;
+        result.absolute = absoluteRate;
+        result.duration = durationInMinutes;
+        return result;
+    }
+
+    @Override
+    public PumpEnactResult setTempBasalPercent(Integer percent, Integer durationInMinutes) {
+        PumpEnactResult result = cancelTempBasal();
+        TempBasal tempBasal = new TempBasal();
+        tempBasal.timeStart = clock.date();
+        tempBasal.isAbsolute = false;
+        tempBasal.percent = percent;
+        tempBasal.duration = durationInMinutes;
+        tempBasals.add(tempBasal);
+        result.success = true;
+        result.enacted = true;
+        result.percent = percent;
+        result.isPercent = true;
+        result.isTempCancel = false;
+        result.duration = durationInMinutes;
+        return result;
+    }
+
+    @Override
+    public PumpEnactResult setExtendedBolus(Double insulin, Integer durationInMinutes) {
+        PumpEnactResult result = new PumpEnactResult();
+        result.success = false;
+        result.comment = "Extended bolus not simulated";
+        return result;
+    }
+
+    @Override
+    public PumpEnactResult cancelTempBasal() {
+        PumpEnactResult result = new PumpEnactResult();
+        result.success = true;
+        result.isTempCancel = true;
+        TempBasal tempBasal = getTempBasal();
+        if (tempBasal != null) {
+            tempBasal.timeEnd = clock.date();
+            result.enacted = true;
+        }
+        return result;
+    }
+
+    @Override
+    public PumpEnactResult cancelExtendedBolus() {
+        PumpEnactResult result = new PumpEnactResult();
+        result.success = true;
+        result.isTempCancel = true;
+        return result;
+    }
+
+    @Override
+    public String deviceID() {
+        return "SimulatedPump";
+    }
+}
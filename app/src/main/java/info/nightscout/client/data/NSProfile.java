@@ -16,6 +16,7 @@ import java.util.Iterator;
 import java.util.TimeZone;
 
 import info.nightscout.androidaps.Constants;
+import info.nightscout.utils.Clock;
 import info.nightscout.utils.DecimalFormatter;
 
 public class NSProfile {
@@ -427,7 +428,8 @@ public class NSProfile {
 
     public static int secondsFromMidnight() {
         Calendar c = Calendar.getInstance();
-        long now = c.getTimeInMillis();
+        long now = Clock.now();
+        c.setTimeInMillis(now);
         c.set(Calendar.HOUR_OF_DAY, 0);
         c.set(Calendar.MINUTE, 0);
         c.set(Calendar.SECOND, 0);
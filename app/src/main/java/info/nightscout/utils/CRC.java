@@ -24,7 +24,12 @@ public final class CRC {
             0x9ff8, 0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0xed1, 0x1ef0};
 
     public static short getCrc16(byte[] content, int offset, int length) {
-        int value = 0;
+        return getCrc16(0, content, offset, length);
+    }
+
+    // Continues calculation from crc of preceding data
+    public static short getCrc16(int crc, byte[] content, int offset, int length) {
+        int value = crc;
 
         for (int pos = offset; pos < offset + length; pos++) {
             value = unsignedShort((value << 8) ^ CRC16_TABLE[((value >>> 8) ^ content[pos]) & 0xff]);
@@ -0,0 +1,51 @@
+package info.nightscout.utils;
+
+import java.util.Date;
+
+/**
+ * Current time for the app, use instead of new Date() and System.currentTimeMillis()
+ * Source can be replaced to freeze or fast-forward time in tests and simulations
+ */
+public class Clock {
+
+    public interface Source {
+        long now();
+    }
+
+    public static final Source SYSTEM = new Source() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static volatile Source source = SYSTEM;
+    // set by replay running next to the live loop, only that thread sees replayed time
+    private static final ThreadLocal<Source> threadSource = new ThreadLocal<Source>();
+    private static volatile boolean threadSourceUsed = false;
+
+    public static long now() {
+        if (threadSourceUsed) {
+            Source local = threadSource.get();
+            if (local != null)
+                return local.now();
+        }
+        return source.now();
+    }
+
+    public static Date date() {
+        return new Date(now());
+    }
+
+    // null restores system time
+    public static void setSource(Source newSource) {
+        source = newSource != null ? newSource : SYSTEM;
+    }
+
+    // null restores source of whole app for current thread
+    public static void setThreadSource(Source newSource) {
+        if (newSource != null)
+            threadSourceUsed = true;
+        threadSource.set(newSource);
+    }
+}
@@ -0,0 +1,287 @@
+package info.nightscout.utils;
+
+import com.squareup.otto.Bus;
+import com.squareup.otto.Subscribe;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import info.nightscout.androidaps.Config;
+
+/**
+ * Event bus with coalescing of event bursts and delivery by subscriber priority
+ *
+ * Every subscriber has own Otto bus so delivery to each one is timed separately.
+ * Events set by coalesce() are throttled: the first one is delivered immediately, events of the same class
+ * posted in the following window are merged and delivered once when the window ends.
+ * Coalesced events go to PERSISTENCE subscribers first on the calling thread so in-memory data is
+ * up to date, then to LOOP and UI subscribers on their own executors.
+ * Other events are delivered synchronously to all subscribers on the posting thread.
+ */
+public class EventDispatcher {
+    private static Logger log = LoggerFactory.getLogger(EventDispatcher.class);
+
+    public static final int PERSISTENCE = 0;
+    public static final int LOOP = 1;
+    public static final int UI = 2;
+
+    public static final long STATS_INTERVAL = 15; // minutes
+
+    // Combines pending event with newly posted one
+    public interface Merger {
+        Object merge(Object pending, Object posted);
+    }
+
+    public static class Stats {
+        public long delivered = 0;
+        public long totalWaitNanos = 0;
+        public long maxWaitNanos = 0;
+        public long totalRunNanos = 0;
+        public long maxRunNanos = 0;
+
+        synchronized void add(long waitNanos, long runNanos) {
+            delivered++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            totalRunNanos += runNanos;
+            maxRunNanos = Math.max(maxRunNanos, runNanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (delivered == 0)
+                return "0 events";
+            return delivered + " events, wait avg " + totalWaitNanos / delivered / 1000000 + " max " + maxWaitNanos / 1000000
+                    + " ms, run avg " + totalRunNanos / delivered / 1000000 + " max " + maxRunNanos / 1000000 + " ms";
+        }
+    }
+
+    private static class Subscriber {
+        final Object target;
+        final int priority;
+        final Bus bus = new Bus(ThreadEnforcer.ANY);
+        final List<Class<?>> eventTypes = new ArrayList<Class<?>>();
+        final Stats stats = new Stats();
+
+        Subscriber(Object target, int priority) {
+            this.target = target;
+            this.priority = priority;
+            // Otto looks for handlers in the class itself only
+            for (Method method : target.getClass().getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Subscribe.class) && method.getParameterTypes().length == 1)
+                    eventTypes.add(method.getParameterTypes()[0]);
+            }
+        }
+
+        boolean handles(Class<?> eventClass) {
+            for (Class<?> eventType : eventTypes)
+                if (eventType.isAssignableFrom(eventClass))
+                    return true;
+            return false;
+        }
+    }
+
+    private static class Window {
+        Object pending = null;
+        long pendingSince = 0;
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final Map<Class<?>, Long> windows = new ConcurrentHashMap<Class<?>, Long>();
+    private final Map<Class<?>, Merger> mergers = new ConcurrentHashMap<Class<?>, Merger>();
+    // open throttling windows by event class
+    private final Map<Class<?>, Window> open = new HashMap<Class<?>, Window>();
+    private long coalesced = 0;
+
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(threadFactory("EventDispatcher", Thread.NORM_PRIORITY));
+    private final ExecutorService loopExecutor = Executors.newSingleThreadExecutor(threadFactory("EventDispatcherLoop", Thread.MAX_PRIORITY));
+    private final ExecutorService uiExecutor = Executors.newSingleThreadExecutor(threadFactory("EventDispatcherUI", Thread.MIN_PRIORITY));
+
+    private static ThreadFactory threadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+
+    public EventDispatcher() {
+        if (Config.logEventDispatcher)
+            dispatcher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    logStats();
+                }
+            }, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    public void coalesce(Class<?> eventClass, long windowMsecs) {
+        coalesce(eventClass, windowMsecs, null);
+    }
+
+    // without merger the last posted event is delivered
+    public void coalesce(Class<?> eventClass, long windowMsecs, Merger merger) {
+        windows.put(eventClass, windowMsecs);
+        if (merger != null)
+            mergers.put(eventClass, merger);
+    }
+
+    // Activities and fragments are UI subscribers, others PERSISTENCE
+    public void register(Object target) {
+        register(target, isUI(target) ? UI : PERSISTENCE);
+    }
+
+    public void register(Object target, int priority) {
+        if (find(target) != null)
+            return;
+        Subscriber subscriber = new Subscriber(target, priority);
+        subscriber.bus.register(target);
+        subscribers.add(subscriber);
+    }
+
+    public void unregister(Object target) {
+        Subscriber subscriber = find(target);
+        if (subscriber == null)
+            throw new IllegalArgumentException("Missing event handler for an annotated method. Is " + target.getClass() + " registered?");
+        subscribers.remove(subscriber);
+        subscriber.bus.unregister(target);
+    }
+
+    public void post(Object event) {
+        final Class<?> eventClass = event.getClass();
+        Long windowMsecs = windows.get(eventClass);
+        if (windowMsecs == null) {
+            deliver(event, System.nanoTime(), false);
+            return;
+        }
+        synchronized (open) {
+            Window window = open.get(eventClass);
+            if (window != null) {
+                if (window.pending == null) {
+                    window.pending = event;
+                    window.pendingSince = System.nanoTime();
+                } else {
+                    Merger merger = mergers.get(eventClass);
+                    window.pending = merger != null ? merger.merge(window.pending, event) : event;
+                    coalesced++;
+                }
+                return;
+            }
+            open.put(eventClass, new Window());
+        }
+        scheduleWindowEnd(eventClass, windowMsecs);
+        deliver(event, System.nanoTime(), true);
+    }
+
+    private void scheduleWindowEnd(final Class<?> eventClass, final long windowMsecs) {
+        dispatcher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Window window;
+                synchronized (open) {
+                    window = open.get(eventClass);
+                    if (window.pending == null) {
+                        open.remove(eventClass);
+                        return;
+                    }
+                    // keep throttling while events are coming
+                    open.put(eventClass, new Window());
+                }
+                scheduleWindowEnd(eventClass, windowMsecs);
+                try {
+                    deliver(window.pending, window.pendingSince, true);
+                } catch (RuntimeException e) {
+                    log.error("Delivery of " + eventClass.getSimpleName() + " failed", e);
+                }
+            }
+        }, windowMsecs, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver(final Object event, final long posted, boolean async) {
+        Class<?> eventClass = event.getClass();
+        for (Subscriber subscriber : subscribers)
+            if (subscriber.priority == PERSISTENCE && subscriber.handles(eventClass))
+                deliverTo(subscriber, event, posted);
+        for (int priority = LOOP; priority <= UI; priority++) {
+            for (final Subscriber subscriber : subscribers) {
+                if (subscriber.priority != priority || !subscriber.handles(eventClass))
+                    continue;
+                if (!async) {
+                    deliverTo(subscriber, event, posted);
+                    continue;
+                }
+                (priority == LOOP ? loopExecutor : uiExecutor).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // may be unregistered meanwhile
+                        if (!subscribers.contains(subscriber))
+                            return;
+                        try {
+                            deliverTo(subscriber, event, posted);
+                        } catch (RuntimeException e) {
+                            log.error("Delivery of " + event.getClass().getSimpleName() + " to " + subscriber.target.getClass().getSimpleName() + " failed", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void deliverTo(Subscriber subscriber, Object event, long posted) {
+        long start = System.nanoTime();
+        subscriber.bus.post(event);
+        subscriber.stats.add(start - posted, System.nanoTime() - start);
+    }
+
+    private Subscriber find(Object target) {
+        for (Subscriber subscriber : subscribers)
+            if (subscriber.target == target)
+                return subscriber;
+        return null;
+    }
+
+    private static boolean isUI(Object target) {
+        return target instanceof android.app.Activity
+                || target instanceof android.app.Fragment
+                || target instanceof android.support.v4.app.Fragment;
+    }
+
+    // Delivery times of one subscriber, null if not registered
+    public Stats getStats(Object target) {
+        Subscriber subscriber = find(target);
+        return subscriber != null ? subscriber.stats : null;
+    }
+
+    // Events merged into pending ones
+    public long getCoalesced() {
+        synchronized (open) {
+            return coalesced;
+        }
+    }
+
+    public void logStats() {
+        log.debug("Coalesced events: " + getCoalesced());
+        // one line per subscriber, instances of the same class told apart by identity
+        for (Subscriber subscriber : subscribers)
+            log.debug(subscriber.target.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(subscriber.target))
+                    + ": " + subscriber.stats);
+    }
+}
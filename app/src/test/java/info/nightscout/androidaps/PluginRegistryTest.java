@@ -0,0 +1,151 @@
+package info.nightscout.androidaps;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.nightscout.androidaps.data.ConstraintSet;
+import info.nightscout.androidaps.interfaces.ConstraintsInterface;
+import info.nightscout.androidaps.interfaces.PluginBase;
+
+import static org.junit.Assert.*;
+
+public class PluginRegistryTest {
+    private static final int ITERATIONS = 100000;
+
+    public PluginRegistryTest() {
+        super();
+    }
+
+    public static class Plugin implements PluginBase {
+        int type;
+        boolean enabled = true;
+
+        Plugin(int type) {
+            this.type = type;
+        }
+
+        public int getType() { return type; }
+        public String getFragmentClass() { return null; }
+        public String getName() { return getClass().getSimpleName(); }
+        public boolean isEnabled(int type) { return enabled; }
+        public boolean isVisibleInTabs(int type) { return true; }
+        public boolean canBeHidden(int type) { return true; }
+        public void setFragmentEnabled(int type, boolean fragmentEnabled) { enabled = fragmentEnabled; }
+        public void setFragmentVisible(int type, boolean fragmentVisible) { }
+    }
+
+    public static class ConstraintsPlugin extends Plugin implements ConstraintsInterface {
+        boolean closedLoop;
+
+        ConstraintsPlugin(boolean closedLoop) {
+            super(PluginBase.CONSTRAINTS);
+            this.closedLoop = closedLoop;
+        }
+
+        public boolean isLoopEnabled() { return true; }
+        public boolean isClosedModeEnabled() { return closedLoop; }
+        public boolean isAutosensModeEnabled() { return true; }
+        public boolean isAMAModeEnabled() { return true; }
+        public Double applyBasalConstraints(Double absoluteRate) { return absoluteRate; }
+        public Integer applyBasalConstraints(Integer percentRate) { return percentRate; }
+        public Double applyBolusConstraints(Double insulin) { return insulin; }
+        public Integer applyCarbsConstraints(Integer carbs) { return carbs; }
+        public Double applyMaxIOBConstraints(Double maxIob) { return maxIob; }
+    }
+
+    public static class Aggregator extends ConstraintsPlugin {
+        Aggregator() {
+            super(true);
+            type = PluginBase.GENERAL;
+        }
+    }
+
+    private static List<PluginBase> plugins() {
+        List<PluginBase> plugins = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            plugins.add(new Plugin(i % (PluginBase.LAST - 1) + 1));
+        plugins.add(new ConstraintsPlugin(true));
+        plugins.add(new ConstraintsPlugin(true));
+        plugins.add(new ConstraintsPlugin(false));
+        return plugins;
+    }
+
+    @Test
+    public void lookupTest() throws Exception {
+        List<PluginBase> plugins = plugins();
+        Aggregator aggregator = new Aggregator();
+        plugins.add(aggregator);
+        PluginRegistry registry = new PluginRegistry(plugins, aggregator);
+
+        assertEquals(24, registry.getAll().size());
+        assertEquals(3, registry.getByInterface(ConstraintsInterface.class).size());
+        // aggregator is left out
+        assertEquals(23, registry.getByInterface(PluginBase.class).size());
+        assertEquals(0, registry.getByInterface(Runnable.class).size());
+        assertEquals(3 + 2, registry.getByType(PluginBase.CONSTRAINTS).size());
+        assertEquals(0, registry.getByType(PluginBase.LAST).size());
+        assertEquals(aggregator, registry.getByClass(Aggregator.class));
+        assertNull(registry.getByClass(String.class));
+        assertEquals(3, registry.constraints().length);
+        try {
+            registry.getByType(PluginBase.PUMP).add(aggregator);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+
+        assertFalse(ConstraintSet.evaluate(registry.constraints(), 0).closedModeEnabled);
+        ((Plugin) registry.constraints()[2]).setFragmentEnabled(PluginBase.CONSTRAINTS, false);
+        assertTrue(ConstraintSet.evaluate(registry.constraints(), 0).closedModeEnabled);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // legacy lookup from MainApp.getSpecificPluginsListByInterface()
+    private static List<PluginBase> scan(List<PluginBase> plugins, Class interfaceClass) {
+        ArrayList<PluginBase> newList = new ArrayList<>();
+        for (PluginBase p : plugins) {
+            if (interfaceClass.isAssignableFrom(p.getClass()))
+                newList.add(p);
+        }
+        return newList;
+    }
+
+    // Only lookups are measured, evaluating constraints is not allocation free
+    // as ConstraintsInterface takes and returns boxed values
+    @Test
+    public void lookupAllocationBenchmark() throws Exception {
+        List<PluginBase> plugins = plugins();
+        PluginRegistry registry = new PluginRegistry(plugins, null);
+        int count = 0;
+
+        long before = allocatedBytes();
+        long baseline = allocatedBytes() - before;
+        before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (ConstraintsInterface constrain : registry.constraints())
+                if (((PluginBase) constrain).isEnabled(PluginBase.CONSTRAINTS)) count++;
+            count += registry.getByInterface(ConstraintsInterface.class).size();
+            count += registry.getByType(PluginBase.PUMP).size();
+            if (registry.getByClass(ConstraintsPlugin.class) != null) count++;
+        }
+        long registryBytes = allocatedBytes() - before - baseline;
+
+        before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (PluginBase p : scan(plugins, ConstraintsInterface.class))
+                if (p.isEnabled(PluginBase.CONSTRAINTS)) count++;
+        }
+        long scanBytes = allocatedBytes() - before - baseline;
+
+        assertTrue(count > 0);
+        // a few bytes may come from class loading or JIT, not from the loop
+        assertTrue(registryBytes < ITERATIONS / 10);
+        // legacy scan allocates new list on every call
+        assertTrue(scanBytes > ITERATIONS);
+    }
+}
@@ -0,0 +1,99 @@
+package info.nightscout.androidaps.data;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import info.nightscout.androidaps.db.BgReading;
+
+import static org.junit.Assert.*;
+
+public class BgCacheTest {
+    private static final long MINUTE = 60 * 1000L;
+
+    public BgCacheTest() {
+        super();
+    }
+
+    private static BgReading bg(long time, double value) {
+        BgReading bgReading = new BgReading();
+        bgReading.timeIndex = time;
+        bgReading.value = value;
+        bgReading.direction = "Flat";
+        return bgReading;
+    }
+
+    @Test
+    public void addInOrderTest() throws Exception {
+        BgCache cache = new BgCache(16);
+        assertNull(cache.getLast());
+        for (int i = 0; i < 10; i++)
+            assertTrue(cache.add(bg(i * 5 * MINUTE, 100 + i)));
+        assertEquals(10, cache.size());
+        assertEquals(45 * MINUTE, cache.getLast().timeIndex);
+        assertEquals(109d, cache.getLast().value, 0.000001d);
+        assertEquals("Flat", cache.getLast().direction);
+        // invalid and duplicate readings are ignored
+        assertFalse(cache.add(bg(50 * MINUTE, 38)));
+        assertFalse(cache.add(bg(45 * MINUTE, 200)));
+        assertEquals(109d, cache.getLast().value, 0.000001d);
+
+        List<BgReading> last = cache.getLast(3);
+        assertEquals(3, last.size());
+        assertEquals(45 * MINUTE, last.get(0).timeIndex);
+        assertEquals(35 * MINUTE, last.get(2).timeIndex);
+    }
+
+    @Test
+    public void addOutOfOrderTest() throws Exception {
+        BgCache cache = new BgCache(16);
+        cache.add(bg(20 * MINUTE, 120));
+        cache.add(bg(0, 100));
+        cache.add(bg(10 * MINUTE, 110));
+        cache.add(bg(5 * MINUTE, 105));
+        cache.add(bg(15 * MINUTE, 115));
+        assertEquals(5, cache.size());
+        for (int i = 0; i < cache.size(); i++) {
+            assertEquals(i * 5 * MINUTE, cache.getTime(i));
+            assertEquals(100d + i * 5, cache.getValue(i), 0.000001d);
+        }
+    }
+
+    @Test
+    public void rangeTest() throws Exception {
+        BgCache cache = new BgCache(64);
+        for (int i = 0; i < 50; i++)
+            cache.add(bg(i * 5 * MINUTE, 100));
+        assertEquals(0, cache.lowerBound(-1));
+        assertEquals(2, cache.lowerBound(10 * MINUTE));
+        assertEquals(3, cache.lowerBound(11 * MINUTE));
+        assertEquals(50, cache.lowerBound(1000 * MINUTE));
+
+        List<BgReading> from = cache.getFrom(200 * MINUTE);
+        assertEquals(10, from.size());
+        assertEquals(200 * MINUTE, from.get(0).timeIndex);
+        assertEquals(245 * MINUTE, from.get(9).timeIndex);
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        BgCache cache = new BgCache(8);
+        cache.setCoveredFrom(0);
+        for (int i = 0; i < 20; i++)
+            cache.add(bg(i * 5 * MINUTE, 100 + i));
+        // ring wrapped around, oldest were dropped
+        assertEquals(8, cache.size());
+        assertEquals(60 * MINUTE, cache.getTime(0));
+        assertEquals(95 * MINUTE, cache.getTime(7));
+        assertFalse(cache.covers(55 * MINUTE));
+        assertTrue(cache.covers(60 * MINUTE));
+        // too old for full cache
+        assertFalse(cache.add(bg(50 * MINUTE, 100)));
+        // inserted in the middle of wrapped buffer
+        assertTrue(cache.add(bg(62 * MINUTE, 100)));
+        assertEquals(8, cache.size());
+        assertEquals(62 * MINUTE, cache.getTime(0));
+        assertEquals(65 * MINUTE, cache.getTime(1));
+        assertEquals(95 * MINUTE, cache.getLast().timeIndex);
+    }
+}
@@ -0,0 +1,101 @@
+package info.nightscout.androidaps.data;
+
+import org.junit.Test;
+
+import info.nightscout.androidaps.Constants;
+import info.nightscout.androidaps.interfaces.ConstraintsInterface;
+import info.nightscout.androidaps.interfaces.PluginBase;
+
+import static org.junit.Assert.*;
+
+public class ConstraintSetTest {
+
+    public ConstraintSetTest() {
+        super();
+    }
+
+    public static class Constraints implements PluginBase, ConstraintsInterface {
+        String name;
+        boolean enabled = true;
+        boolean closedLoop = true;
+        double maxBasal = Double.MAX_VALUE;
+        double maxBolus = Double.MAX_VALUE;
+        double maxIob = Double.MAX_VALUE;
+        int calls = 0;
+
+        Constraints(String name) {
+            this.name = name;
+        }
+
+        public int getType() { return PluginBase.CONSTRAINTS; }
+        public String getFragmentClass() { return null; }
+        public String getName() { return name; }
+        public boolean isEnabled(int type) { return enabled; }
+        public boolean isVisibleInTabs(int type) { return true; }
+        public boolean canBeHidden(int type) { return true; }
+        public void setFragmentEnabled(int type, boolean fragmentEnabled) { enabled = fragmentEnabled; }
+        public void setFragmentVisible(int type, boolean fragmentVisible) { }
+
+        public boolean isLoopEnabled() { calls++; return true; }
+        public boolean isClosedModeEnabled() { calls++; return closedLoop; }
+        public boolean isAutosensModeEnabled() { calls++; return true; }
+        public boolean isAMAModeEnabled() { calls++; return true; }
+        public Double applyBasalConstraints(Double absoluteRate) { calls++; return Math.min(absoluteRate, maxBasal); }
+        public Integer applyBasalConstraints(Integer percentRate) { calls++; return Math.min(percentRate, 200); }
+        public Double applyBolusConstraints(Double insulin) { calls++; return Math.min(insulin, maxBolus); }
+        public Integer applyCarbsConstraints(Integer carbs) { calls++; return carbs; }
+        public Double applyMaxIOBConstraints(Double maxIob) { calls++; return Math.min(maxIob, this.maxIob); }
+    }
+
+    @Test
+    public void evaluateTest() throws Exception {
+        Constraints safety = new Constraints("Safety");
+        safety.maxBasal = 2d;
+        safety.maxBolus = 3d;
+        safety.closedLoop = false;
+        Constraints pump = new Constraints("Pump");
+        pump.maxBasal = 1.5d;
+        pump.maxBolus = 5d;
+        Constraints objectives = new Constraints("Objectives");
+        objectives.maxIob = 0d;
+        objectives.closedLoop = false;
+        Constraints disabled = new Constraints("Disabled");
+        disabled.enabled = false;
+        disabled.maxBasal = 0d;
+
+        ConstraintSet set = ConstraintSet.evaluate(new ConstraintsInterface[]{safety, pump, objectives, disabled}, 1000L);
+        assertEquals(1000L, set.evaluated);
+        // one call per method and plugin
+        assertEquals(9, safety.calls);
+        assertEquals(0, disabled.calls);
+
+        assertTrue(set.loopEnabled);
+        assertNull(set.loopDisabledBy);
+        assertFalse(set.closedModeEnabled);
+        assertEquals("Safety", set.closedModeDisabledBy);
+        assertEquals(1.5d, set.maxBasal, 0.000001d);
+        assertEquals("Pump", set.maxBasalBy);
+        assertEquals(200, set.maxBasalPercent);
+        assertEquals("Safety", set.maxBasalPercentBy);
+        assertEquals(3d, set.maxBolus, 0.000001d);
+        assertEquals("Safety", set.maxBolusBy);
+        assertEquals((int) Constants.carbsOnlyForCheckLimit, set.maxCarbs);
+        assertNull(set.maxCarbsBy);
+        assertEquals("Objectives", set.maxIobBy);
+
+        assertEquals(1.5d, set.applyBasalConstraints(4d), 0.000001d);
+        assertEquals(1d, set.applyBasalConstraints(1d), 0.000001d);
+        assertEquals(0d, set.applyBasalConstraints(-1d), 0.000001d);
+        assertEquals(3d, set.applyBolusConstraints(10d), 0.000001d);
+        assertEquals(40, set.applyCarbsConstraints(40));
+        assertEquals(0d, set.applyMaxIOBConstraints(2d), 0.000001d);
+    }
+
+    @Test
+    public void emptyTest() throws Exception {
+        ConstraintSet set = ConstraintSet.evaluate(new ConstraintsInterface[0], 0L);
+        assertTrue(set.loopEnabled && set.closedModeEnabled && set.autosensModeEnabled && set.amaModeEnabled);
+        assertEquals(5d, set.applyBasalConstraints(5d), 0.000001d);
+        assertEquals(2d, set.applyMaxIOBConstraints(2d), 0.000001d);
+    }
+}
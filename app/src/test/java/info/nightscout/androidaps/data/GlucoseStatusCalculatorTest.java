@@ -0,0 +1,95 @@
+package info.nightscout.androidaps.data;
+
+import org.junit.Test;
+
+import info.nightscout.androidaps.db.BgReading;
+import info.nightscout.androidaps.db.DatabaseHelper;
+
+import static org.junit.Assert.*;
+
+public class GlucoseStatusCalculatorTest {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long NOW = 1480000000000L;
+
+    public GlucoseStatusCalculatorTest() {
+        super();
+    }
+
+    private static void add(BgCache cache, long time, double value) {
+        BgReading bgReading = new BgReading();
+        bgReading.timeIndex = time;
+        bgReading.value = value;
+        cache.add(bgReading);
+    }
+
+    @Test
+    public void linearTest() throws Exception {
+        BgCache cache = new BgCache(64);
+        // rising 3 mg/dl per 5 min
+        for (int i = 0; i <= 12; i++)
+            add(cache, NOW - i * 5 * MINUTE, 150 - i * 3);
+        DatabaseHelper.GlucoseStatus status = new DatabaseHelper.GlucoseStatus();
+        assertTrue(GlucoseStatusCalculator.calculate(cache, NOW + 2 * MINUTE, status));
+        assertEquals(150d, status.glucose, 0.000001d);
+        assertEquals(3d, status.delta, 0.000001d);
+        assertEquals(3d, status.avgdelta, 0.000001d);
+        assertEquals(3d, status.short_avgdelta, 0.000001d);
+        assertEquals(3d, status.long_avgdelta, 0.000001d);
+        assertEquals(3d, status.slope, 0.000001d);
+        assertEquals(0d, status.noise, 0.000001d);
+    }
+
+    @Test
+    public void deltasTest() throws Exception {
+        BgCache cache = new BgCache(64);
+        add(cache, NOW - 20 * MINUTE, 80);
+        add(cache, NOW - 15 * MINUTE, 100);
+        add(cache, NOW - 10 * MINUTE, 100);
+        add(cache, NOW - 5 * MINUTE, 105);
+        add(cache, NOW, 110);
+        // readings after time are not used
+        add(cache, NOW + 5 * MINUTE, 200);
+        DatabaseHelper.GlucoseStatus status = new DatabaseHelper.GlucoseStatus();
+        assertTrue(GlucoseStatusCalculator.calculate(cache, NOW, status));
+        assertEquals(110d, status.glucose, 0.000001d);
+        assertEquals(5d, status.delta, 0.000001d);
+        assertEquals((5d + 5d + 10d / 3) / 3, status.short_avgdelta, 0.000001d);
+        assertEquals(status.short_avgdelta, status.avgdelta, 0.000001d);
+        assertEquals(30d / 20 * 5, status.long_avgdelta, 0.000001d);
+        assertTrue(status.slope > 0);
+        assertTrue(status.noise > 0);
+    }
+
+    @Test
+    public void missingReadingsTest() throws Exception {
+        BgCache cache = new BgCache(64);
+        // 10 min gap, old calculation needed 4 readings
+        add(cache, NOW - 10 * MINUTE, 100);
+        add(cache, NOW, 110);
+        DatabaseHelper.GlucoseStatus status = new DatabaseHelper.GlucoseStatus();
+        assertTrue(GlucoseStatusCalculator.calculate(cache, NOW, status));
+        assertEquals(5d, status.delta, 0.000001d);
+        assertEquals(5d, status.avgdelta, 0.000001d);
+        assertEquals(5d, status.slope, 0.000001d);
+        assertEquals(0d, status.noise, 0.000001d);
+    }
+
+    @Test
+    public void invalidTest() throws Exception {
+        BgCache cache = new BgCache(64);
+        DatabaseHelper.GlucoseStatus status = new DatabaseHelper.GlucoseStatus();
+        assertFalse(GlucoseStatusCalculator.calculate(cache, NOW, status));
+        add(cache, NOW, 110);
+        // no older reading for delta
+        assertFalse(GlucoseStatusCalculator.calculate(cache, NOW, status));
+        add(cache, NOW - 5 * MINUTE, 105);
+        assertTrue(GlucoseStatusCalculator.calculate(cache, NOW, status));
+        // too old
+        assertFalse(GlucoseStatusCalculator.calculate(cache, NOW + GlucoseStatusCalculator.MAX_AGE + 1, status));
+        // readings too old for deltas
+        BgCache old = new BgCache(64);
+        add(old, NOW - 60 * MINUTE, 100);
+        add(old, NOW, 110);
+        assertFalse(GlucoseStatusCalculator.calculate(old, NOW, status));
+    }
+}
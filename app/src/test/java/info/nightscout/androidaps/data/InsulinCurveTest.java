@@ -0,0 +1,49 @@
+package info.nightscout.androidaps.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InsulinCurveTest {
+
+    public InsulinCurveTest() {
+        super();
+    }
+
+    @Test
+    public void tableMatchesFormulaTest() throws Exception {
+        Random random = new Random(1);
+        for (double dia : new double[]{1.5d, 3d, 4.2d, 7d}) {
+            InsulinCurve curve = InsulinCurve.get(dia);
+            double scaleFactor = 3.0 / dia;
+            for (int i = 0; i < 1000; i++) {
+                long msAgo = (long) (random.nextDouble() * (dia + 1) * 60 * 60 * 1000);
+                double minAgo = scaleFactor * msAgo / 1000d / 60d;
+                assertEquals(InsulinCurve.iobFraction(minAgo), curve.iob(msAgo), 0.001d);
+                assertEquals(InsulinCurve.activityFraction(minAgo, dia), curve.activity(msAgo), 0.0005d);
+                assertEquals(InsulinCurve.iobFractionIntegral(minAgo) / scaleFactor, curve.iobIntegral(msAgo), 0.01d);
+            }
+        }
+    }
+
+    @Test
+    public void boundariesTest() throws Exception {
+        InsulinCurve curve = InsulinCurve.get(3d);
+        assertEquals(1d, curve.iob(0), 0.00000001d);
+        assertEquals(0d, curve.activity(0), 0.00000001d);
+        assertEquals(0d, curve.iob(3 * 60 * 60 * 1000L), 0.00000001d);
+        assertEquals(0d, curve.iob(10 * 60 * 60 * 1000L), 0.00000001d);
+        assertEquals(curve.iobIntegral(3 * 60 * 60 * 1000L), curve.iobIntegral(10 * 60 * 60 * 1000L), 0.00000001d);
+        assertEquals(0d, curve.iobIntegral(-1000L), 0.00000001d);
+        // activity integrates to 1U absorbed
+        assertEquals(1d, curve.activityIntegral(3 * 60 * 60 * 1000L), 0.01d);
+    }
+
+    @Test
+    public void cacheTest() throws Exception {
+        assertSame(InsulinCurve.get(3d), InsulinCurve.get(3d));
+        assertEquals(1.5d, InsulinCurve.get(1.5d).getDia(), 0.00000001d);
+    }
+}
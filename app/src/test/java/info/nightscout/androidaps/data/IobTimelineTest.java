@@ -0,0 +1,59 @@
+package info.nightscout.androidaps.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IobTimelineTest {
+    private static final long MINUTE = 60 * 1000L;
+
+    public IobTimelineTest() {
+        super();
+    }
+
+    @Test
+    public void bolusTest() throws Exception {
+        InsulinCurve curve = InsulinCurve.get(3d);
+        IobTimeline timeline = new IobTimeline(0, 6 * 60 * MINUTE, 5 * MINUTE);
+        long bolusTime = 62 * MINUTE;
+        timeline.addBolus(bolusTime, 2d, curve);
+
+        for (int i = 0; i < timeline.size(); i++) {
+            long time = timeline.getTime(i);
+            double expected = time < bolusTime ? 0d : 2d * curve.iob(time - bolusTime);
+            assertEquals(expected, timeline.iob[i], 0.00000001d);
+            assertEquals(0d, timeline.basaliob[i], 0.00000001d);
+        }
+    }
+
+    @Test
+    public void infusionEqualsSmallBolusesTest() throws Exception {
+        InsulinCurve curve = InsulinCurve.get(4d);
+        IobTimeline continuous = new IobTimeline(0, 8 * 60 * MINUTE, 5 * MINUTE);
+        IobTimeline discrete = new IobTimeline(0, 8 * 60 * MINUTE, 5 * MINUTE);
+        long start = 30 * MINUTE;
+        long end = 150 * MINUTE;
+        double rate = 1.5d; // U/h
+        continuous.addInfusion(start, end, rate, curve);
+        for (long time = start; time < end; time += 1000) {
+            discrete.addBolus(time, rate / 60 / 60, curve);
+        }
+
+        for (int i = 0; i < continuous.size(); i++) {
+            assertEquals(discrete.iob[i], continuous.iob[i], 0.01d);
+            assertEquals(continuous.iob[i], continuous.basaliob[i], 0.00000001d);
+            assertEquals(discrete.activity[i], continuous.activity[i], 0.0001d);
+        }
+    }
+
+    @Test
+    public void getIndexTest() throws Exception {
+        IobTimeline timeline = new IobTimeline(60 * MINUTE, 120 * MINUTE, 5 * MINUTE);
+        assertEquals(13, timeline.size());
+        assertEquals(0, timeline.getIndex(60 * MINUTE));
+        assertEquals(1, timeline.getIndex(63 * MINUTE));
+        assertEquals(12, timeline.getIndex(120 * MINUTE));
+        assertEquals(-1, timeline.getIndex(50 * MINUTE));
+        assertEquals(-1, timeline.getIndex(130 * MINUTE));
+    }
+}
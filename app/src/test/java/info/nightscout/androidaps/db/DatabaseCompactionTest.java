@@ -0,0 +1,99 @@
+package info.nightscout.androidaps.db;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import static org.junit.Assert.*;
+
+public class DatabaseCompactionTest {
+    private static final String URL = "jdbc:sqlite:file:compactiontest?mode=memory&cache=shared";
+    private static final long NOW = 1480000000000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private Connection keepAlive;
+    private JdbcConnectionSource connectionSource;
+
+    public DatabaseCompactionTest() {
+        super();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // in memory database lives while a connection is open
+        keepAlive = DriverManager.getConnection(URL);
+        connectionSource = new JdbcConnectionSource(URL);
+        TableUtils.createTableIfNotExists(connectionSource, TempBasal.class);
+        TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
+        TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
+        TableUtils.createTableIfNotExists(connectionSource, DanaRHistoryRecord.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DaoManager.clearCache();
+        connectionSource.close();
+        keepAlive.close();
+    }
+
+    // One reading every 5 min for last 4 days
+    private void addBgReadings() throws Exception {
+        Dao<BgReading, Long> dao = DaoManager.createDao(connectionSource, BgReading.class);
+        for (long time = NOW - 96 * HOUR; time < NOW; time += 5 * 60 * 1000L) {
+            BgReading bgReading = new BgReading();
+            bgReading.timeIndex = time;
+            bgReading.value = 100;
+            dao.create(bgReading);
+        }
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        addBgReadings();
+        Dao<DanaRHistoryRecord, String> historyDao = DaoManager.createDao(connectionSource, DanaRHistoryRecord.class);
+        for (int day = 0; day < 40; day++) {
+            DanaRHistoryRecord record = new DanaRHistoryRecord();
+            record.setBytes("record" + day);
+            record.setRecordDate(NOW - day * 24 * HOUR - HOUR);
+            historyDao.create(record);
+        }
+
+        DatabaseCompaction.Result result = new DatabaseCompaction(connectionSource, 10).compact(NOW);
+
+        // 24 hours older than 72 hours
+        assertEquals(288, (int) result.deleted.get(DatabaseHelper.DATABASE_BGREADINGS));
+        assertEquals(10, (int) result.deleted.get(DatabaseHelper.DATABASE_DANARHISTORY));
+        assertEquals(0, (int) result.deleted.get(DatabaseHelper.DATABASE_TREATMENTS));
+        assertEquals(298, result.getDeleted());
+        assertFalse(result.cancelled);
+        // 29 + 2 + 1 + 1
+        assertEquals(33, result.batches);
+
+        Dao<BgReading, Long> bgDao = DaoManager.createDao(connectionSource, BgReading.class);
+        assertEquals(864, bgDao.countOf());
+        assertEquals(0, bgDao.queryBuilder().where().lt("timeIndex", NOW - 72 * HOUR).countOf());
+        assertEquals(30, historyDao.countOf());
+
+        // nothing more to delete
+        assertEquals(0, new DatabaseCompaction(connectionSource, 10).compact(NOW).getDeleted());
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        addBgReadings();
+        DatabaseCompaction compaction = new DatabaseCompaction(connectionSource, 10);
+        compaction.cancel();
+        DatabaseCompaction.Result result = compaction.compact(NOW);
+        assertTrue(result.cancelled);
+        assertEquals(0, result.getDeleted());
+        assertEquals(1152, DaoManager.createDao(connectionSource, BgReading.class).countOf());
+    }
+}
@@ -0,0 +1,126 @@
+package info.nightscout.androidaps.db;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.table.TableUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that queries used by plugins don't scan whole tables
+ */
+public class DatabaseIndexTest {
+    private static final String URL = "jdbc:sqlite:file:indextest?mode=memory&cache=shared";
+
+    private Connection keepAlive;
+    private JdbcConnectionSource connectionSource;
+
+    public DatabaseIndexTest() {
+        super();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // in memory database lives while a connection is open
+        keepAlive = DriverManager.getConnection(URL);
+        connectionSource = new JdbcConnectionSource(URL);
+        TableUtils.createTableIfNotExists(connectionSource, TempBasal.class);
+        TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
+        TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
+        TableUtils.createTableIfNotExists(connectionSource, DanaRHistoryRecord.class);
+        Statement statement = keepAlive.createStatement();
+        for (String index : DatabaseHelper.INDEXES)
+            statement.execute(index);
+        statement.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DaoManager.clearCache();
+        connectionSource.close();
+        keepAlive.close();
+    }
+
+    private String plan(QueryBuilder<?, ?> queryBuilder) throws Exception {
+        Statement statement = keepAlive.createStatement();
+        ResultSet resultSet = statement.executeQuery("EXPLAIN QUERY PLAN " + queryBuilder.prepareStatementString());
+        StringBuilder plan = new StringBuilder();
+        while (resultSet.next())
+            plan.append(resultSet.getString("detail")).append("\n");
+        statement.close();
+        return plan.toString();
+    }
+
+    private static void assertUsesIndex(String plan, String index) {
+        assertTrue(plan, plan.contains(index));
+        assertFalse(plan, plan.matches("(?s).*SCAN (TABLE )?\\S+\\s*\n.*"));
+    }
+
+    @Test
+    public void tempBasalsWindowTest() throws Exception {
+        Dao<TempBasal, Long> dao = DaoManager.createDao(connectionSource, TempBasal.class);
+        // TempBasalsPlugin.loadWindow
+        QueryBuilder<TempBasal, Long> queryBuilder = dao.queryBuilder();
+        queryBuilder.orderBy("timeIndex", false);
+        queryBuilder.where().eq("isExtended", false).and().ge("timeIndex", 0L);
+        assertUsesIndex(plan(queryBuilder), "TempBasals_isExtended_timeIndex_idx");
+
+        QueryBuilder<TempBasal, Long> queryBuilderBefore = dao.queryBuilder();
+        queryBuilderBefore.orderBy("timeIndex", false);
+        queryBuilderBefore.where().eq("isExtended", true).and().lt("timeIndex", 0L);
+        queryBuilderBefore.limit(1L);
+        assertUsesIndex(plan(queryBuilderBefore), "TempBasals_isExtended_timeIndex_idx");
+    }
+
+    @Test
+    public void treatmentByIdTest() throws Exception {
+        Dao<Treatment, Long> dao = DaoManager.createDao(connectionSource, Treatment.class);
+        // DataService.findById
+        QueryBuilder<Treatment, Long> queryBuilder = dao.queryBuilder();
+        queryBuilder.where().eq("_id", "5844a8bd8a7ba1c03e3d7b5c");
+        queryBuilder.limit(10L);
+        assertUsesIndex(plan(queryBuilder), "Treatments__id_idx");
+    }
+
+    @Test
+    public void timeWindowUsesPrimaryKeyTest() throws Exception {
+        Dao<BgReading, Long> daoBgReadings = DaoManager.createDao(connectionSource, BgReading.class);
+        // DatabaseHelper.getDataFromTime
+        QueryBuilder<BgReading, Long> bgQuery = daoBgReadings.queryBuilder();
+        bgQuery.orderBy("timeIndex", true);
+        bgQuery.where().ge("timeIndex", 0L).and().gt("value", 38);
+        assertUsesIndex(plan(bgQuery), "INDEX");
+
+        Dao<Treatment, Long> daoTreatments = DaoManager.createDao(connectionSource, Treatment.class);
+        // TreatmentsPlugin.initializeData
+        QueryBuilder<Treatment, Long> treatmentQuery = daoTreatments.queryBuilder();
+        treatmentQuery.orderBy("timeIndex", false);
+        treatmentQuery.where().ge("timeIndex", 0L);
+        assertUsesIndex(plan(treatmentQuery), "INDEX");
+    }
+
+    @Test
+    public void danaRHistoryByTypeTest() throws Exception {
+        Dao<DanaRHistoryRecord, String> dao = DaoManager.createDao(connectionSource, DanaRHistoryRecord.class);
+        // DanaRHistoryActivity.loadDataFromDB
+        QueryBuilder<DanaRHistoryRecord, String> queryBuilder = dao.queryBuilder();
+        queryBuilder.orderBy("recordDate", false);
+        queryBuilder.where().eq("recordCode", (byte) 1);
+        queryBuilder.limit(200L);
+        String plan = plan(queryBuilder);
+        assertUsesIndex(plan, "DanaRHistory_recordCode_recordDate_idx");
+        // rows come in index order
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+}
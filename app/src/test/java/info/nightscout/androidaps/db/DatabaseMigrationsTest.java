@@ -0,0 +1,172 @@
+package info.nightscout.androidaps.db;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class DatabaseMigrationsTest {
+    // Tables as created by version 5, must not be changed
+    private static final String[] VERSION_5_SCHEMA = {
+            "CREATE TABLE `TempBasals` (`timeIndex` BIGINT , `timeStart` TIMESTAMP , `timeEnd` TIMESTAMP , `percent` INTEGER , `absolute` DOUBLE PRECISION , `duration` INTEGER , `isExtended` BOOLEAN , `isAbsolute` BOOLEAN , PRIMARY KEY (`timeIndex`) )",
+            "CREATE TABLE `Treatments` (`timeIndex` BIGINT , `_id` VARCHAR , `created_at` TIMESTAMP , `insulin` DOUBLE PRECISION , `carbs` DOUBLE PRECISION , `mealBolus` BOOLEAN , PRIMARY KEY (`timeIndex`) )",
+            "CREATE TABLE `BgReadings` (`timeIndex` BIGINT , `value` DOUBLE PRECISION , `direction` VARCHAR , `raw` DOUBLE PRECISION , `battery_level` INTEGER , PRIMARY KEY (`timeIndex`) )",
+            "CREATE TABLE `DanaRHistory` (`_id` VARCHAR , `recordCode` TINYINT , `bytes` VARCHAR , `recordDate` BIGINT , `recordValue` DOUBLE PRECISION , `bolusType` VARCHAR , `stringRecordValue` VARCHAR , `recordDuration` INTEGER , `recordDailyBasal` DOUBLE PRECISION , `recordDailyBolus` DOUBLE PRECISION , `recordAlarm` VARCHAR , PRIMARY KEY (`bytes`) )",
+    };
+
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final List<JdbcConnectionSource> connectionSources = new ArrayList<JdbcConnectionSource>();
+    private int databaseCount = 0;
+
+    public DatabaseMigrationsTest() {
+        super();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DaoManager.clearCache();
+        for (JdbcConnectionSource connectionSource : connectionSources)
+            connectionSource.close();
+        for (Connection connection : connections)
+            connection.close();
+    }
+
+    // New empty in memory database, kept until tearDown
+    private JdbcConnectionSource database() throws Exception {
+        String url = "jdbc:sqlite:file:migrationtest" + databaseCount++ + "?mode=memory&cache=shared";
+        connections.add(DriverManager.getConnection(url));
+        JdbcConnectionSource connectionSource = new JdbcConnectionSource(url);
+        connectionSources.add(connectionSource);
+        return connectionSource;
+    }
+
+    private static void execute(JdbcConnectionSource connectionSource, String... statements) throws Exception {
+        Connection connection = DriverManager.getConnection(connectionSource.getUrl());
+        Statement statement = connection.createStatement();
+        for (String sql : statements)
+            statement.execute(sql);
+        statement.close();
+        connection.close();
+    }
+
+    // Same as DatabaseHelper.onCreate
+    private static void createLatest(JdbcConnectionSource connectionSource) throws Exception {
+        TableUtils.createTableIfNotExists(connectionSource, TempBasal.class);
+        TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
+        TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
+        TableUtils.createTableIfNotExists(connectionSource, DanaRHistoryRecord.class);
+        execute(connectionSource, DatabaseHelper.INDEXES);
+    }
+
+    // Tables, columns and indexes
+    private static Set<String> schema(JdbcConnectionSource connectionSource) throws Exception {
+        Set<String> schema = new TreeSet<String>();
+        Connection connection = DriverManager.getConnection(connectionSource.getUrl());
+        Statement statement = connection.createStatement();
+        List<String> tables = new ArrayList<String>();
+        ResultSet master = statement.executeQuery("SELECT type, name, tbl_name FROM sqlite_master");
+        while (master.next()) {
+            schema.add(master.getString("type") + " " + master.getString("name") + " on " + master.getString("tbl_name"));
+            if (master.getString("type").equals("table"))
+                tables.add(master.getString("name"));
+        }
+        for (String table : tables) {
+            ResultSet columns = statement.executeQuery("PRAGMA table_info(`" + table + "`)");
+            while (columns.next())
+                schema.add("column " + table + "." + columns.getString("name") + " " + columns.getString("type")
+                        + " notnull=" + columns.getInt("notnull") + " default=" + columns.getString("dflt_value") + " pk=" + columns.getInt("pk"));
+        }
+        for (String table : tables) {
+            ResultSet indexes = statement.executeQuery("PRAGMA index_list(`" + table + "`)");
+            List<String> names = new ArrayList<String>();
+            while (indexes.next())
+                names.add(indexes.getString("name"));
+            for (String index : names) {
+                ResultSet indexColumns = statement.executeQuery("PRAGMA index_info(`" + index + "`)");
+                while (indexColumns.next())
+                    schema.add("index " + index + " " + indexColumns.getInt("seqno") + " " + indexColumns.getString("name"));
+            }
+        }
+        statement.close();
+        connection.close();
+        return schema;
+    }
+
+    @Test
+    public void latestVersionTest() throws Exception {
+        assertEquals(DatabaseHelper.DATABASE_VERSION, DatabaseMigrations.getLatestVersion());
+        assertFalse(DatabaseMigrations.canMigrate(DatabaseMigrations.FIRST_MIGRATABLE_VERSION - 1, DatabaseHelper.DATABASE_VERSION));
+        assertFalse(DatabaseMigrations.canMigrate(DatabaseHelper.DATABASE_VERSION, DatabaseHelper.DATABASE_VERSION + 1));
+    }
+
+    @Test
+    public void migrateFromEveryVersionTest() throws Exception {
+        JdbcConnectionSource fresh = database();
+        createLatest(fresh);
+        Set<String> expected = schema(fresh);
+
+        for (int version = DatabaseMigrations.FIRST_MIGRATABLE_VERSION; version <= DatabaseHelper.DATABASE_VERSION; version++) {
+            // database as created by that version
+            JdbcConnectionSource old = database();
+            execute(old, VERSION_5_SCHEMA);
+            DatabaseMigrations.migrate(old, DatabaseMigrations.FIRST_MIGRATABLE_VERSION, version);
+
+            Dao<BgReading, Long> bgDao = DaoManager.createDao(old, BgReading.class);
+            BgReading bg = new BgReading();
+            bg.timeIndex = 1480000000000L;
+            bg.value = 123;
+            bgDao.create(bg);
+            Dao<Treatment, Long> treatmentDao = DaoManager.createDao(old, Treatment.class);
+            Treatment treatment = new Treatment();
+            treatment.created_at = new Date(1480000000000L);
+            treatment._id = "5844a8bd8a7ba1c03e3d7b5c";
+            treatment.insulin = 1.5d;
+            treatmentDao.create(treatment);
+            Dao<TempBasal, Long> tempBasalDao = DaoManager.createDao(old, TempBasal.class);
+            TempBasal tempBasal = new TempBasal();
+            tempBasal.timeStart = new Date(1480000000000L);
+            tempBasal.duration = 30;
+            tempBasal.absolute = 1d;
+            tempBasal.isAbsolute = true;
+            tempBasalDao.create(tempBasal);
+            DaoManager.clearCache();
+
+            DatabaseMigrations.migrate(old, version, DatabaseHelper.DATABASE_VERSION);
+
+            assertEquals("from version " + version, expected, schema(old));
+            bgDao = DaoManager.createDao(old, BgReading.class);
+            assertEquals(123d, bgDao.queryForId(1480000000000L).value, 0.0001d);
+            treatmentDao = DaoManager.createDao(old, Treatment.class);
+            assertEquals(1.5d, treatmentDao.queryForEq("_id", "5844a8bd8a7ba1c03e3d7b5c").get(0).insulin, 0.0001d);
+            tempBasalDao = DaoManager.createDao(old, TempBasal.class);
+            assertEquals(30, tempBasalDao.queryForId(1480000000000L).duration);
+            DaoManager.clearCache();
+        }
+    }
+
+    @Test
+    public void latestSchemaEqualsEntitiesTest() throws Exception {
+        // catches entity change without migration
+        JdbcConnectionSource fresh = database();
+        createLatest(fresh);
+        JdbcConnectionSource migrated = database();
+        execute(migrated, VERSION_5_SCHEMA);
+        DatabaseMigrations.migrate(migrated, DatabaseMigrations.FIRST_MIGRATABLE_VERSION, DatabaseHelper.DATABASE_VERSION);
+        assertEquals(schema(fresh), schema(migrated));
+    }
+}
@@ -0,0 +1,107 @@
+package info.nightscout.androidaps.db;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import info.nightscout.androidaps.plugins.OpenAPSMA.IobTotal;
+import info.nightscout.utils.Clock;
+
+import static org.junit.Assert.*;
+
+public class TempBasalTest {
+
+    public TempBasalTest() {
+        super();
+    }
+
+    @Test
+    public void continuousMatchesDiscreteTest() throws Exception {
+        Random random = new Random(1);
+        int compared = 0;
+        for (int i = 0; i < 20000; i++) {
+            double dia = 2 + random.nextDouble() * 5;
+            int duration = 1 + random.nextInt(240);
+            double netBasalRate = random.nextDouble() * 6 - 2;
+            long time = (long) (random.nextDouble() * (duration + dia * 60 + 30) * 60 * 1000);
+            int realDuration = (int) Math.min(duration, time / 60 / 1000);
+            if (!TempBasal.isDiscreteExact(realDuration, netBasalRate))
+                continue;
+            compared++;
+
+            IobTotal continuous = new IobTotal();
+            IobTotal discrete = new IobTotal();
+            TempBasal.iobCalcContinuous(continuous, 0, realDuration, time, netBasalRate, dia);
+            TempBasal.iobCalcDiscrete(discrete, 0, realDuration, time, netBasalRate, dia);
+
+            assertEquals(discrete.basaliob, continuous.basaliob, TempBasal.IOB_VERIFY_TOLERANCE);
+            assertEquals(discrete.activity, continuous.activity, 0.001d);
+            assertEquals(discrete.netbasalinsulin, continuous.netbasalinsulin, 2 * TempBasal.IOB_VERIFY_TOLERANCE);
+        }
+        assertTrue(compared > 500);
+    }
+
+    @Test
+    public void discreteExactTest() throws Exception {
+        // 1 U in 20 boluses over 60 min, every 3 min
+        assertTrue(TempBasal.isDiscreteExact(60, 1d));
+        // 1 U in 20 boluses over 30 min, spacing truncated to 1 min
+        assertFalse(TempBasal.isDiscreteExact(30, 2d));
+        // -0.5 U in 50 boluses over 30 min, all at start
+        assertFalse(TempBasal.isDiscreteExact(30, -1d));
+        assertFalse(TempBasal.isDiscreteExact(30, 0d));
+
+        // reference keeps truncated spacing, 20 boluses over first 20 minutes
+        IobTotal continuous = new IobTotal();
+        IobTotal discrete = new IobTotal();
+        TempBasal.iobCalcContinuous(continuous, 0, 30, 30 * 60 * 1000L, 2d, 3d);
+        TempBasal.iobCalcDiscrete(discrete, 0, 30, 30 * 60 * 1000L, 2d, 3d);
+        assertEquals(1d, discrete.netbasalinsulin, 0.00000001d);
+        assertTrue(discrete.basaliob < continuous.basaliob);
+    }
+
+    @Test
+    public void noIobAfterDiaTest() throws Exception {
+        IobTotal result = new IobTotal();
+        TempBasal.iobCalcContinuous(result, 0, 30, (30 + 3 * 60 + 1) * 60 * 1000L, 1d, 3d);
+        assertEquals(0d, result.basaliob, 0.00000001d);
+        assertEquals(0d, result.activity, 0.00000001d);
+        assertEquals(0d, result.netbasalinsulin, 0.00000001d);
+    }
+
+    @Test
+    public void fullyAbsorbedAmountTest() throws Exception {
+        // right after 60 min at 1U/h all delivered insulin is counted
+        IobTotal result = new IobTotal();
+        TempBasal.iobCalcContinuous(result, 0, 60, 60 * 60 * 1000L, 1d, 3d);
+        assertEquals(1d, result.netbasalinsulin, 0.00000001d);
+        assertEquals(1d, result.hightempinsulin, 0.00000001d);
+        assertTrue(result.basaliob > 0.8d && result.basaliob < 1d);
+    }
+
+    @Test
+    public void durationFollowsClockTest() throws Exception {
+        final long[] now = {1480000000000L};
+        Clock.setSource(new Clock.Source() {
+            @Override
+            public long now() {
+                return now[0];
+            }
+        });
+        try {
+            TempBasal t = new TempBasal();
+            t.timeStart = new Date(now[0]);
+            t.duration = 30;
+            now[0] += 10 * 60 * 1000L;
+            assertEquals(10, t.getRealDuration());
+            assertEquals(20, t.getPlannedRemainingMinutes());
+            assertTrue(t.isInProgress());
+            now[0] += 60 * 60 * 1000L;
+            assertEquals(30, t.getRealDuration());
+            assertFalse(t.isInProgress());
+        } finally {
+            Clock.setSource(null);
+        }
+    }
+}
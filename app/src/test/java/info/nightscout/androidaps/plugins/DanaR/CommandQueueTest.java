@@ -0,0 +1,150 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import info.nightscout.androidaps.plugins.DanaR.comm.MessageBase;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+
+    public CommandQueueTest() {
+        super();
+    }
+
+    static MessageBase message(int command) {
+        MessageBase message = new MessageBase();
+        message.SetCommand(command);
+        return message;
+    }
+
+    // Pump answering every request after delay, as receive loop of SerialIOThread does
+    static class Pump implements CommandQueue.Transport {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final long delay;
+        CommandQueue queue;
+        boolean answer = true;
+
+        Pump(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public void write(final MessageBase request) throws IOException {
+            written.add(request.getCommand());
+            if (!answer)
+                return;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    MessageBase message = queue.match(request.getCommand());
+                    assertNotNull(message);
+                    message.received = true;
+                    queue.handled(message);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        Pump pump = new Pump(10);
+        CommandQueue queue = pump.queue = new CommandQueue(pump);
+
+        List<CommandQueue.Request> requests = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 16; i++)
+            requests.add(queue.submit(message(0x3200 + i)));
+        for (CommandQueue.Request request : requests)
+            assertTrue(request.await());
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        // sent in order, one at a time
+        assertEquals(16, pump.written.size());
+        for (int i = 0; i < 16; i++)
+            assertEquals(0x3200 + i, (int) pump.written.get(i));
+        // gap follows response time instead of fixed 200 ms
+        assertTrue(queue.getGap() < CommandQueue.MAX_GAP);
+        assertEquals(1, queue.getLatency(0x3200).getCount());
+        assertNull(queue.getLatency(0x0101));
+        assertTrue(millis < 16 * (10 + 200));
+        assertTrue(queue.getStats().startsWith("requests=16 timeouts=0"));
+
+        // frame not belonging to any request goes to hash table
+        assertNull(queue.match(0x0202));
+        // follow-up frames of last request are still routed to it
+        assertSame(requests.get(15).message, queue.match(0x320F));
+
+        queue.shutdown();
+        pump.executor.shutdown();
+    }
+
+    @Test
+    public void shutdownTest() throws Exception {
+        Pump pump = new Pump(10);
+        pump.answer = false;
+        CommandQueue queue = pump.queue = new CommandQueue(pump);
+
+        CommandQueue.Request first = queue.submit(message(0x0205));
+        CommandQueue.Request second = queue.submit(message(0x0207));
+        CommandQueue.Request third = queue.submit(message(0x020A));
+        assertTrue(third.cancel(false));
+        Thread.sleep(50);
+        assertFalse(first.isDone());
+        assertFalse(first.cancel(false)); // already written
+
+        // waiting callers are released on disconnect
+        queue.shutdown();
+        assertFalse(first.await());
+        assertFalse(second.await());
+        assertTrue(third.isCancelled());
+        assertFalse(queue.submit(message(0x0205)).await());
+        assertEquals(1, pump.written.size());
+        pump.executor.shutdown();
+    }
+
+    @Test
+    public void shutdownDuringGapTest() throws Exception {
+        Pump pump = new Pump(1);
+        CommandQueue queue = pump.queue = new CommandQueue(pump);
+
+        assertTrue(queue.submit(message(0x0205)).await());
+        // taken by writer, waiting for gap after first reply
+        CommandQueue.Request second = queue.submit(message(0x0207));
+        Thread.sleep(5);
+        queue.shutdown();
+        // throws TimeoutException if request was lost
+        second.get(1000, TimeUnit.MILLISECONDS);
+        assertTrue(second.isDone());
+        pump.executor.shutdown();
+    }
+
+    @Test
+    public void histogramTest() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(1, LatencyHistogram.bucket(1));
+        assertEquals(2, LatencyHistogram.bucket(3));
+        assertEquals(3, LatencyHistogram.bucket(4));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(1000000));
+
+        for (int i = 0; i < 90; i++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(40));
+        for (int i = 0; i < 10; i++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(100, histogram.getCount());
+        assertEquals(64, histogram.percentile(50));
+        assertEquals(1024, histogram.percentile(95));
+        assertEquals(900, histogram.getMaxMillis());
+        assertEquals(126, histogram.getAverageMillis());
+    }
+}
@@ -0,0 +1,394 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import info.nightscout.utils.CRC;
+
+/**
+ * DanaR pump emulator on in-memory streams instead of RFCOMM
+ *
+ * Answers status, temp basal start/stop, bolus (with progress frames and stop frame at the end)
+ * and history requests (records followed by history done) with frames in pump format.
+ * Latency before each reply, probability of damaged reply and dropping link after some requests
+ * can be set. Pump state survives reconnection, connect() gives new link for SerialIOThread.
+ */
+public class DanaRPumpEmulator {
+
+    // Blocking byte stream of one direction of the link
+    static class Pipe {
+        private final byte[] data = new byte[64 * 1024];
+        private int readPos = 0; // absolute positions
+        private int writePos = 0;
+        private boolean closed = false;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (Pipe.this) {
+                    while (readPos == writePos && !closed)
+                        waitPipe();
+                    if (readPos == writePos)
+                        return -1;
+                    int count = Math.min(len, writePos - readPos);
+                    for (int i = 0; i < count; i++)
+                        b[off + i] = data[(readPos++) % data.length];
+                    Pipe.this.notifyAll();
+                    return count;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return writePos - readPos;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (Pipe.this) {
+                    for (int i = 0; i < len; i++) {
+                        while (writePos - readPos == data.length && !closed)
+                            waitPipe();
+                        if (closed)
+                            throw new IOException("bt socket closed");
+                        data[(writePos++) % data.length] = b[off + i];
+                    }
+                    Pipe.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private void waitPipe() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+    public class Link implements SerialLink {
+        final Pipe toPump = new Pipe();
+        final Pipe toHost = new Pipe();
+
+        @Override
+        public InputStream getInputStream() {
+            return toHost.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return toPump.output;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !toPump.isClosed() && !toHost.isClosed();
+        }
+
+        @Override
+        public void close() {
+            toPump.close();
+            toHost.close();
+        }
+    }
+
+    // pump state, changed only by pump thread
+    public volatile double reservoir = 150d;
+    public volatile int battery = 80;
+    public volatile double dailyTotal = 0d;
+    public volatile double currentBasal = 0.8d;
+    public volatile boolean tempBasalInProgress = false;
+    public volatile int tempBasalPercent = 100;
+    public volatile int tempBasalHours = 0;
+    private long tempBasalStart = 0;
+    public volatile double bolusRemaining = 0d;
+    public volatile double lastBolus = 0d;
+    private Date lastBolusTime = new Date();
+
+    // behaviour
+    public volatile boolean korean = false; // DanaR Korean status layout
+    public volatile long latency = 0; // ms before each reply
+    public volatile double corruption = 0d; // probability of damaged reply
+    public volatile int disconnectAfter = -1; // requests on link, -1 never
+    public volatile int historyRecords = 20;
+    public volatile long bolusStepMs = 10; // 0.1 U delivered per step
+    private final Random random;
+
+    // metrics
+    public volatile int connections = 0;
+    public volatile int requests = 0;
+    public volatile int framesSent = 0;
+    public volatile int corrupted = 0;
+    public final List<Integer> commands = Collections.synchronizedList(new ArrayList<Integer>());
+
+    public DanaRPumpEmulator(long seed) {
+        random = new Random(seed);
+    }
+
+    public Link connect() {
+        final Link link = new Link();
+        connections++;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(link);
+            }
+        }, DanaRPumpEmulator.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+        return link;
+    }
+
+    private void serve(Link link) {
+        SerialFrameBuffer buffer = new SerialFrameBuffer();
+        int linkRequests = 0;
+        try {
+            while (true) {
+                // bolus is delivered while host is not talking
+                if (bolusRemaining > 0 && link.toPump.input.available() == 0) {
+                    Thread.sleep(bolusStepMs);
+                    deliverBolusStep(link);
+                    continue;
+                }
+                if (buffer.fill(link.toPump.input) < 0)
+                    break;
+                int status;
+                while ((status = buffer.checkFrame()) != SerialFrameBuffer.INCOMPLETE) {
+                    if (status != SerialFrameBuffer.OK) {
+                        buffer.recover(status);
+                        continue;
+                    }
+                    int command = buffer.getCommand();
+                    byte[] frame = buffer.takeFrame();
+                    requests++;
+                    commands.add(command);
+                    if (disconnectAfter >= 0 && ++linkRequests > disconnectAfter) {
+                        link.close();
+                        return;
+                    }
+                    if (latency > 0)
+                        Thread.sleep(latency);
+                    handle(link, command, frame);
+                }
+            }
+        } catch (IOException e) {
+            // link closed
+        } catch (InterruptedException e) {
+            // stopped
+        }
+        link.close();
+    }
+
+    private void handle(Link link, int command, byte[] frame) throws IOException, InterruptedException {
+        switch (command) {
+            case 0x020A: { // MsgStatusBasic
+                send(link, command, korean ? statusBasicKorean() : statusBasic());
+                break;
+            }
+            case 0x020B: { // MsgStatus
+                byte[] data = new byte[17];
+                put3(data, 0, (int) Math.round(dailyTotal * 750));
+                putDateTime(data, 8, lastBolusTime);
+                put2(data, 13, (int) Math.round(lastBolus * 100));
+                send(link, command, data);
+                break;
+            }
+            case 0x0205: { // MsgStatusTempBasal
+                byte[] data = new byte[6];
+                data[0] = (byte) (tempBasalInProgress ? 1 : 0);
+                data[1] = (byte) tempBasalPercent;
+                data[2] = (byte) tempBasalHours;
+                put3(data, 3, tempBasalInProgress ? (int) ((System.currentTimeMillis() - tempBasalStart) / 1000) : 0);
+                send(link, command, data);
+                break;
+            }
+            case 0x0207: // MsgStatusBolusExtended, never running
+                send(link, command, new byte[7]);
+                break;
+            case 0x0401: // MsgSetTempBasalStart
+                tempBasalPercent = frame[6] & 0xFF;
+                tempBasalHours = frame[7] & 0xFF;
+                tempBasalInProgress = true;
+                tempBasalStart = System.currentTimeMillis();
+                send(link, command, new byte[]{1});
+                break;
+            case 0x0403: // MsgSetTempBasalStop
+                tempBasalInProgress = false;
+                tempBasalPercent = 100;
+                send(link, command, new byte[]{1});
+                break;
+            case 0x0102: { // MsgBolusStart
+                double amount = (((frame[6] & 0xFF) << 8) | (frame[7] & 0xFF)) / 100d;
+                boolean accepted = bolusRemaining == 0 && amount > 0 && amount <= reservoir;
+                send(link, command, new byte[]{(byte) (accepted ? 2 : 0)});
+                if (accepted) {
+                    bolusRemaining = amount;
+                    lastBolus = amount;
+                    lastBolusTime = new Date();
+                }
+                break;
+            }
+            case 0x0101: // MsgBolusStop requested by user
+                bolusRemaining = 0;
+                send(link, command, new byte[]{1});
+                break;
+            case 0x3101: // history
+            case 0x3102:
+            case 0x3104:
+            case 0x3105:
+            case 0x3106:
+            case 0x3107:
+            case 0x3108:
+            case 0x3109:
+            case 0x310A:
+                sendHistory(link, command);
+                break;
+            default: // MsgPCCommStart, MsgPCCommStop, settings ...
+                send(link, command, new byte[]{0});
+                break;
+        }
+    }
+
+    private byte[] statusBasic() {
+        byte[] data = new byte[21];
+        data[1] = 1;
+        put3(data, 2, (int) Math.round(dailyTotal * 750));
+        put2(data, 5, 40 * 100);
+        put3(data, 7, (int) Math.round(reservoir * 750));
+        put2(data, 11, (int) Math.round(currentBasal * 100));
+        data[13] = (byte) (tempBasalInProgress ? tempBasalPercent : 100);
+        data[15] = (byte) (tempBasalInProgress ? 1 : 0);
+        data[20] = (byte) battery;
+        return data;
+    }
+
+    private byte[] statusBasicKorean() {
+        byte[] data = new byte[11];
+        put2(data, 0, (int) Math.round(currentBasal * 100));
+        data[2] = (byte) battery;
+        put3(data, 3, (int) Math.round(reservoir * 750));
+        put3(data, 6, (int) Math.round(dailyTotal * 750));
+        put2(data, 9, 40 * 100);
+        return data;
+    }
+
+    private void deliverBolusStep(Link link) throws IOException {
+        double step = Math.min(0.1d, bolusRemaining);
+        bolusRemaining = Math.max(0d, Math.round((bolusRemaining - step) * 100) / 100d);
+        reservoir -= step;
+        dailyTotal += step;
+        byte[] progress = new byte[2];
+        put2(progress, 0, (int) Math.round(bolusRemaining * 100));
+        send(link, 0x0202, progress); // MsgBolusProgress
+        if (bolusRemaining == 0)
+            send(link, 0x0101, new byte[]{0}); // MsgBolusStop
+    }
+
+    private void sendHistory(Link link, int command) throws IOException {
+        Date date = new Date(System.currentTimeMillis() - historyRecords * 60 * 60 * 1000L);
+        for (int i = 0; i < historyRecords; i++) {
+            byte[] record = new byte[10];
+            record[0] = (byte) (command & 0xFF);
+            putDateTime(record, 1, new Date(date.getTime() + i * 60 * 60 * 1000L));
+            put2(record, 8, random.nextInt(500));
+            send(link, command, record);
+        }
+        send(link, 0x31F1, new byte[]{0}); // MsgHistoryDone
+    }
+
+    // MessageBase.intFromBuff reads 2 byte values big endian, 3 byte values little endian
+    static void put2(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8 & 0xFF);
+        data[offset + 1] = (byte) (value & 0xFF);
+    }
+
+    static void put3(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value & 0xFF);
+        data[offset + 1] = (byte) (value >> 8 & 0xFF);
+        data[offset + 2] = (byte) (value >> 16 & 0xFF);
+    }
+
+    static void putDateTime(byte[] data, int offset, Date date) {
+        data[offset] = (byte) (date.getYear() - 100);
+        data[offset + 1] = (byte) (date.getMonth() + 1);
+        data[offset + 2] = (byte) date.getDate();
+        data[offset + 3] = (byte) date.getHours();
+        data[offset + 4] = (byte) date.getMinutes();
+    }
+
+    static byte[] frame(int command, byte[] data) {
+        int length = data.length + 3;
+        byte[] frame = new byte[length + 7];
+        frame[0] = (byte) 0x7E;
+        frame[1] = (byte) 0x7E;
+        frame[2] = (byte) length;
+        frame[3] = (byte) 0xF1;
+        frame[4] = (byte) (command >> 8 & 0xFF);
+        frame[5] = (byte) (command & 0xFF);
+        System.arraycopy(data, 0, frame, 6, data.length);
+        short crc = CRC.getCrc16(frame, 3, length);
+        frame[length + 3] = (byte) (crc >> 8 & 0xFF);
+        frame[length + 4] = (byte) (crc & 0xFF);
+        frame[length + 5] = (byte) 0x2E;
+        frame[length + 6] = (byte) 0x2E;
+        return frame;
+    }
+
+    private void send(Link link, int command, byte[] data) throws IOException {
+        byte[] frame = frame(command, data);
+        if (corruption > 0 && random.nextDouble() < corruption) {
+            corrupted++;
+            if (random.nextBoolean()) {
+                // damaged byte in payload or crc
+                frame[6 + random.nextInt(frame.length - 8)] ^= (byte) (1 + random.nextInt(255));
+            } else {
+                // line noise before frame
+                link.toHost.output.write(new byte[]{0x11, (byte) 0x7E, 0x22});
+            }
+        }
+        link.toHost.output.write(frame);
+        framesSent++;
+    }
+}
@@ -0,0 +1,241 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import android.content.res.Resources;
+
+import com.squareup.otto.Subscribe;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import info.nightscout.androidaps.MainApp;
+import info.nightscout.androidaps.db.Treatment;
+import info.nightscout.androidaps.plugins.ConfigBuilder.ConfigBuilderPlugin;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgBolusProgress;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgBolusStart;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgBolusStop;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgHistoryBolus;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgHistoryDone;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgPCCommStart;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgSetTempBasalStart;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgStatus;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgStatusBasic;
+import info.nightscout.androidaps.plugins.Overview.events.EventOverviewBolusProgress;
+import info.nightscout.utils.EventDispatcher;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Mockito.anyDouble;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DanaRPumpEmulatorTest {
+
+    public DanaRPumpEmulatorTest() {
+        super();
+    }
+
+    // Bolus decoders read strings and post to bus, set what MainApp.onCreate would
+    @BeforeClass
+    public static void setUpApp() throws Exception {
+        Resources resources = mock(Resources.class);
+        when(resources.getString(anyInt())).thenReturn("%.2f");
+        ConfigBuilderPlugin configBuilder = mock(ConfigBuilderPlugin.class);
+        when(configBuilder.applyBolusConstraints(anyDouble())).thenAnswer(returnsFirstArg());
+        MainApp.sResources = resources;
+        setAppField("sBus", new EventDispatcher());
+        setAppField("sConfigBuilder", configBuilder);
+    }
+
+    static void setAppField(String name, Object value) throws Exception {
+        Field field = MainApp.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    public static class ProgressReceiver {
+        public volatile int posted = 0;
+
+        @Subscribe
+        public void onStatusEvent(EventOverviewBolusProgress ev) {
+            posted++;
+        }
+    }
+
+    static void waitUntilStopped(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!MsgBolusStop.stopped && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+    }
+
+    @Test
+    public void commandsTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(1);
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+        DanaRPump danaRPump = DanaRPlugin.getDanaRPump();
+
+        MsgStatusBasic status = new MsgStatusBasic();
+        thread.sendMessage(status);
+        assertTrue(status.received);
+        assertEquals(150d, danaRPump.reservoirRemainingUnits, 0.01d);
+        assertEquals(80, danaRPump.batteryRemaining);
+        assertFalse(danaRPump.isTempBasalInProgress);
+
+        MsgSetTempBasalStart setTemp = new MsgSetTempBasalStart(150, 2);
+        thread.sendMessage(setTemp);
+        assertTrue(setTemp.received);
+        assertFalse(setTemp.failed);
+        thread.sendMessage(new MsgStatusBasic());
+        assertTrue(danaRPump.isTempBasalInProgress);
+        assertEquals(150, danaRPump.tempBasalPercent);
+        // message not known to pump is answered too
+        MsgPCCommStart commStart = new MsgPCCommStart();
+        thread.sendMessage(commStart);
+        assertTrue(commStart.received);
+
+        // history done is not reply to request, it is created from MessageHashTable
+        pump.historyRecords = 0;
+        MsgHistoryDone.received = false;
+        thread.sendMessageAsync(new MsgHistoryBolus());
+        for (int i = 0; i < 100 && !MsgHistoryDone.received; i++)
+            Thread.sleep(10);
+        assertTrue(MsgHistoryDone.received);
+
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void bolusTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(2);
+        pump.bolusStepMs = 50; // longer than initial gap, second request comes during delivery
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+        ProgressReceiver receiver = new ProgressReceiver();
+        MainApp.bus().register(receiver);
+
+        // as ExecutionService.bolus
+        Treatment t = new Treatment();
+        MsgBolusStart start = new MsgBolusStart(1.0d);
+        new MsgBolusProgress(1.0d, t); // initialize static variables
+        new MsgBolusStop(1.0d, t);
+        thread.sendMessage(start);
+        assertTrue(start.received);
+        assertFalse(start.failed);
+        // second bolus refused while delivering
+        MsgBolusStart refused = new MsgBolusStart(0.5d);
+        thread.sendMessage(refused);
+        assertTrue(refused.failed);
+
+        waitUntilStopped(2000);
+        assertTrue(MsgBolusStop.stopped);
+        assertFalse(MsgBolusStop.forced);
+        assertEquals(1.0d, t.insulin, 0.001d);
+        // 10 progress frames and stop frame
+        assertEquals(11, receiver.posted);
+        assertEquals(149d, pump.reservoir, 0.001d);
+
+        // bolus stopped by user, as ExecutionService.bolusStop
+        pump.bolusStepMs = 20;
+        Treatment stopped = new Treatment();
+        MsgBolusStart second = new MsgBolusStart(5.0d);
+        new MsgBolusProgress(5.0d, stopped);
+        new MsgBolusStop(5.0d, stopped);
+        thread.sendMessage(second);
+        assertFalse(second.failed);
+        Thread.sleep(100);
+        MsgBolusStop stop = new MsgBolusStop();
+        MsgBolusStop.forced = true;
+        thread.sendMessage(stop);
+        assertTrue(MsgBolusStop.stopped);
+        assertEquals(0d, pump.bolusRemaining, 0.001d);
+        assertTrue(stopped.insulin > 0d && stopped.insulin < 5d);
+        assertTrue(pump.reservoir > 144d);
+
+        MainApp.bus().unregister(receiver);
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void corruptionTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(3);
+        pump.corruption = 0.1d;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+        thread.getQueue().setReplyTimeout(100);
+
+        int received = 0;
+        for (int i = 0; i < 200; i++) {
+            MsgStatusBasic status = new MsgStatusBasic();
+            thread.sendMessage(status);
+            if (status.received)
+                received++;
+        }
+        // damaged replies are dropped without losing connection
+        assertTrue(thread.isAlive());
+        assertTrue(pump.corrupted > 0);
+        assertTrue(received >= 200 - pump.corrupted);
+        // every request reached the pump, only replies were damaged
+        assertEquals(200, pump.requests);
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void reconnectionTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(4);
+        pump.disconnectAfter = 3;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+
+        thread.sendMessage(new MsgSetTempBasalStart(50, 1));
+        thread.sendMessage(new MsgStatusBasic());
+        thread.sendMessage(new MsgStatusBasic());
+        // link dropped by pump, queued requests are released
+        CommandQueue.Request lost = thread.sendMessageAsync(new MsgStatusBasic());
+        CommandQueue.Request queued = thread.sendMessageAsync(new MsgStatusBasic());
+        assertFalse(lost.await());
+        assertFalse(queued.await());
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        // closed link is not used any more
+        assertFalse(thread.sendMessageAsync(new MsgStatusBasic()).await());
+
+        // state kept by pump over reconnection
+        long start = System.nanoTime();
+        thread = new SerialIOThread(pump.connect(), 5);
+        MsgStatusBasic status = new MsgStatusBasic();
+        thread.sendMessage(status);
+        assertTrue(status.received);
+        // first request waits at most one full gap
+        assertTrue((System.nanoTime() - start) / 1000000 < CommandQueue.MAX_GAP + 500);
+        assertEquals(50, DanaRPlugin.getDanaRPump().tempBasalPercent);
+        assertEquals(2, pump.connections);
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void throughputBenchmark() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(5);
+        pump.latency = 5;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+
+        // status refresh as in getPumpStatus, batch queued at once
+        int refreshes = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < refreshes; i++) {
+            thread.sendMessageAsync(new MsgStatus());
+            thread.sendMessageAsync(new MsgStatusBasic());
+            thread.sendMessageAsync(new MsgStatus());
+            thread.sendMessageAsync(new MsgStatusBasic());
+            MsgStatusBasic last = new MsgStatusBasic();
+            thread.sendMessage(last);
+            assertTrue(last.received);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        int commands = refreshes * 5;
+        assertEquals(commands, pump.requests);
+        assertTrue(thread.getQueue().getStats().contains("timeouts=0"));
+        assertEquals(refreshes * 3, thread.getQueue().getLatency(0x020A).getCount());
+        // fixed 200 ms sleeps between requests would be at least 4 times slower
+        assertTrue(millis * 4 < commands * (200 + pump.latency));
+        thread.disconnect("test");
+    }
+}
@@ -0,0 +1,308 @@
+package info.nightscout.androidaps.plugins.DanaR;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import info.nightscout.utils.CRC;
+
+import static org.junit.Assert.*;
+
+public class SerialFrameBufferTest {
+
+    public SerialFrameBufferTest() {
+        super();
+    }
+
+    static byte[] frame(int command, byte[] data) {
+        int length = data.length + 3;
+        byte[] frame = new byte[length + 7];
+        frame[0] = (byte) 0x7E;
+        frame[1] = (byte) 0x7E;
+        frame[2] = (byte) length;
+        frame[3] = (byte) 0xF1;
+        frame[4] = (byte) (command >> 8 & 0xFF);
+        frame[5] = (byte) (command & 0xFF);
+        System.arraycopy(data, 0, frame, 6, data.length);
+        short crc = CRC.getCrc16(frame, 3, length);
+        frame[length + 3] = (byte) (crc >> 8 & 0xFF);
+        frame[length + 4] = (byte) (crc & 0xFF);
+        frame[length + 5] = (byte) 0x2E;
+        frame[length + 6] = (byte) 0x2E;
+        return frame;
+    }
+
+    // history download like MsgHistoryAll records
+    static byte[] historyDump(int records, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < records; i++) {
+            byte[] data = new byte[random.nextInt(4) == 0 ? 3 + random.nextInt(60) : 10];
+            random.nextBytes(data);
+            byte[] frame = frame(0x41F2, data);
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    // returns at most chunk bytes per read like bluetooth socket
+    static class ChunkedInputStream extends InputStream {
+        final byte[] data;
+        final Random random;
+        final int maxChunk;
+        int position = 0;
+
+        ChunkedInputStream(byte[] data, Random random, int maxChunk) {
+            this.data = data;
+            this.random = random;
+            this.maxChunk = maxChunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return position < data.length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= data.length)
+                return -1;
+            int count = Math.min(Math.min(length, 1 + random.nextInt(maxChunk)), data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return data.length - position;
+        }
+    }
+
+    @Test
+    public void framingTest() throws Exception {
+        Random random = new Random(1);
+        byte[] dump = historyDump(500, random);
+        ByteArrayInputStream expected = new ByteArrayInputStream(dump);
+        SerialFrameBuffer buffer = new SerialFrameBuffer(1024);
+        InputStream stream = new ChunkedInputStream(dump, random, 300);
+        int frames = 0;
+        while (buffer.fill(stream) >= 0) {
+            int status;
+            while ((status = buffer.checkFrame()) == SerialFrameBuffer.OK) {
+                assertEquals(0x41F2, buffer.getCommand());
+                int length = buffer.getFrameLength();
+                byte[] frame = buffer.takeFrame();
+                assertEquals(length, frame.length);
+                byte[] original = new byte[length];
+                assertEquals(length, expected.read(original));
+                assertArrayEquals(original, frame);
+                frames++;
+            }
+            assertEquals(SerialFrameBuffer.INCOMPLETE, status);
+        }
+        assertEquals(500, frames);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void errorsTest() throws Exception {
+        SerialFrameBuffer buffer = new SerialFrameBuffer();
+        byte[] frame = frame(0x0301, new byte[]{1, 2, 3});
+
+        buffer.append(frame, 0, 5);
+        assertEquals(SerialFrameBuffer.INCOMPLETE, buffer.checkFrame());
+        buffer.append(frame, 5, frame.length - 5);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+        assertEquals(0x0301, buffer.getCommand());
+        assertSame(buffer.takeFrame(), frame(buffer, frame));
+
+        byte[] wrong = frame.clone();
+        wrong[7]++;
+        buffer.append(wrong, 0, wrong.length);
+        assertEquals(SerialFrameBuffer.WRONG_CRC, buffer.checkFrame());
+        buffer.clear();
+
+        wrong = frame.clone();
+        wrong[wrong.length - 1] = 0;
+        buffer.append(wrong, 0, wrong.length);
+        assertEquals(SerialFrameBuffer.WRONG_END, buffer.checkFrame());
+        buffer.clear();
+
+        buffer.append(frame, 1, frame.length - 1);
+        assertEquals(SerialFrameBuffer.WRONG_START, buffer.checkFrame());
+        buffer.skip(frame.length - 1);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void resyncTest() throws Exception {
+        SerialFrameBuffer buffer = new SerialFrameBuffer();
+        buffer.setErrorBudget(2);
+        byte[] first = frame(0x0301, new byte[]{1, 2, 3});
+        byte[] second = frame(0x0302, new byte[]{4, 5});
+        byte[] damaged = first.clone();
+        damaged[6]++;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{0x11, 0x7E, 0x22, 0x7E}, 0, 4); // garbage
+        out.write(first, 0, first.length);
+        out.write(damaged, 0, damaged.length);
+        out.write(second, 0, second.length);
+        byte[] data = out.toByteArray();
+        buffer.append(data, 0, data.length);
+
+        int status;
+        int frames = 0;
+        boolean connected = true;
+        while ((status = buffer.checkFrame()) != SerialFrameBuffer.INCOMPLETE) {
+            if (status == SerialFrameBuffer.OK) {
+                buffer.takeFrame();
+                frames++;
+            } else {
+                connected &= buffer.recover(status);
+            }
+        }
+        assertTrue(connected);
+        assertEquals(2, frames);
+        assertEquals(0, buffer.size());
+        assertEquals(1, buffer.getCrcErrors());
+        assertEquals(1, buffer.getFramingErrors());
+        assertEquals(4 + damaged.length, buffer.getDroppedBytes());
+
+        // errors without valid frame between them exhaust budget
+        buffer.append(damaged, 0, damaged.length);
+        buffer.append(damaged, 0, damaged.length);
+        assertTrue(buffer.recover(buffer.checkFrame()));
+        assertTrue(buffer.recover(buffer.checkFrame()));
+        buffer.append(damaged, 0, damaged.length);
+        assertFalse(buffer.recover(buffer.checkFrame()));
+
+        // 7E at the end is kept as possible beginning of preamble
+        buffer.clear();
+        buffer.append(new byte[]{0x01, 0x02, 0x7E}, 0, 3);
+        assertEquals(SerialFrameBuffer.WRONG_START, buffer.checkFrame());
+        buffer.recover(SerialFrameBuffer.WRONG_START);
+        assertEquals(1, buffer.size());
+        buffer.append(first, 1, first.length - 1);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+    }
+
+    @Test
+    public void resyncLengthByte7ETest() throws Exception {
+        // 123 bytes of data, length byte is 0x7E
+        byte[] data = new byte[123];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        byte[] frame = frame(0x3101, data);
+        assertEquals((byte) 0x7E, frame[2]);
+
+        // garbage before frame
+        SerialFrameBuffer buffer = new SerialFrameBuffer();
+        buffer.append(new byte[]{0x11, 0x22}, 0, 2);
+        buffer.append(frame, 0, frame.length);
+        assertEquals(SerialFrameBuffer.WRONG_START, buffer.checkFrame());
+        buffer.recover(SerialFrameBuffer.WRONG_START);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+        assertArrayEquals(frame, buffer.takeFrame());
+
+        // stray 7E before frame is still dropped
+        buffer.append(new byte[]{0x11, 0x7E}, 0, 2);
+        buffer.append(frame, 0, frame.length);
+        assertEquals(SerialFrameBuffer.WRONG_START, buffer.checkFrame());
+        buffer.recover(SerialFrameBuffer.WRONG_START);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+        assertArrayEquals(frame, buffer.takeFrame());
+
+        // frame not received completely yet is kept
+        buffer.append(new byte[]{0x11, 0x22}, 0, 2);
+        buffer.append(frame, 0, 10);
+        buffer.recover(buffer.checkFrame());
+        assertEquals(SerialFrameBuffer.INCOMPLETE, buffer.checkFrame());
+        buffer.append(frame, 10, frame.length - 10);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+        assertArrayEquals(frame, buffer.takeFrame());
+        assertEquals(3, buffer.getFramingErrors());
+        assertEquals(0, buffer.size());
+    }
+
+    // frames of the same length come in the same array
+    private static byte[] frame(SerialFrameBuffer buffer, byte[] frame) {
+        buffer.append(frame, 0, frame.length);
+        assertEquals(SerialFrameBuffer.OK, buffer.checkFrame());
+        return buffer.takeFrame();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // previous SerialIOThread receive path
+    private static int legacy(InputStream stream) throws IOException {
+        byte[] readBuff = new byte[0];
+        int frames = 0;
+        while (true) {
+            byte[] newData = new byte[Math.max(1024, stream.available())];
+            int gotBytes = stream.read(newData);
+            if (gotBytes < 0)
+                return frames;
+            byte[] newReadBuff = new byte[readBuff.length + gotBytes];
+            System.arraycopy(readBuff, 0, newReadBuff, 0, readBuff.length);
+            System.arraycopy(newData, 0, newReadBuff, readBuff.length, gotBytes);
+            readBuff = newReadBuff;
+            while (readBuff.length > 3) {
+                int length = (readBuff[2] & 0xFF) + 7;
+                if (readBuff.length < length)
+                    break;
+                CRC.getCrc16(readBuff, 3, length - 7);
+                byte[] extractedBuff = new byte[length];
+                System.arraycopy(readBuff, 0, extractedBuff, 0, length);
+                byte[] unprocessedData = new byte[readBuff.length - length];
+                System.arraycopy(readBuff, length, unprocessedData, 0, unprocessedData.length);
+                readBuff = unprocessedData;
+                frames++;
+            }
+        }
+    }
+
+    private static int ring(SerialFrameBuffer buffer, InputStream stream) throws IOException {
+        int frames = 0;
+        while (buffer.fill(stream) >= 0) {
+            while (buffer.checkFrame() == SerialFrameBuffer.OK) {
+                buffer.takeFrame();
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void historyDumpBenchmark() throws Exception {
+        Random random = new Random(2);
+        byte[] dump = historyDump(5000, random);
+        SerialFrameBuffer buffer = new SerialFrameBuffer();
+        // warm up, allocates reused frame arrays
+        ring(buffer, new ChunkedInputStream(dump, new Random(3), 1024));
+        legacy(new ChunkedInputStream(dump, new Random(3), 1024));
+
+        ChunkedInputStream stream = new ChunkedInputStream(dump, new Random(3), 1024);
+        long before = allocatedBytes();
+        assertEquals(5000, ring(buffer, stream));
+        long ringBytes = allocatedBytes() - before;
+
+        stream = new ChunkedInputStream(dump, new Random(3), 1024);
+        before = allocatedBytes();
+        assertEquals(5000, legacy(stream));
+        long legacyBytes = allocatedBytes() - before;
+
+        assertTrue(ringBytes < 16 * 1024);
+        assertTrue(legacyBytes > dump.length);
+        // copying buffer allocates on every frame
+        assertTrue(ringBytes * 100 < legacyBytes);
+    }
+}
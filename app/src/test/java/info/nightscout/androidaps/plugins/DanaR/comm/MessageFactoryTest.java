@@ -0,0 +1,66 @@
+package info.nightscout.androidaps.plugins.DanaR.comm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageFactoryTest {
+
+    public MessageFactoryTest() {
+        super();
+    }
+
+    public static class MsgTest extends MessageBase {
+        public int value = 0;
+
+        public MsgTest() {
+            SetCommand(0x020A);
+        }
+
+        @Override
+        public void handleMessage(byte[] bytes) {
+            value = intFromBuff(bytes, 0, 1);
+        }
+    }
+
+    public static class MsgOther extends MessageBase {
+        public MsgOther() {
+            SetCommand(0xF0F1);
+        }
+    }
+
+    static class MsgHidden extends MessageBase {
+        MsgHidden() {
+            SetCommand(0x0101);
+        }
+    }
+
+    @Test
+    public void createTest() throws Exception {
+        MessageFactory factory = new MessageFactory();
+        factory.register(new MsgTest());
+        factory.register(new MsgOther());
+        factory.register(new MsgHidden()); // refused, can't be created
+        assertEquals(2, factory.size());
+        assertTrue(factory.contains(0x020A));
+        assertTrue(factory.contains(0xF0F1));
+        assertFalse(factory.contains(0x0101));
+        assertFalse(factory.contains(0x020B));
+
+        // every frame gets its own instance
+        MessageBase first = factory.create(0x020A);
+        MessageBase second = factory.create(0x020A);
+        assertTrue(first instanceof MsgTest);
+        assertNotSame(first, second);
+        first.received = true;
+        first.handleMessage(new byte[]{0x7E, 0x7E, 4, (byte) 0xF1, 0x02, 0x0A, 42, 0, 0, 0x2E, 0x2E});
+        assertEquals(42, ((MsgTest) first).value);
+        assertFalse(second.received);
+        assertEquals(0, ((MsgTest) second).value);
+
+        assertTrue(factory.create(0xF0F1) instanceof MsgOther);
+        // unknown command
+        assertEquals(MessageBase.class, factory.create(0x0101).getClass());
+        assertEquals(MessageBase.class, factory.create(0x3333).getClass());
+    }
+}
@@ -0,0 +1,90 @@
+package info.nightscout.androidaps.plugins.DanaRKorean;
+
+import org.junit.Test;
+
+import info.nightscout.androidaps.plugins.DanaR.CommandQueue;
+import info.nightscout.androidaps.plugins.DanaR.DanaRPumpEmulator;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgPCCommStart;
+import info.nightscout.androidaps.plugins.DanaR.comm.MsgSetTempBasalStart;
+import info.nightscout.androidaps.plugins.DanaRKorean.comm.MsgStatusBasic;
+
+import static org.junit.Assert.*;
+
+// Korean copy of SerialIOThread with its own MessageHashTable against the emulator
+public class SerialIOThreadTest {
+
+    public SerialIOThreadTest() {
+        super();
+    }
+
+    @Test
+    public void commandsTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(11);
+        pump.korean = true;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+        DanaRKoreanPump danaRPump = DanaRKoreanPlugin.getDanaRPump();
+
+        MsgStatusBasic status = new MsgStatusBasic();
+        thread.sendMessage(status);
+        assertTrue(status.received);
+        assertEquals(150d, danaRPump.reservoirRemainingUnits, 0.01d);
+        assertEquals(80, danaRPump.batteryRemaining);
+        assertEquals(0.8d, danaRPump.currentBasal, 0.001d);
+
+        MsgSetTempBasalStart setTemp = new MsgSetTempBasalStart(150, 2);
+        thread.sendMessage(setTemp);
+        assertTrue(setTemp.received);
+        assertFalse(setTemp.failed);
+        assertEquals(150, pump.tempBasalPercent);
+        MsgPCCommStart commStart = new MsgPCCommStart();
+        thread.sendMessage(commStart);
+        assertTrue(commStart.received);
+
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void corruptionTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(13);
+        pump.korean = true;
+        pump.corruption = 0.1d;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+        thread.getQueue().setReplyTimeout(100);
+
+        int received = 0;
+        for (int i = 0; i < 100; i++) {
+            MsgStatusBasic status = new MsgStatusBasic();
+            thread.sendMessage(status);
+            if (status.received)
+                received++;
+        }
+        assertTrue(thread.isAlive());
+        assertTrue(pump.corrupted > 0);
+        assertTrue(received >= 100 - pump.corrupted);
+        assertEquals(100, pump.requests);
+        thread.disconnect("test");
+    }
+
+    @Test
+    public void reconnectionTest() throws Exception {
+        DanaRPumpEmulator pump = new DanaRPumpEmulator(14);
+        pump.korean = true;
+        pump.disconnectAfter = 2;
+        SerialIOThread thread = new SerialIOThread(pump.connect(), 5);
+
+        thread.sendMessage(new MsgStatusBasic());
+        thread.sendMessage(new MsgStatusBasic());
+        // link dropped by pump, request is released
+        CommandQueue.Request lost = thread.sendMessageAsync(new MsgStatusBasic());
+        assertFalse(lost.await());
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+
+        thread = new SerialIOThread(pump.connect(), 5);
+        MsgStatusBasic status = new MsgStatusBasic();
+        thread.sendMessage(status);
+        assertTrue(status.received);
+        assertEquals(2, pump.connections);
+        thread.disconnect("test");
+    }
+}
@@ -0,0 +1,63 @@
+package info.nightscout.androidaps.plugins.Loop;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoopSchedulerTest {
+
+    public LoopSchedulerTest() {
+        super();
+    }
+
+    @Test
+    public void coalesceTest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        final AtomicInteger notifications = new AtomicInteger(0);
+        LoopScheduler scheduler = new LoopScheduler(new LoopScheduler.Runner() {
+            @Override
+            public void run(boolean allowNotification) {
+                maxInFlight.set(Math.max(maxInFlight.get(), inFlight.incrementAndGet()));
+                if (allowNotification)
+                    notifications.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                inFlight.decrementAndGet();
+                finished.countDown();
+            }
+        });
+
+        assertTrue(scheduler.trigger(false));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // run in flight, first trigger queues follow-up, others are merged into it
+        assertTrue(scheduler.trigger(false));
+        for (int i = 0; i < 8; i++)
+            assertFalse(scheduler.trigger(i == 3));
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100L);
+
+        assertEquals(2, scheduler.getRuns());
+        assertEquals(8, scheduler.getMerged());
+        assertEquals(1, maxInFlight.get());
+        assertEquals(1, notifications.get());
+        assertTrue(scheduler.getMaxWaitNanos() > 0);
+
+        // direct run on calling thread
+        scheduler.runNow(true);
+        assertEquals(3, scheduler.getRuns());
+        assertEquals(2, notifications.get());
+    }
+}
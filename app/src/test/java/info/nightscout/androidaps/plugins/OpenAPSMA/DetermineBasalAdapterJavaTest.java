@@ -0,0 +1,144 @@
+package info.nightscout.androidaps.plugins.OpenAPSMA;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expected results are outputs of assets/OpenAPSMA/determine-basal.js for the same inputs
+ */
+public class DetermineBasalAdapterJavaTest {
+
+    public DetermineBasalAdapterJavaTest() {
+        super();
+    }
+
+    private void assertSameAsJS(String glucoseStatus, String currentTemp, String iobData, String profile, String mealData, String expected) throws Exception {
+        DetermineBasalAdapterJava adapter = new DetermineBasalAdapterJava();
+        adapter.setData(glucoseStatus, currentTemp, iobData, profile, mealData);
+        DetermineBasalResult result = adapter.invoke();
+        assertNull(DetermineBasalComparator.diff(new JSONObject(expected), result.json));
+    }
+
+    @Test
+    public void inRangeTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":82,\"delta\":13.5,\"avgdelta\":3.16}",
+                "{\"temp\":\"absolute\",\"duration\":16,\"rate\":3.14}",
+                "{\"iob\":-0.9,\"activity\":0.0059,\"bolussnooze\":1.06,\"basaliob\":-0.04,\"netbasalinsulin\":-0.89,\"hightempinsulin\":2.98}",
+                "{\"max_iob\":2.5,\"carbs_hr\":20,\"dia\":2,\"type\":\"current\",\"max_daily_basal\":1.46,\"max_basal\":1.4,\"max_bg\":176,\"min_bg\":114,\"target_bg\":176,\"carb_ratio\":8,\"sens\":42,\"current_basal\":1.16}",
+                "{\"carbs\":0,\"boluses\":4.2}",
+                "{\"temp\":\"absolute\",\"bg\":82,\"tick\":\"+13.5\",\"eventualBG\":133,\"snoozeBG\":200,\"mealAssist\":\"Off: Carbs: 0 Boluses: 4.2 Target: 176 Deviation: 13 BGI: -1.24\",\"reason\":\"133 is in range. No temp required; cancel\",\"duration\":0,\"rate\":0}");
+    }
+
+    @Test
+    public void maxIobTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":327,\"delta\":14.2,\"avgdelta\":-0.46}",
+                "{\"temp\":\"absolute\",\"duration\":15,\"rate\":2.57}",
+                "{\"iob\":1.68,\"activity\":0.0318,\"bolussnooze\":1.16,\"basaliob\":0.47,\"netbasalinsulin\":-0.34,\"hightempinsulin\":1.17}",
+                "{\"max_iob\":0.4,\"carbs_hr\":20,\"dia\":4,\"type\":\"current\",\"max_daily_basal\":1.66,\"max_basal\":2.2,\"max_bg\":115,\"min_bg\":107,\"target_bg\":115,\"carb_ratio\":19,\"sens\":90,\"current_basal\":1.56}",
+                "{\"carbs\":0,\"boluses\":3.2}",
+                "{\"temp\":\"absolute\",\"bg\":327,\"tick\":\"+14.2\",\"eventualBG\":218,\"snoozeBG\":375,\"mealAssist\":\"Off: Carbs: 0 Boluses: 3.2 Target: 115 Deviation: 42 BGI: -14.31\",\"reason\":\"basaliob 0.47 > max_iob 0.4\",\"duration\":0,\"rate\":0}");
+    }
+
+    @Test
+    public void highTempTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":339,\"delta\":10.8,\"avgdelta\":-0.19}",
+                "{\"temp\":\"absolute\",\"duration\":0,\"rate\":1.32}",
+                "{\"iob\":1.84,\"activity\":0.0302,\"bolussnooze\":0.43,\"basaliob\":0.64,\"netbasalinsulin\":0.89,\"hightempinsulin\":0.21}",
+                "{\"max_iob\":2.9,\"carbs_hr\":20,\"dia\":3.8,\"type\":\"current\",\"max_daily_basal\":0.8,\"max_basal\":2.4,\"max_bg\":141,\"min_bg\":90,\"target_bg\":128,\"carb_ratio\":7,\"sens\":65,\"current_basal\":1.63}",
+                "{\"carbs\":41,\"boluses\":1.5}",
+                "{\"temp\":\"absolute\",\"bg\":339,\"tick\":\"+10.8\",\"eventualBG\":248,\"snoozeBG\":290,\"mealAssist\":\"Off: Carbs: 41 Boluses: 1.5 Target: 128 Deviation: 29 BGI: -9.82\",\"reason\":\"Eventual BG 248>=141, adj. req. rate:5.3 to maxSafeBasal:2.4, no temp, setting 2.4U/hr\",\"duration\":30,\"rate\":2.4}");
+    }
+
+    @Test
+    public void bolusSnoozeTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":315,\"delta\":-6,\"avgdelta\":10.61}",
+                "{\"temp\":\"absolute\",\"duration\":0,\"rate\":3.72}",
+                "{\"iob\":4.76,\"activity\":0.0247,\"bolussnooze\":2.01,\"basaliob\":0,\"netbasalinsulin\":0.18,\"hightempinsulin\":1.1}",
+                "{\"max_iob\":2.4,\"carbs_hr\":20,\"dia\":4.5,\"type\":\"current\",\"max_daily_basal\":0.65,\"max_basal\":1.8,\"max_bg\":125,\"min_bg\":91,\"target_bg\":125,\"carb_ratio\":6,\"sens\":62,\"current_basal\":1.4}",
+                "{\"carbs\":24,\"boluses\":3.7}",
+                "{\"temp\":\"absolute\",\"bg\":315,\"tick\":-6,\"eventualBG\":75,\"snoozeBG\":262,\"mealAssist\":\"Off: Carbs: 24 Boluses: 3.7 Target: 125 Deviation: 55 BGI: -7.66\",\"reason\":\"Eventual BG 75<91, bolus snooze: eventual BG range 75-262\"}");
+    }
+
+    @Test
+    public void lowTempTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":98,\"delta\":-8.9,\"avgdelta\":-7.27}",
+                "{\"temp\":\"absolute\",\"duration\":0,\"rate\":3.31}",
+                "{\"iob\":0.81,\"activity\":0.0293,\"bolussnooze\":0.64,\"basaliob\":0,\"netbasalinsulin\":1.6,\"hightempinsulin\":2.01}",
+                "{\"max_iob\":2.6,\"carbs_hr\":20,\"dia\":5.3,\"type\":\"current\",\"max_daily_basal\":0.6,\"max_basal\":1.1,\"max_bg\":116,\"min_bg\":114,\"target_bg\":116,\"carb_ratio\":18,\"sens\":47,\"current_basal\":1.3}",
+                "{\"carbs\":17,\"boluses\":3.5}",
+                "{\"temp\":\"absolute\",\"bg\":98,\"tick\":-8.9,\"eventualBG\":58,\"snoozeBG\":103,\"mealAssist\":\"Off: Carbs: 17 Boluses: 3.5 Target: 116 Deviation: -2 BGI: -6.89\",\"reason\":\"Eventual BG 58<114, setting 0.194U/hr\",\"duration\":30,\"rate\":0.194}");
+    }
+
+    @Test
+    public void currentTempTooHighTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":383,\"delta\":-13,\"avgdelta\":-7.68}",
+                "{\"temp\":\"absolute\",\"duration\":28,\"rate\":3.91}",
+                "{\"iob\":0.94,\"activity\":0.0265,\"bolussnooze\":2.86,\"basaliob\":-0.52,\"netbasalinsulin\":0.84,\"hightempinsulin\":0.87}",
+                "{\"max_iob\":0.5,\"carbs_hr\":20,\"dia\":3.6,\"type\":\"current\",\"max_daily_basal\":1.87,\"max_basal\":2.2,\"max_bg\":143,\"min_bg\":83,\"target_bg\":92,\"carb_ratio\":6,\"sens\":72,\"current_basal\":0.54}",
+                "{\"carbs\":25,\"boluses\":4.3}",
+                "{\"temp\":\"absolute\",\"bg\":383,\"tick\":-13,\"eventualBG\":321,\"snoozeBG\":630,\"mealAssist\":\"Off: Carbs: 25 Boluses: 4.3 Target: 92 Deviation: 6 BGI: -9.54\",\"reason\":\"28m@3.370 = 1.573 > req 0.39+0.2U\",\"duration\":30,\"rate\":1.32}");
+    }
+
+    @Test
+    public void lowGlucoseSuspendTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":41,\"delta\":3,\"avgdelta\":-9.7}",
+                "{\"temp\":\"absolute\",\"duration\":13,\"rate\":2.7}",
+                "{\"iob\":1.5,\"activity\":-0.0025,\"bolussnooze\":2.77,\"basaliob\":1.64,\"netbasalinsulin\":-0.57,\"hightempinsulin\":2.05}",
+                "{\"max_iob\":2.6,\"carbs_hr\":20,\"dia\":4.2,\"type\":\"current\",\"max_daily_basal\":1.84,\"max_basal\":2.8,\"max_bg\":136,\"min_bg\":87,\"target_bg\":127,\"carb_ratio\":10,\"sens\":55,\"current_basal\":0.66}",
+                "{\"carbs\":0,\"boluses\":5.8}",
+                "{\"temp\":\"absolute\",\"bg\":41,\"tick\":\"+3\",\"eventualBG\":-103,\"snoozeBG\":126,\"mealAssist\":\"Off: Carbs: 0 Boluses: 5.8 Target: 127 Deviation: -62 BGI: 0.69\",\"reason\":\"BG 41<68.5\",\"duration\":30,\"rate\":0}");
+    }
+
+    @Test
+    public void calibrationTest() throws Exception {
+        assertSameAsJS(
+                "{\"glucose\":37,\"delta\":2,\"avgdelta\":3.48}",
+                "{\"temp\":\"absolute\",\"duration\":8,\"rate\":2.82}",
+                "{\"iob\":4.61,\"activity\":0.0286,\"bolussnooze\":1.8,\"basaliob\":1.24,\"netbasalinsulin\":1.15,\"hightempinsulin\":0.39}",
+                "{\"max_iob\":1.3,\"carbs_hr\":20,\"dia\":4,\"type\":\"current\",\"max_daily_basal\":0.61,\"max_basal\":2.4,\"max_bg\":120,\"min_bg\":106,\"target_bg\":115,\"carb_ratio\":17,\"sens\":76,\"current_basal\":0.98}",
+                "{\"carbs\":0,\"boluses\":3}",
+                "{\"error\":\"CGM is calibrating or in ??? state\"}");
+    }
+
+    @Test
+    public void paramsKeptForRunTest() throws Exception {
+        DetermineBasalAdapterJava adapter = new DetermineBasalAdapterJava();
+        String currentTemp = "{\"temp\":\"absolute\",\"duration\":0,\"rate\":0}";
+        String iobData = "{\"iob\":0,\"activity\":0,\"bolussnooze\":0,\"basaliob\":0,\"netbasalinsulin\":0,\"hightempinsulin\":0}";
+        String profile = "{\"max_iob\":2,\"carbs_hr\":20,\"dia\":3,\"type\":\"current\",\"max_daily_basal\":1,\"max_basal\":2,\"max_bg\":120,\"min_bg\":100,\"carb_ratio\":10,\"sens\":50,\"current_basal\":1}";
+        String mealData = "{\"carbs\":0,\"boluses\":0}";
+        adapter.setData("{\"glucose\":110,\"delta\":0,\"avgdelta\":0}", currentTemp, iobData, profile, mealData);
+        DetermineBasalParams first = adapter.getParams();
+        adapter.setData("{\"glucose\":200,\"delta\":5,\"avgdelta\":5}", currentTemp, iobData, profile, mealData);
+
+        // next run doesn't change params shown with previous result
+        assertNotSame(first, adapter.getParams());
+        assertEquals(110d, new JSONObject(first.getGlucoseStatusParam()).getDouble("glucose"), 0d);
+        assertEquals(200d, new JSONObject(adapter.getGlucoseStatusParam()).getDouble("glucose"), 0d);
+    }
+
+    @Test
+    public void jsNumberTest() throws Exception {
+        assertEquals("120", DetermineBasalAdapterJava.js(120d));
+        assertEquals("-8.9", DetermineBasalAdapterJava.js(-8.9d));
+        assertEquals("0", DetermineBasalAdapterJava.js(-0d));
+        assertEquals("2.220446049250313e-16", DetermineBasalAdapterJava.js(2.220446049250313e-16));
+        assertEquals("0.0005", DetermineBasalAdapterJava.js(0.0005d));
+    }
+
+    @Test
+    public void toFixedTest() throws Exception {
+        assertEquals("1.57", DetermineBasalAdapterJava.toFixed(1.5678d, 2));
+        assertEquals("-0.00", DetermineBasalAdapterJava.toFixed(-0.001d, 2));
+        assertEquals("2.4", DetermineBasalAdapterJava.toFixed(2.4d, 1));
+    }
+}
@@ -0,0 +1,204 @@
+package info.nightscout.androidaps.replay;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Date;
+
+import info.nightscout.androidaps.data.BgCache;
+import info.nightscout.androidaps.db.BgReading;
+import info.nightscout.androidaps.db.TempBasal;
+import info.nightscout.androidaps.db.Treatment;
+import info.nightscout.androidaps.plugins.OpenAPSMA.DetermineBasalAdapterJava;
+import info.nightscout.client.data.NSProfile;
+
+import static org.junit.Assert.*;
+
+public class ReplayEngineTest {
+    private static final long START = 1480000000000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    public ReplayEngineTest() {
+        super();
+    }
+
+    private static NSProfile profile() throws Exception {
+        String value = "[{\"time\":\"00:00\",\"timeAsSeconds\":0,\"value\":%s}]";
+        JSONObject profile = new JSONObject("{\"dia\":3,\"carbs_hr\":20,\"units\":\"mg/dl\",\"timezone\":\"UTC\"," +
+                "\"sens\":" + String.format(value, "50") + "," +
+                "\"carbratio\":" + String.format(value, "10") + "," +
+                "\"basal\":" + String.format(value, "1") + "," +
+                "\"target_low\":" + String.format(value, "100") + "," +
+                "\"target_high\":" + String.format(value, "120") + "}");
+        JSONObject json = new JSONObject();
+        json.put("defaultProfile", "Default");
+        json.put("store", new JSONObject().put("Default", profile));
+        return new NSProfile(json, "Default");
+    }
+
+    // Reading every 5 min, value changes by delta every 5 min
+    private static ReplayData data(long hours, double start, double delta) {
+        ReplayData data = new ReplayData();
+        for (int i = 0; i <= hours * 12; i++) {
+            BgReading bg = new BgReading();
+            bg.timeIndex = START + i * ReplayEngine.TICK;
+            bg.value = Math.max(40, Math.min(400, start + i * delta));
+            data.add(bg);
+        }
+        return data;
+    }
+
+    @Test
+    public void dataLookupTest() throws Exception {
+        ReplayData data = data(1, 100, 1);
+        Treatment bolus = new Treatment();
+        bolus.created_at = new Date(START + 10 * 60 * 1000L);
+        bolus.insulin = 1d;
+        data.add(bolus);
+
+        BgReading invalid = new BgReading();
+        invalid.timeIndex = START + 11 * 60 * 1000L;
+        invalid.value = 38;
+        data.add(invalid);
+
+        // invalid reading is not cached, readings not newer than 12 min are before lowerBound
+        BgCache cache = data.getBgCache();
+        assertEquals(13, cache.size());
+        int last = cache.lowerBound(START + 12 * 60 * 1000L + 1) - 1;
+        assertEquals(2, last);
+        assertEquals(START + 10 * 60 * 1000L, cache.getTime(last));
+        assertEquals(START, cache.getTime(0));
+
+        assertEquals(1, data.getTreatments(START, START + 10 * 60 * 1000L).size());
+        assertEquals(0, data.getTreatments(START + 10 * 60 * 1000L, START + HOUR).size());
+    }
+
+    @Test
+    public void historyBeforeReplayLoadedTest() throws Exception {
+        String url = "jdbc:sqlite:file:replaytest?mode=memory&cache=shared";
+        // in memory database lives while a connection is open
+        Connection keepAlive = DriverManager.getConnection(url);
+        JdbcConnectionSource connectionSource = new JdbcConnectionSource(url);
+        try {
+            TableUtils.createTableIfNotExists(connectionSource, BgReading.class);
+            TableUtils.createTableIfNotExists(connectionSource, Treatment.class);
+            TableUtils.createTableIfNotExists(connectionSource, TempBasal.class);
+            Dao<BgReading, Long> daoBgReadings = DaoManager.createDao(connectionSource, BgReading.class);
+            Dao<Treatment, Long> daoTreatments = DaoManager.createDao(connectionSource, Treatment.class);
+            Dao<TempBasal, Long> daoTempBasals = DaoManager.createDao(connectionSource, TempBasal.class);
+            for (BgReading bg : data(3, 110, 0).getBgReadings())
+                daoBgReadings.create(bg);
+            // bolus and temp 1 hour before replay
+            Treatment bolus = new Treatment();
+            bolus.timeIndex = START + HOUR;
+            bolus.created_at = new Date(bolus.timeIndex);
+            bolus.insulin = 2d;
+            daoTreatments.create(bolus);
+            TempBasal temp = new TempBasal();
+            temp.timeIndex = START + HOUR;
+            temp.timeStart = new Date(temp.timeIndex);
+            temp.isAbsolute = true;
+            temp.absolute = 2d;
+            temp.duration = 30;
+            daoTempBasals.create(temp);
+
+            long from = START + 2 * HOUR;
+            ReplayData data = ReplayData.loadFromDatabase(daoBgReadings, daoTreatments, daoTempBasals, from, START + 3 * HOUR, 3d);
+            ReplayEngine engine = new ReplayEngine(data, profile(), new ReplayEngine.Settings(), new DetermineBasalAdapterJava());
+            ReplayResult result = engine.run(from, START + 3 * HOUR);
+
+            // first tick has deltas and insulin from before
+            assertEquals(0, result.skipped);
+            assertEquals(from, result.decisions.get(0).time);
+            assertTrue(result.decisions.get(0).result.iob.iob > 1d);
+            assertTrue(result.decisions.get(0).result.iob.netbasalinsulin > 0.4d);
+        } finally {
+            DaoManager.clearCache();
+            connectionSource.close();
+            keepAlive.close();
+        }
+    }
+
+    @Test
+    public void closedLoopEnactsHighTempTest() throws Exception {
+        ReplayEngine.Settings settings = new ReplayEngine.Settings();
+        settings.maxBasal = 3d;
+        ReplayEngine engine = new ReplayEngine(data(3, 120, 3), profile(), settings, new DetermineBasalAdapterJava());
+        ReplayResult result = engine.run(START + HOUR, START + 3 * HOUR);
+
+        assertEquals(25, result.cycles);
+        assertEquals(0, result.skipped);
+        assertEquals(25, result.decisions.size());
+        assertTrue(result.enacted > 0);
+        assertTrue(result.cyclesPerSecond() > 0);
+        TempBasal last = engine.getPump().getTempBasals().get(engine.getPump().getTempBasals().size() - 1);
+        assertTrue(last.absolute > 1d);
+        // insulin from enacted temps is counted
+        assertTrue(result.decisions.get(result.decisions.size() - 1).result.iob.basaliob > 0);
+    }
+
+    @Test
+    public void openLoopUsesRecordedTempsTest() throws Exception {
+        ReplayData data = data(2, 200, 0);
+        TempBasal recorded = new TempBasal();
+        recorded.timeStart = new Date(START + HOUR);
+        recorded.isAbsolute = true;
+        recorded.absolute = 2d;
+        recorded.duration = 30;
+        data.add(recorded);
+
+        ReplayEngine.Settings settings = new ReplayEngine.Settings();
+        settings.closedLoop = false;
+        ReplayEngine engine = new ReplayEngine(data, profile(), settings, new DetermineBasalAdapterJava());
+        ReplayResult result = engine.run(START + HOUR, START + 2 * HOUR);
+
+        assertEquals(0, result.enacted);
+        assertEquals(1, engine.getPump().getTempBasals().size());
+        // 30 min at +1U/h delivered 0.5U
+        ReplayResult.Decision after = result.decisions.get(6);
+        assertEquals(0.5d, after.result.iob.netbasalinsulin, 0.01d);
+    }
+
+    @Test
+    public void replayIsRepeatableTest() throws Exception {
+        // high temp running before replay, flat BG in target, closed loop cancels it
+        ReplayData data = data(2, 110, 0);
+        TempBasal recorded = new TempBasal();
+        recorded.timeStart = new Date(START + HOUR - 10 * 60 * 1000L);
+        recorded.isAbsolute = true;
+        recorded.absolute = 3d;
+        recorded.duration = 60;
+        data.add(recorded);
+
+        ReplayEngine.Settings settings = new ReplayEngine.Settings();
+        settings.maxBasal = 3d;
+        ReplayEngine engine = new ReplayEngine(data, profile(), settings, new DetermineBasalAdapterJava());
+        ReplayResult first = engine.run(START + HOUR, START + 2 * HOUR);
+        ReplayResult second = engine.run(START + HOUR, START + 2 * HOUR);
+
+        assertNull(recorded.timeEnd);
+        assertEquals(first.decisions.size(), second.decisions.size());
+        assertEquals(first.enacted, second.enacted);
+        for (int i = 0; i < first.decisions.size(); i++) {
+            assertEquals(first.decisions.get(i).result.reason, second.decisions.get(i).result.reason);
+            assertEquals(first.decisions.get(i).result.rate, second.decisions.get(i).result.rate, 0.001d);
+        }
+    }
+
+    @Test
+    public void missingReadingsAreSkippedTest() throws Exception {
+        ReplayEngine engine = new ReplayEngine(data(1, 100, 0), profile(), new ReplayEngine.Settings(), new DetermineBasalAdapterJava());
+        // last reading at START + 1h, older than 7 min after 2 ticks
+        ReplayResult result = engine.run(START + HOUR, START + 2 * HOUR);
+        assertEquals(13, result.cycles);
+        assertEquals(2, result.decisions.size());
+        assertEquals(11, result.skipped);
+    }
+}
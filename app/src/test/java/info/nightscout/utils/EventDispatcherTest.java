@@ -0,0 +1,113 @@
+package info.nightscout.utils;
+
+import com.squareup.otto.Subscribe;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class EventDispatcherTest {
+
+    public EventDispatcherTest() {
+        super();
+    }
+
+    public static class EventA {
+        int value;
+
+        EventA(int value) {
+            this.value = value;
+        }
+    }
+
+    public static class EventB {
+    }
+
+    public static class Receiver {
+        final List<Object> received = new CopyOnWriteArrayList<Object>();
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+
+        @Subscribe
+        public void onStatusEvent(EventA ev) {
+            received.add(ev);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Subscribe
+        public void onStatusEvent(EventB ev) {
+            received.add(ev);
+            threads.add(Thread.currentThread().getName());
+        }
+    }
+
+    @Test
+    public void synchronousTest() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher();
+        Receiver persistence = new Receiver();
+        Receiver loop = new Receiver();
+        dispatcher.register(persistence);
+        dispatcher.register(loop, EventDispatcher.LOOP);
+
+        dispatcher.post(new EventB());
+        dispatcher.post(new EventB());
+        assertEquals(2, persistence.received.size());
+        assertEquals(2, loop.received.size());
+        assertEquals(Thread.currentThread().getName(), loop.threads.get(0));
+        // both receivers have own stats though of the same class
+        assertEquals(2, dispatcher.getStats(persistence).delivered);
+        assertEquals(2, dispatcher.getStats(loop).delivered);
+        assertNotSame(dispatcher.getStats(persistence), dispatcher.getStats(loop));
+
+        dispatcher.unregister(loop);
+        dispatcher.post(new EventB());
+        assertEquals(3, persistence.received.size());
+        assertEquals(2, loop.received.size());
+        assertEquals(3, dispatcher.getStats(persistence).delivered);
+        assertNull(dispatcher.getStats(loop));
+        try {
+            dispatcher.unregister(loop);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void coalesceTest() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher();
+        dispatcher.coalesce(EventA.class, 200L, new EventDispatcher.Merger() {
+            @Override
+            public Object merge(Object pending, Object posted) {
+                return new EventA(((EventA) pending).value + ((EventA) posted).value);
+            }
+        });
+        Receiver persistence = new Receiver();
+        Receiver loop = new Receiver();
+        Receiver ui = new Receiver();
+        dispatcher.register(persistence);
+        dispatcher.register(loop, EventDispatcher.LOOP);
+        dispatcher.register(ui, EventDispatcher.UI);
+
+        for (int i = 0; i < 50; i++)
+            dispatcher.post(new EventA(1));
+        // first one is delivered immediately to persistence
+        assertEquals(1, persistence.received.size());
+        assertEquals(Thread.currentThread().getName(), persistence.threads.get(0));
+
+        Thread.sleep(600L);
+        assertEquals(2, persistence.received.size());
+        assertEquals(49, ((EventA) persistence.received.get(1)).value);
+        assertEquals(48, dispatcher.getCoalesced());
+        assertEquals(2, loop.received.size());
+        assertEquals("EventDispatcherLoop", loop.threads.get(0));
+        assertEquals(2, ui.received.size());
+        assertEquals("EventDispatcherUI", ui.threads.get(1));
+
+        // window is closed, next event goes immediately again
+        dispatcher.post(new EventA(1));
+        assertEquals(3, persistence.received.size());
+        assertEquals(1, ((EventA) persistence.received.get(2)).value);
+    }
+}